@@ -0,0 +1,236 @@
+package com.leon;
+
+import com.leon.gRPC.*;
+import com.leon.helpers.Config;
+import io.grpc.Status;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Client of the whole cluster: routes every request to the right node over a pool of persistent connections.
+ * <p>
+ * Where the nodes are comes from a ClusterTopology kept current by ZooKeeper watches. Writes go to the leader,
+ * READs to the follower with the fewest requests in flight from this client. A follower that answers
+ * NOT_SYNCED or cannot be reached is left out of reads for CLIENT_FOLLOWER_BACKOFF_MS and the READ is
+ * retried on the leader; with no usable follower, READs go to the leader too. The leader answers NOT_SYNCED
+ * while it holds no lease (right after an election), such READs are retried with backoff.
+ * <p>
+ * A node answering REJECTED_NOT_LEADER names the leader it knows of, the request is resent there right away
+ * and later writes follow until the topology changes. Without a name, or when the leader cannot be reached,
+ * the request is retried with exponential backoff (while the election runs) up to CLIENT_MAX_ATTEMPTS times.
+ * <p>
+ * Redirects and retries are sent from a pool of our own: sending may block until the node's client has a
+ * free in-flight slot, and responses arrive on gRPC's threads, which must not block.
+ */
+public class ClusterClient implements Closeable {
+    private final ClusterTopology topology;
+    private final Map<String, StorageClient> clients = new ConcurrentHashMap<>(); // by address
+    private final Map<String, Long> skipFollowerUntil = new ConcurrentHashMap<>(); // address -> nanoTime
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private volatile String leaderHint = null; // leader named by a REJECTED_NOT_LEADER, newer than the topology
+    private final ExecutorService resender = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+        Thread t = new Thread(r, "cluster-client-resend");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean closed = false;
+
+    public ClusterClient(String zookeeperHosts) throws IOException {
+        this.topology = new ClusterTopology(zookeeperHosts);
+        this.topology.addListener(this::onTopologyChanged);
+    }
+
+    public CompletableFuture<CommandResponse> put(String key, String value) {
+        return command(CommandRequest.newBuilder().setOpType(CommandType.PUT).setKey(key).setValue(value).build());
+    }
+
+    public CompletableFuture<CommandResponse> read(String key) {
+        return command(CommandRequest.newBuilder().setOpType(CommandType.READ).setKey(key).build());
+    }
+
+    public CompletableFuture<CommandResponse> delete(String key) {
+        return command(CommandRequest.newBuilder().setOpType(CommandType.DELETE).setKey(key).build());
+    }
+
+    public CompletableFuture<CommandResponse> command(CommandRequest request) {
+        if (request.getRequestId() == 0)
+            request = request.toBuilder().setRequestId(newRequestId()).build();
+
+        CommandRequest sent = request;
+        boolean write = request.getOpType() != CommandType.READ;
+        return send(write, write ? leaderAddress() : readAddress(), 1, client -> client.command(sent),
+                CommandResponse::getStatus, CommandResponse::getValue);
+    }
+
+    /// Batches with writes go to the leader, read-only batches are routed like READs.
+    public CompletableFuture<BatchResponse> batch(BatchRequest request) {
+        if (request.getRequestId() == 0)
+            request = request.toBuilder().setRequestId(newRequestId()).build();
+
+        BatchRequest sent = request;
+        boolean write = false;
+        for (CommandRequest op : request.getOperationsList())
+            write |= op.getOpType() != CommandType.READ;
+
+        return send(write, write ? leaderAddress() : readAddress(), 1, client -> client.batch(sent),
+                ClusterClient::batchStatus, BatchResponse::getLeaderAddress);
+    }
+
+    /// A read-only batch a follower could not serve is NOT_SYNCED as a whole.
+    private static RequestStatus batchStatus(BatchResponse response) {
+        for (CommandResponse result : response.getResultsList()) {
+            if (result.getStatus() == RequestStatus.NOT_SYNCED)
+                return RequestStatus.NOT_SYNCED;
+        }
+        return response.getStatus();
+    }
+
+    /**
+     * Sends a request to address and follows redirects. status tells a response's outcome,
+     * leaderOf the leader address a REJECTED_NOT_LEADER response carries (may be empty).
+     */
+    private <T> CompletableFuture<T> send(boolean write, String address, int attempt, Function<StorageClient, CompletableFuture<T>> call,
+                                          Function<T, RequestStatus> status, Function<T, String> leaderOf) {
+        if (closed)
+            return CompletableFuture.failedFuture(closedError());
+        if (address == null)
+            return retryLater(write, attempt, call, status, leaderOf, Status.UNAVAILABLE.withDescription("No leader").asRuntimeException());
+
+        return call.apply(clientFor(address)).handleAsync((response, error) -> {
+            if (error != null) {
+                if (Status.fromThrowable(error).getCode() != Status.Code.UNAVAILABLE)
+                    return CompletableFuture.<T>failedFuture(error);
+                if (write)
+                    leaderHint = null;
+                else
+                    skipFollower(address);
+                return retryLater(write, attempt, call, status, leaderOf, error);
+            }
+
+            RequestStatus s = status.apply(response);
+            if (s == RequestStatus.REJECTED_NOT_LEADER && attempt < Config.CLIENT_MAX_ATTEMPTS) {
+                String leader = leaderOf.apply(response);
+                if (!leader.isEmpty() && !leader.equals(address)) {
+                    leaderHint = leader;
+                    return send(true, leader, attempt + 1, call, status, leaderOf);
+                }
+                leaderHint = null;
+                return retryLater(true, attempt, call, status, leaderOf, null);
+            }
+            if (s == RequestStatus.NOT_SYNCED && attempt < Config.CLIENT_MAX_ATTEMPTS) {
+                if (address.equals(leaderAddress()))
+                    return retryLater(write, attempt, call, status, leaderOf, null); // the leader has no lease yet
+                skipFollower(address);
+                return send(write, leaderAddress(), attempt + 1, call, status, leaderOf);
+            }
+            return CompletableFuture.completedFuture(response);
+        }, this::resend).thenCompose(f -> f);
+    }
+
+    /// Sends again after a backoff, to wherever the request is routed by then. Fails with error once out of attempts.
+    private <T> CompletableFuture<T> retryLater(boolean write, int attempt, Function<StorageClient, CompletableFuture<T>> call,
+                                                Function<T, RequestStatus> status, Function<T, String> leaderOf, Throwable error) {
+        if (attempt >= Config.CLIENT_MAX_ATTEMPTS)
+            return CompletableFuture.failedFuture(error != null ? error : Status.UNAVAILABLE.withDescription("No leader").asRuntimeException());
+        if (closed)
+            return CompletableFuture.failedFuture(closedError());
+
+        long backoff = Config.CLIENT_RETRY_BACKOFF_MS << Math.min(attempt - 1, 10);
+        return CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS, this::resend)).thenCompose(x ->
+                send(write, write ? leaderAddress() : readAddress(), attempt + 1, call, status, leaderOf));
+    }
+
+    private String leaderAddress() {
+        String hint = leaderHint;
+        return hint != null ? hint : topology.getLeaderAddress();
+    }
+
+    /// The follower with the fewest requests in flight that is not being skipped, or the leader.
+    private String readAddress() {
+        long now = System.nanoTime();
+        String best = null;
+        int bestLoad = Integer.MAX_VALUE;
+
+        for (String address : topology.getFollowerAddresses()) {
+            if (address.equals(leaderHint))
+                continue;
+            Long until = skipFollowerUntil.get(address);
+            if (until != null && now - until < 0)
+                continue;
+            int load = clientFor(address).getInFlight();
+            if (load < bestLoad) {
+                best = address;
+                bestLoad = load;
+            }
+        }
+        return best != null ? best : leaderAddress();
+    }
+
+    private void skipFollower(String address) {
+        skipFollowerUntil.put(address, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.CLIENT_FOLLOWER_BACKOFF_MS));
+    }
+
+    private StorageClient clientFor(String address) {
+        return clients.computeIfAbsent(address, a -> new StorageClient(a, Config.CLIENT_MAX_IN_FLIGHT, Config.CLIENT_TIMEOUT_MS));
+    }
+
+    /// The topology is now at least as new as any redirect; connections to nodes that left are closed.
+    private void onTopologyChanged() {
+        leaderHint = null;
+
+        Set<String> live = new HashSet<>(topology.getAddresses());
+        for (String address : clients.keySet()) {
+            if (!live.contains(address)) {
+                StorageClient gone = clients.remove(address);
+                if (gone != null)
+                    gone.close(); // its in-flight requests fail with UNAVAILABLE and are retried elsewhere
+                skipFollowerUntil.remove(address);
+            }
+        }
+    }
+
+    private int newRequestId() {
+        return nextRequestId.getAndUpdate(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+    }
+
+    public ClusterTopology getTopology() {
+        return topology;
+    }
+
+    /// Runs task on the resender pool; once closed, on the caller's thread, the request fails without blocking then.
+    private void resend(Runnable task) {
+        try {
+            resender.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private static RuntimeException closedError() {
+        return Status.UNAVAILABLE.withDescription("Client is closed").asRuntimeException();
+    }
+
+    /// Fails every request in flight; redirects and retries of them fail as well.
+    @Override
+    public void close() {
+        closed = true;
+        topology.close();
+        for (StorageClient client : clients.values())
+            client.close();
+        clients.clear();
+        resender.shutdown();
+    }
+}
@@ -0,0 +1,153 @@
+package com.leon;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client's view of the cluster: the gRPC address of every node and of the leader.
+ * <p>
+ * Nodes register as ephemeral /root/nodeXXXXXXXXXX znodes holding their address, the leader also creates
+ * /root/leader with its address. Both are read once and then kept current by ZooKeeper watches, so
+ * looking up where to send a request never goes to ZooKeeper. Watches fire once, every refresh sets them
+ * again; refreshes run on their own thread, never on ZooKeeper's event thread.
+ */
+public class ClusterTopology implements Watcher, AutoCloseable {
+    private static final String ROOT = "/root";
+    private static final String LEADER = "leader";
+    private static final String NODE_PREFIX = "node";
+
+    private final ZooKeeper zk;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "topology-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Map<String, String> nodes = Map.of(); // znode name -> gRPC address
+    private volatile String leaderAddress = null; // null - no leader right now
+
+    public ClusterTopology(String zookeeperHosts) throws IOException {
+        this.zk = new ZooKeeper(zookeeperHosts, 3000, this);
+        refresher.execute(this::refresh);
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        // a (re)connect may follow a lost session whose watches are gone, so it refreshes too
+        if (event.getType() != Event.EventType.None || event.getState() == Event.KeeperState.SyncConnected)
+            refresher.execute(this::refresh);
+    }
+
+    private void refresh() {
+        try {
+            if (zk.exists(ROOT, this) == null) {
+                update(Map.of(), null); // no node has started yet, the watch tells us when /root appears
+                return;
+            }
+
+            Map<String, String> current = nodes;
+            Map<String, String> updated = new HashMap<>();
+            for (String child : zk.getChildren(ROOT, this)) {
+                if (!child.startsWith(NODE_PREFIX))
+                    continue; // /root/leader, /root/epoch
+                String address = current.get(child); // sequential names are never reused, neither are their addresses
+                if (address == null)
+                    address = readAddress(ROOT + "/" + child, false);
+                if (address != null)
+                    updated.put(child, address);
+            }
+
+            String leader = null;
+            if (zk.exists(ROOT + "/" + LEADER, this) != null)
+                leader = readAddress(ROOT + "/" + LEADER, true);
+            update(updated, leader);
+        } catch (KeeperException e) {
+            System.out.println("Reading the cluster topology failed: " + e.getMessage());
+            // the connection event that follows a loss triggers the next refresh
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /// Data of a znode, null if it was deleted in the meantime.
+    private String readAddress(String path, boolean watch) throws KeeperException, InterruptedException {
+        try {
+            return new String(zk.getData(path, watch ? this : null, null));
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+    }
+
+    private void update(Map<String, String> updated, String leader) {
+        boolean changed;
+        synchronized (this) {
+            changed = !updated.equals(nodes) || !Objects.equals(leader, leaderAddress);
+            nodes = Map.copyOf(updated);
+            leaderAddress = leader;
+            notifyAll();
+        }
+        if (changed) {
+            System.out.println("Cluster topology: leader " + leader + ", nodes " + new TreeMap<>(updated).values());
+            for (Runnable listener : listeners)
+                listener.run();
+        }
+    }
+
+    /// Address of the leader, or null while there is none.
+    public String getLeaderAddress() {
+        return leaderAddress;
+    }
+
+    /// Addresses of all nodes, leader included.
+    public Collection<String> getAddresses() {
+        return nodes.values();
+    }
+
+    /// Addresses of all nodes except the leader.
+    public List<String> getFollowerAddresses() {
+        String leader = leaderAddress;
+        List<String> followers = new ArrayList<>();
+        for (String address : nodes.values()) {
+            if (!address.equals(leader))
+                followers.add(address);
+        }
+        return followers;
+    }
+
+    /// Waits until a leader is known. Returns its address, or null on timeout.
+    public synchronized String awaitLeader(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (leaderAddress == null) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0)
+                return null;
+            wait(left);
+        }
+        return leaderAddress;
+    }
+
+    /// Runs listener after every change of the nodes or the leader, on the refresh thread.
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+        try {
+            zk.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // the session is left to expire
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.leon;
+
+import com.leon.gRPC.CommandRequest;
+import com.leon.helpers.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Leader side intake queue for client writes: single PUT / DELETE commands and write batches,
+ * each of which becomes one log entry.
+ * <p>
+ * Commands arriving concurrently are collected by a writer thread (up to maxBatchSize, lingering up to
+ * lingerMicros for more) and written to the log as one batch with one append; the followers' replication
+ * workers are woken as soon as it is queued. The writer goes on with the next batch right away, so up to
+ * maxPendingBatches batches are replicated at the same time.
+ * <p>
+ * A second thread completes the batches in log order as the commit index advances: each is applied once
+ * committed, then its callers are completed with true. A batch that is not committed within
+ * REPLICATION_TIMEOUT_MS of being written is completed with false and not applied; it stays in the log and is
+ * applied in order if it is committed later.
+ * <p>
+ * Entries are written in the term we lead, not getTerm(): once deposed that is the newer leader's term. A batch
+ * that reaches the writer after we stopped leading is answered with false and never written. Batches already
+ * written when we step down are not failed early: they time out, unless a later leader kept and committed them
+ * before, and then they are answered with true once applied here as a follower.
+ */
+public class CommandBatcher {
+    private final Node node;
+    private final LoggingService logger;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+
+    private final LinkedBlockingQueue<PendingCommand> pending = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<WrittenBatch> awaitingCommit = new LinkedBlockingQueue<>(); // in log order
+    private final Semaphore batchSlots; // one per batch written and not completed yet
+    private final Thread writer;
+    private final Thread completer;
+
+    public CommandBatcher(Node node, LoggingService logger, int maxBatchSize, long lingerMicros, int maxPendingBatches) {
+        this.node = node;
+        this.logger = logger;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, lingerMicros));
+        this.batchSlots = new Semaphore(Math.max(1, maxPendingBatches));
+
+        this.writer = new Thread(this::batchLoop, "command-batcher");
+        this.writer.setDaemon(true);
+        this.writer.start();
+
+        this.completer = new Thread(this::commitLoop, "command-completer");
+        this.completer.setDaemon(true);
+        this.completer.start();
+    }
+
+    /// Queues an already validated write. Completes once it is applied, with true, or with false if no majority had it in time.
+    public CompletableFuture<Boolean> submit(CommandRequest cr) {
+        return submit((index, term) -> LogRecord.fromCommand(index, term, cr));
+    }
+
+    /// Queues already validated PUTs and DELETEs that must be applied all together, as one BATCH log entry.
+    public CompletableFuture<Boolean> submitBatch(List<CommandRequest> ops) {
+        return submit((index, term) -> LogRecord.fromBatch(index, term, ops));
+    }
+
+    /// Stops taking commands, those already queued and those waiting to be committed are failed.
+    public void stop() {
+        writer.interrupt();
+        completer.interrupt();
+    }
+
+    private CompletableFuture<Boolean> submit(LoggingService.NewEntry entry) {
+        PendingCommand command = new PendingCommand(entry);
+        pending.add(command);
+        return command.future;
+    }
+
+    private void batchLoop() {
+        List<PendingCommand> batch = new ArrayList<>(maxBatchSize);
+
+        while (true) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch, maxBatchSize - batch.size());
+
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+
+                    PendingCommand next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+
+                    batch.add(next);
+                    pending.drainTo(batch, maxBatchSize - batch.size());
+                }
+
+                batchSlots.acquire(); // more arrive meanwhile, the next batch is bigger
+                pending.drainTo(batch, maxBatchSize - batch.size());
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.drainTo(batch);
+                for (PendingCommand c : batch)
+                    c.future.completeExceptionally(e);
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                for (PendingCommand c : batch)
+                    c.future.completeExceptionally(e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /// Queues the batch for the log and hands it to the completer; the followers get it while it is forced.
+    private void write(List<PendingCommand> batch) {
+        List<LoggingService.NewEntry> entries = new ArrayList<>(batch.size());
+        for (PendingCommand c : batch)
+            entries.add(c.entry);
+
+        CompletableFuture<List<LogRecord>> written = logger.appendLocal(entries);
+        if (written == null) {
+            // not leading any more, the client tries the node that is
+            for (PendingCommand c : batch)
+                c.future.complete(false);
+            batchSlots.release();
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.REPLICATION_TIMEOUT_MS);
+        awaitingCommit.add(new WrittenBatch(new ArrayList<>(batch), written, deadline));
+    }
+
+    /**
+     * Waits for the oldest batch to be durable, then for the commit index to pass the applied index, applies
+     * what is committed and completes the batches it covers, oldest first. Also applies logs that are committed
+     * with no batch waiting for them, i.e. ones whose batch timed out, or those of earlier terms committed with
+     * the entry that started ours.
+     */
+    private void commitLoop() {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(Config.HEARTBEAT_INTERVAL_MS);
+        int appliedBefore = -1; // applied index before the last applyCommitted()
+
+        while (true) {
+            try {
+                WrittenBatch head = awaitingCommit.peek();
+                long waitNanos = head == null ? idleNanos : head.deadlineNanos - System.nanoTime();
+                int applied = logger.getAppliedIndex();
+                if (waitNanos > 0) {
+                    CompletableFuture<?> next = head != null && !head.written.isDone() ? head.written : logger.awaitCommit(applied + 1);
+                    if (next.isDone() && applied == appliedBefore) {
+                        TimeUnit.NANOSECONDS.sleep(Math.min(waitNanos, idleNanos)); // committed, but the log could not be applied
+                    } else {
+                        try {
+                            next.get(waitNanos, TimeUnit.NANOSECONDS);
+                        } catch (TimeoutException | ExecutionException e) {
+                            // a batch is due, failed, or nothing happened
+                        }
+                    }
+                }
+
+                logger.applyCommitted(node);
+                appliedBefore = applied;
+                completeBatches();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                WrittenBatch batch;
+                while ((batch = awaitingCommit.poll()) != null)
+                    batch.complete(null, e);
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /// Completes the batches at the head that are applied, failed to be written, or whose time is up.
+    private void completeBatches() {
+        int applied = logger.getAppliedIndex();
+
+        while (true) {
+            WrittenBatch batch = awaitingCommit.peek();
+            if (batch == null)
+                return;
+
+            if (batch.written.isCompletedExceptionally()) {
+                batch.complete(null, new IllegalStateException("Writing the log failed"));
+            } else if (batch.written.isDone() && batch.last().getIndex() <= applied) {
+                batch.complete(isOurs(batch.last()), null);
+            } else if (System.nanoTime() - batch.deadlineNanos >= 0) {
+                batch.complete(false, null);
+            } else {
+                return;
+            }
+            awaitingCommit.poll();
+            batchSlots.release();
+        }
+    }
+
+    /// True if the log applied at record's index is record, not one of a later leader that replaced it.
+    private boolean isOurs(LogRecord record) {
+        try {
+            return logger.termAt(record.getIndex()) == record.getTerm();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class PendingCommand {
+        final LoggingService.NewEntry entry; // builds the log entry once its index and term are known
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingCommand(LoggingService.NewEntry entry) {
+            this.entry = entry;
+        }
+    }
+
+    private static class WrittenBatch {
+        final List<PendingCommand> commands;
+        final CompletableFuture<List<LogRecord>> written; // completes once the batch is durable here
+        final long deadlineNanos; // answered REPLICATION_TIMEOUT after this
+
+        WrittenBatch(List<PendingCommand> commands, CompletableFuture<List<LogRecord>> written, long deadlineNanos) {
+            this.commands = commands;
+            this.written = written;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        LogRecord last() {
+            List<LogRecord> records = written.join();
+            return records.get(records.size() - 1);
+        }
+
+        void complete(Boolean replicated, Throwable error) {
+            for (PendingCommand c : commands) {
+                if (error != null)
+                    c.future.completeExceptionally(error);
+                else
+                    c.future.complete(replicated);
+            }
+        }
+    }
+}
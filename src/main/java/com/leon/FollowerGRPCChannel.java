@@ -1,16 +1,25 @@
 package com.leon;
 
 import com.leon.gRPC.StorageServiceGrpc;
+import io.grpc.ManagedChannel;
 
 public class FollowerGRPCChannel {
     final String zkNode;
     final String connectionString;
+    final ManagedChannel channel;
     final StorageServiceGrpc.StorageServiceBlockingStub blockingStub;
+    final StorageServiceGrpc.StorageServiceFutureStub futureStub;
+    final StorageServiceGrpc.StorageServiceStub asyncStub;
 
-    public FollowerGRPCChannel(String zkNode, String connectionString, StorageServiceGrpc.StorageServiceBlockingStub blockingStub){
+    private ReplicationWorker replicationWorker = null; // leader side replication state, see LoggingService
+
+    public FollowerGRPCChannel(String zkNode, String connectionString, ManagedChannel channel) {
         this.zkNode = zkNode;
         this.connectionString = connectionString;
-        this.blockingStub = blockingStub;
+        this.channel = channel;
+        this.blockingStub = StorageServiceGrpc.newBlockingStub(channel);
+        this.futureStub = StorageServiceGrpc.newFutureStub(channel);
+        this.asyncStub = StorageServiceGrpc.newStub(channel);
     }
 
     public String getZkNode() {
@@ -21,10 +30,30 @@ public class FollowerGRPCChannel {
         return connectionString;
     }
 
+    public ManagedChannel getChannel() {
+        return channel;
+    }
+
     public StorageServiceGrpc.StorageServiceBlockingStub getBlockingStub() {
         return blockingStub;
     }
 
+    public StorageServiceGrpc.StorageServiceFutureStub getFutureStub() {
+        return futureStub;
+    }
+
+    public StorageServiceGrpc.StorageServiceStub getAsyncStub() {
+        return asyncStub;
+    }
+
+    public ReplicationWorker getReplicationWorker() {
+        return replicationWorker;
+    }
+
+    public void setReplicationWorker(ReplicationWorker replicationWorker) {
+        this.replicationWorker = replicationWorker;
+    }
+
     @Override
     public String toString() {
         return "FollowerGRPCChannel{" +
@@ -0,0 +1,247 @@
+package com.leon;
+
+import com.leon.gRPC.CommandRequest;
+import com.leon.gRPC.CommandType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * A single log entry and its binary encoding, shared by the write-ahead log and replication.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * int   length     number of bytes after the crc field
+ * int   crc        CRC32C of those bytes
+ * byte  version    2 (1 - written before terms, read as term 0)
+ * int   index
+ * long  term       of the leader that created the entry (version 2 only)
+ * byte  opType     CommandType number
+ * long  timestamp  unix millis
+ * int   keyLength,   key bytes (UTF-8)
+ * int   valueLength, value bytes (UTF-8)
+ * </pre>
+ * A BATCH entry has an empty key, its value is the list of operations applied together:
+ * repeated (byte opType, int keyLength, key bytes, int valueLength, value bytes).
+ */
+public class LogRecord {
+    public static final int HEADER_SIZE = 8; // length + crc
+    private static final byte FORMAT_VERSION = 2;
+    private static final int FIXED_BODY_SIZE = 1 + 4 + 8 + 1 + 8 + 4 + 4;
+    private static final int FIXED_BODY_SIZE_V1 = FIXED_BODY_SIZE - 8;
+
+    private final int index;
+    private final long term;
+    private final CommandType opType;
+    private final byte[] key;
+    private final byte[] value;
+    private final long timestamp;
+
+    private byte[] encoded = null;
+
+    public LogRecord(int index, long term, CommandType opType, byte[] key, byte[] value, long timestamp) {
+        this.index = index;
+        this.term = term;
+        this.opType = opType;
+        this.key = key;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public static LogRecord fromCommand(int index, long term, CommandRequest cr) {
+        byte[] value = cr.getOpType() == CommandType.DELETE ? new byte[0] : cr.getValue().getBytes(StandardCharsets.UTF_8);
+        return new LogRecord(index, term, cr.getOpType(), cr.getKey().getBytes(StandardCharsets.UTF_8), value, System.currentTimeMillis());
+    }
+
+    /// One log entry holding all of ops (PUTs and DELETEs), so they are applied atomically.
+    public static LogRecord fromBatch(int index, long term, List<CommandRequest> ops) {
+        List<byte[]> keys = new ArrayList<>(ops.size());
+        List<byte[]> values = new ArrayList<>(ops.size());
+        int size = 0;
+
+        for (CommandRequest op : ops) {
+            byte[] key = op.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = op.getOpType() == CommandType.DELETE ? new byte[0] : op.getValue().getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+            values.add(value);
+            size += 1 + 4 + key.length + 4 + value.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < ops.size(); i++) {
+            buf.put((byte) ops.get(i).getOpType().getNumber());
+            buf.putInt(keys.get(i).length).put(keys.get(i));
+            buf.putInt(values.get(i).length).put(values.get(i));
+        }
+        return new LogRecord(index, term, CommandType.BATCH, new byte[0], buf.array(), System.currentTimeMillis());
+    }
+
+    /**
+     * The operations of a BATCH entry, each as a PUT or DELETE record with this entry's index, term and timestamp.
+     * Any other entry is its own single operation.
+     */
+    public List<LogRecord> getOperations() {
+        if (opType != CommandType.BATCH)
+            return List.of(this);
+
+        List<LogRecord> ops = parseOperations();
+        if (ops == null) // read() already rejected such records
+            throw new IllegalStateException("Malformed batch in log record #" + index);
+        return ops;
+    }
+
+    private List<LogRecord> parseOperations() {
+        List<LogRecord> ops = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(value);
+        while (buf.hasRemaining()) {
+            CommandType type = CommandType.forNumber(buf.get());
+            byte[] k = readBytes(buf);
+            byte[] v = readBytes(buf);
+            if (type == null || type == CommandType.BATCH || k == null || v == null)
+                return null;
+            ops.add(new LogRecord(index, term, type, k, v, timestamp));
+        }
+        return ops;
+    }
+
+    /// Returns the full record, header included. The encoding is cached, records are immutable.
+    public byte[] encode() {
+        if (encoded != null)
+            return encoded;
+
+        int bodyLength = FIXED_BODY_SIZE + key.length + value.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+
+        buf.putInt(bodyLength);
+        buf.putInt(0); // crc, filled in below
+        buf.put(FORMAT_VERSION);
+        buf.putInt(index);
+        buf.putLong(term);
+        buf.put((byte) opType.getNumber());
+        buf.putLong(timestamp);
+        buf.putInt(key.length).put(key);
+        buf.putInt(value.length).put(value);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), HEADER_SIZE, bodyLength);
+        buf.putInt(4, (int) crc.getValue());
+
+        encoded = buf.array();
+        return encoded;
+    }
+
+    /// Size of encode(), a record read in the version 1 format is re-encoded in the current one.
+    public int encodedSize() {
+        return HEADER_SIZE + FIXED_BODY_SIZE + key.length + value.length;
+    }
+
+    public static LogRecord decode(byte[] bytes) throws CorruptRecordException {
+        LogRecord r = read(ByteBuffer.wrap(bytes));
+        if (r == null)
+            throw new CorruptRecordException("Truncated log record");
+        return r;
+    }
+
+    /**
+     * Reads one record starting at buf's position and advances past it.
+     * Returns null, leaving the position untouched, if buf does not hold the whole record yet.
+     * Throws if the record is complete but fails its checksum or cannot be parsed.
+     */
+    public static LogRecord read(ByteBuffer buf) throws CorruptRecordException {
+        if (buf.remaining() < HEADER_SIZE)
+            return null;
+
+        int start = buf.position();
+        int bodyLength = buf.getInt(start);
+        int expectedCrc = buf.getInt(start + 4);
+
+        if (bodyLength < FIXED_BODY_SIZE_V1)
+            throw new CorruptRecordException("Invalid log record length " + bodyLength);
+        if (buf.remaining() < HEADER_SIZE + bodyLength)
+            return null;
+
+        CRC32C crc = new CRC32C();
+        ByteBuffer body = buf.slice(start + HEADER_SIZE, bodyLength);
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != expectedCrc)
+            throw new CorruptRecordException("Checksum mismatch in log record at offset " + start);
+
+        byte version = body.get();
+        if (version < 1 || version > FORMAT_VERSION)
+            throw new CorruptRecordException("Unknown log record version " + version);
+        if (version > 1 && bodyLength < FIXED_BODY_SIZE)
+            throw new CorruptRecordException("Invalid log record length " + bodyLength);
+
+        int index = body.getInt();
+        long term = version > 1 ? body.getLong() : 0;
+        CommandType opType = CommandType.forNumber(body.get());
+        long timestamp = body.getLong();
+        byte[] key = readBytes(body);
+        byte[] value = readBytes(body);
+
+        if (opType == null || key == null || value == null)
+            throw new CorruptRecordException("Malformed log record at offset " + start);
+
+        LogRecord record = new LogRecord(index, term, opType, key, value, timestamp);
+        if (opType == CommandType.BATCH && record.parseOperations() == null)
+            throw new CorruptRecordException("Malformed batch in log record at offset " + start);
+
+        buf.position(start + HEADER_SIZE + bodyLength);
+        return record;
+    }
+
+    private static byte[] readBytes(ByteBuffer body) {
+        if (body.remaining() < 4)
+            return null;
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining())
+            return null;
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return bytes;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /// Term of the leader that created the entry, 0 for entries from before terms.
+    public long getTerm() {
+        return term;
+    }
+
+    public CommandType getOpType() {
+        return opType;
+    }
+
+    public String getKey() {
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    public String getValue() {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        if (opType == CommandType.BATCH)
+            return "Log #" + index + ": " + opType + ":" + value.length + " bytes:" + timestamp;
+        return "Log #" + index + ": " + opType + ":" + getKey() + ":" + getValue() + ":" + timestamp;
+    }
+
+    public static class CorruptRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptRecordException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.leon;
+
+import com.leon.gRPC.CommandType;
+import com.leon.helpers.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Replays the log on startup using every core.
+ * <p>
+ * The log is read sequentially in chunks of whole, still encoded records (see SegmentedLog.readChunks).
+ * Decoding and checksumming a chunk runs on a fork-join pool, and so does splitting its operations by
+ * key into partitions that keep only the last operation on each key: anything a later entry of the same
+ * chunk overwrites or deletes would not survive the replay anyway. Chunks are applied strictly in log
+ * order while the following ones are decoded, the partitions of one chunk in parallel as they share no keys.
+ * <p>
+ * A corrupt record or a gap in the indexes ends the replay: nothing after it can be applied in order, so
+ * replay returns the index right after the last contiguous record and the leader (or InstallSnapshot)
+ * fills in the rest.
+ * Progress is published as recovery.replay.* metrics and printed about once a second.
+ */
+public class LogReplayer {
+    private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final Node node;
+    private final Metrics metrics;
+    private final int threads;
+    private final int chunkBytes;
+    private final int partitions;
+
+    private volatile long bytesTotal = 0; // of the segments being replayed
+    private volatile long bytesDone = 0; // of the chunks applied so far
+    private volatile long bytesApplied = 0; // of the records applied, the part at or after fromIndex
+    private volatile long startNanos = 0;
+    private volatile long endNanos = 0;
+    private long lastProgressNanos = 0;
+    private boolean stopped = false; // at a corrupt record or a gap
+
+    public LogReplayer(Node node, Metrics metrics, int threads, int chunkBytes) {
+        this.node = node;
+        this.metrics = metrics;
+        this.threads = Math.max(threads, 1);
+        this.chunkBytes = chunkBytes;
+        this.partitions = this.threads * 4;
+
+        metrics.gauge("recovery.replay.bytes_total", () -> bytesTotal);
+        metrics.gauge("recovery.replay.bytes_done", () -> bytesDone);
+        metrics.gauge("recovery.replay.progress", () -> bytesTotal == 0 ? 1 : Math.min(1, (double) bytesDone / bytesTotal));
+        metrics.gauge("recovery.replay.bytes_per_sec", () -> bytesPerSec());
+    }
+
+    /**
+     * Applies every log from fromIndex to the end of log to the node, up to the first corrupt record or gap.
+     * Returns the index after the last one applied.
+     */
+    public int replay(SegmentedLog log, int fromIndex) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ArrayDeque<CompletableFuture<Chunk>> decoding = new ArrayDeque<>();
+        int[] next = {fromIndex};
+
+        bytesTotal = log.bytesFrom(fromIndex);
+        startNanos = System.nanoTime();
+        lastProgressNanos = startNanos;
+        try {
+            log.readChunks(fromIndex, chunkBytes, (segment, position, buf) -> {
+                decoding.add(CompletableFuture.supplyAsync(() -> decode(segment, position, buf, fromIndex), pool));
+                // keep a few chunks ahead of the one being applied, not the whole log in memory
+                while (decoding.size() > 2 * threads)
+                    apply(decoding.poll().join(), pool, next);
+                return !stopped;
+            });
+            while (!decoding.isEmpty())
+                apply(decoding.poll().join(), pool, next);
+        } finally {
+            pool.shutdownNow();
+            endNanos = System.nanoTime();
+        }
+
+        if (bytesApplied > 0)
+            System.out.printf("Replayed %d bytes of log in %dms (%.1f MB/s) on %d threads%n",
+                    bytesApplied, (endNanos - startNanos) / 1_000_000, bytesPerSec() / (1024 * 1024), threads);
+        return next[0];
+    }
+
+    private Chunk decode(String segment, long position, ByteBuffer buf, int fromIndex) {
+        Chunk chunk = new Chunk(segment, buf.remaining(), partitions);
+        try {
+            LogRecord r;
+            while ((r = LogRecord.read(buf)) != null) {
+                if (r.getIndex() < fromIndex)
+                    continue;
+                if (chunk.records > 0 && r.getIndex() != chunk.lastIndex + 1) {
+                    chunk.corruption = "Log #" + (chunk.lastIndex + 1) + " is missing, " + segment + " continues with #" + r.getIndex();
+                    break;
+                }
+                chunk.add(r);
+            }
+        } catch (LogRecord.CorruptRecordException e) {
+            // the record's offset in the message is relative to the chunk
+            chunk.corruption = "Corrupt log record at offset " + (position + buf.position()) + " of " + segment + ": " + e.getMessage();
+        }
+        return chunk;
+    }
+
+    private void apply(Chunk chunk, ForkJoinPool pool, int[] next) {
+        bytesDone += chunk.size;
+        if (stopped)
+            return;
+        if (chunk.records > 0 && chunk.firstIndex != next[0]) {
+            System.out.println("Log #" + next[0] + " is missing, " + chunk.segment + " continues with #" + chunk.firstIndex);
+            stopped = true;
+            return;
+        }
+
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(partitions);
+        for (Map<String, Op> partition : chunk.partitions) {
+            if (!partition.isEmpty())
+                tasks.add(CompletableFuture.runAsync(() -> applyPartition(partition), pool));
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+
+        if (chunk.records > 0)
+            next[0] = chunk.lastIndex + 1;
+        bytesApplied += chunk.recordBytes;
+        metrics.add("recovery.replay.records", chunk.records);
+        metrics.add("recovery.replay.operations", chunk.operations);
+        metrics.add("recovery.replay.operations_superseded", chunk.superseded);
+
+        if (chunk.corruption != null) {
+            System.out.println(chunk.corruption);
+            stopped = true;
+        }
+
+        long now = System.nanoTime();
+        if (now - lastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+            lastProgressNanos = now;
+            System.out.printf("Replaying log: %d%% (%d of %d bytes, %.1f MB/s), next log is #%d%n",
+                    bytesTotal == 0 ? 100 : bytesDone * 100 / bytesTotal, bytesDone, bytesTotal, bytesPerSec() / (1024 * 1024), next[0]);
+        }
+    }
+
+    private void applyPartition(Map<String, Op> partition) {
+        partition.forEach((key, op) -> {
+            if (op.value == null)
+                node.delete(key, op.index);
+            else
+                node.put(key, op.value, op.index);
+        });
+    }
+
+    private double bytesPerSec() {
+        long start = startNanos;
+        if (start == 0)
+            return 0;
+        long elapsed = (endNanos != 0 ? endNanos : System.nanoTime()) - start;
+        return elapsed <= 0 ? 0 : bytesDone * 1e9 / elapsed;
+    }
+
+    /// Bytes of the records applied by the last replay.
+    public long getBytesApplied() {
+        return bytesApplied;
+    }
+
+    public long getElapsedNanos() {
+        return endNanos - startNanos;
+    }
+
+    /// The last operation on a key within a chunk, value null for a DELETE.
+    private static final class Op {
+        final int index;
+        final String value;
+
+        Op(int index, String value) {
+            this.index = index;
+            this.value = value;
+        }
+    }
+
+    /// A decoded chunk, its operations partitioned by key.
+    private static final class Chunk {
+        final String segment;
+        final int size;
+        final List<Map<String, Op>> partitions;
+        int records = 0;
+        long recordBytes = 0;
+        int firstIndex = 0;
+        int lastIndex = 0;
+        long operations = 0;
+        long superseded = 0;
+        String corruption = null; // the chunk ends at a corrupt record or a gap
+
+        Chunk(String segment, int size, int partitionCount) {
+            this.segment = segment;
+            this.size = size;
+            this.partitions = new ArrayList<>(partitionCount);
+            for (int i = 0; i < partitionCount; i++)
+                partitions.add(new HashMap<>());
+        }
+
+        void add(LogRecord record) {
+            if (records == 0)
+                firstIndex = record.getIndex();
+            records++;
+            recordBytes += record.encodedSize();
+            lastIndex = record.getIndex();
+
+            for (LogRecord op : record.getOperations()) {
+                if (op.getOpType() != CommandType.PUT && op.getOpType() != CommandType.DELETE)
+                    continue;
+                String key = op.getKey();
+                Map<String, Op> partition = partitions.get(Math.floorMod(MappedSnapshot.spread(key.hashCode()), partitions.size()));
+                Op previous = partition.put(key, new Op(op.getIndex(), op.getOpType() == CommandType.DELETE ? null : op.getValue()));
+                operations++;
+                if (previous != null)
+                    superseded++;
+            }
+        }
+    }
+}
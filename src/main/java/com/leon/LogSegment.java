@@ -0,0 +1,398 @@
+package com.leon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * One file of the segmented log: a run of consecutive LogRecords starting at baseIndex,
+ * plus a sparse index file mapping some log indexes to their byte offset in the segment.
+ * <p>
+ * An index entry is written for the first record and then roughly every indexIntervalBytes,
+ * so a lookup seeks to the closest preceding entry and scans at most that many bytes.
+ * Index file layout: repeated (int logIndex, long position), big endian.
+ */
+public class LogSegment implements Closeable {
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final int baseIndex;
+    private final Path logPath;
+    private final Path indexPath;
+    private final int indexIntervalBytes;
+
+    private FileChannel channel = null;
+    private FileChannel indexChannel = null; // only open while this is the active segment
+
+    // sparse index, sorted by log index
+    private int[] indexKeys = new int[16];
+    private long[] indexPositions = new long[16];
+    private int indexEntries = 0;
+
+    private volatile long size = 0;
+    private volatile int lastIndex;
+    private long bytesSinceIndexEntry = 0;
+
+    private LogSegment(Path dir, int baseIndex, int indexIntervalBytes) {
+        this.baseIndex = baseIndex;
+        this.logPath = dir.resolve(fileName(baseIndex, ".log"));
+        this.indexPath = dir.resolve(fileName(baseIndex, ".index"));
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.lastIndex = baseIndex - 1;
+    }
+
+    static String fileName(int baseIndex, String suffix) {
+        return String.format("%010d%s", baseIndex, suffix);
+    }
+
+    /// A sealed segment, nothing is read from disk until it is first used.
+    static LogSegment sealed(Path dir, int baseIndex, int indexIntervalBytes) {
+        return new LogSegment(dir, baseIndex, indexIntervalBytes);
+    }
+
+    /// A brand new, empty segment open for appends.
+    static LogSegment create(Path dir, int baseIndex, int indexIntervalBytes) throws IOException {
+        LogSegment s = new LogSegment(dir, baseIndex, indexIntervalBytes);
+        s.channel = FileChannel.open(s.logPath, CREATE, READ, WRITE, TRUNCATE_EXISTING);
+        s.indexChannel = FileChannel.open(s.indexPath, CREATE, WRITE, TRUNCATE_EXISTING);
+        return s;
+    }
+
+    /**
+     * Opens the newest segment for appends. The whole segment is scanned to find its last record,
+     * a torn or corrupt tail is truncated and the sparse index is rebuilt.
+     */
+    static LogSegment recoverActive(Path dir, int baseIndex, int indexIntervalBytes) throws IOException {
+        LogSegment s = new LogSegment(dir, baseIndex, indexIntervalBytes);
+        s.channel = FileChannel.open(s.logPath, CREATE, READ, WRITE);
+        s.indexChannel = FileChannel.open(s.indexPath, CREATE, WRITE, TRUNCATE_EXISTING);
+
+        long fileSize = s.channel.size();
+        s.size = fileSize;
+        long validEnd = s.scan(0, record -> {
+            s.lastIndex = record.getIndex();
+            return true;
+        }, (record, position) -> s.maybeAddIndexEntry(record.getIndex(), position, record.encodedSize()));
+
+        if (validEnd < fileSize) {
+            System.out.println("Truncating torn log tail: " + (fileSize - validEnd) + " bytes at offset " + validEnd + " of " + s.logPath.getFileName());
+            s.channel.truncate(validEnd);
+            s.channel.force(true);
+        }
+        s.size = validEnd;
+        s.channel.position(validEnd); // appends are gathering writes at the channel's position
+        s.writeIndexFile();
+        return s;
+    }
+
+    /// Appends already encoded, consecutive records. Does not force, see {@link #force()}.
+    synchronized void append(List<LogRecord> records) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[records.size()];
+        long position = size;
+        long total = 0;
+
+        for (int i = 0; i < records.size(); i++) {
+            LogRecord r = records.get(i);
+            buffers[i] = ByteBuffer.wrap(r.encode());
+            maybeAddIndexEntry(r.getIndex(), position + total, r.encodedSize());
+            total += buffers[i].remaining();
+        }
+
+        long remaining = total;
+        while (remaining > 0)
+            remaining -= channel.write(buffers);
+
+        size = position + total;
+        lastIndex = records.get(records.size() - 1).getIndex();
+    }
+
+    synchronized void force() throws IOException {
+        channel.force(false);
+        if (indexChannel != null)
+            indexChannel.force(false);
+    }
+
+    /// Stops accepting appends: forces data and index and closes the index file for writing.
+    synchronized void seal() throws IOException {
+        force();
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+    }
+
+    /**
+     * Feeds records with index >= fromIndex to consumer, in order, until consumer returns false.
+     * Returns false if the consumer stopped early or the segment ends in a corrupt record,
+     * since a later segment would not continue where this one ends.
+     */
+    boolean read(int fromIndex, Predicate<LogRecord> consumer) throws IOException {
+        long start;
+        long end;
+        synchronized (this) {
+            ensureOpen();
+            start = floorPosition(fromIndex);
+            end = size; // appends only ever add whole records after it
+        }
+
+        boolean[] stopped = {false};
+        long validEnd = scan(start, record -> {
+            if (record.getIndex() < fromIndex)
+                return true;
+            if (!consumer.test(record)) {
+                stopped[0] = true;
+                return false;
+            }
+            return true;
+        }, null);
+        return !stopped[0] && validEnd >= end;
+    }
+
+    /**
+     * Cuts the segment right before the record at fromIndex and reopens it as the active segment,
+     * which it becomes in the caller's place. Returns the reopened segment, this one is closed.
+     */
+    LogSegment truncateFrom(int fromIndex) throws IOException {
+        long position;
+        synchronized (this) {
+            ensureOpen();
+            position = floorPosition(fromIndex);
+        }
+
+        long[] cut = {-1};
+        long validEnd = scan(position, record -> record.getIndex() < fromIndex, (record, offset) -> {
+            if (record.getIndex() >= fromIndex && cut[0] < 0)
+                cut[0] = offset;
+        });
+        if (cut[0] < 0)
+            cut[0] = validEnd; // nothing from fromIndex on
+
+        close();
+        try (FileChannel writable = FileChannel.open(logPath, WRITE)) {
+            writable.truncate(cut[0]);
+            writable.force(true);
+        }
+        return recoverActive(logPath.getParent(), baseIndex, indexIntervalBytes);
+    }
+
+    /**
+     * Hands out the segment from the record closest before fromIndex as buffers of whole, still encoded
+     * records of about chunkBytes each, for decoding them elsewhere. Only the length fields are looked at:
+     * the chunks end where a length runs past the end of the segment, checksums are left to the decoder,
+     * and the first chunk may start with records below fromIndex.
+     * Returns false if the consumer stopped early.
+     */
+    boolean readChunks(int fromIndex, int chunkBytes, SegmentedLog.ChunkConsumer consumer) throws IOException {
+        long position;
+        synchronized (this) {
+            ensureOpen();
+            position = floorPosition(fromIndex);
+        }
+        long end = size;
+
+        while (position < end) {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(chunkBytes, end - position));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) <= 0)
+                    break;
+            }
+            buf.flip();
+
+            int p = 0;
+            while (buf.limit() - p >= LogRecord.HEADER_SIZE) {
+                int length = buf.getInt(p);
+                if (length < 0 || length > end - position - p - LogRecord.HEADER_SIZE) {
+                    System.out.println("Invalid log record length " + length + " at offset " + (position + p) + " in " + logPath.getFileName());
+                    end = position + p; // nothing after it can be framed
+                    break;
+                }
+                if (buf.limit() - p - LogRecord.HEADER_SIZE < length)
+                    break;
+                p += LogRecord.HEADER_SIZE + length;
+            }
+
+            if (p == 0) {
+                if (buf.limit() < chunkBytes || position >= end)
+                    return true; // a partial record at the end of the segment
+                chunkBytes = LogRecord.HEADER_SIZE + buf.getInt(0); // a single record bigger than a chunk
+                continue;
+            }
+            if (!consumer.accept(logPath.getFileName().toString(), position, buf.limit(p)))
+                return false;
+            position += p;
+        }
+        return true;
+    }
+
+    private interface IndexHook {
+        void onRecord(LogRecord record, long position) throws IOException;
+    }
+
+    /**
+     * Reads records from position up to the current size. Stops at the first incomplete or corrupt record,
+     * or when consumer returns false. Returns the offset right after the last record handed out.
+     */
+    private long scan(long position, Predicate<LogRecord> consumer, IndexHook hook) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long end = size;
+        long filePos = position; // file offset of buf[0]
+        long validEnd = position;
+
+        while (true) {
+            int toRead = (int) Math.min(buf.remaining(), end - (filePos + buf.position()));
+            int n = 0;
+            if (toRead > 0) {
+                buf.limit(buf.position() + toRead);
+                n = channel.read(buf, filePos + buf.position());
+                buf.limit(buf.capacity());
+            }
+            buf.flip();
+
+            try {
+                LogRecord r;
+                int before = buf.position();
+                while ((r = LogRecord.read(buf)) != null) {
+                    if (hook != null)
+                        hook.onRecord(r, filePos + before);
+                    validEnd = filePos + buf.position();
+                    if (!consumer.test(r))
+                        return validEnd;
+                    before = buf.position();
+                }
+            } catch (LogRecord.CorruptRecordException e) {
+                System.out.println(e.getMessage() + " in " + logPath.getFileName());
+                return validEnd;
+            }
+
+            if (n <= 0)
+                return validEnd; // end of segment, anything left in buf is a partial record
+
+            filePos += buf.position();
+            buf.compact();
+
+            if (!buf.hasRemaining()) {
+                // a single record bigger than the buffer
+                ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+    }
+
+    private void maybeAddIndexEntry(int index, long position, int recordSize) throws IOException {
+        if (indexEntries == 0 || bytesSinceIndexEntry >= indexIntervalBytes) {
+            addIndexEntry(index, position);
+            if (indexChannel != null) {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).putInt(index).putLong(position).flip();
+                while (entry.hasRemaining())
+                    indexChannel.write(entry);
+            }
+            bytesSinceIndexEntry = 0;
+        }
+        bytesSinceIndexEntry += recordSize;
+    }
+
+    private void addIndexEntry(int index, long position) {
+        if (indexEntries == indexKeys.length) {
+            indexKeys = Arrays.copyOf(indexKeys, indexEntries * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexEntries * 2);
+        }
+        indexKeys[indexEntries] = index;
+        indexPositions[indexEntries] = position;
+        indexEntries++;
+    }
+
+    private long floorPosition(int index) {
+        int i = Arrays.binarySearch(indexKeys, 0, indexEntries, index);
+        if (i >= 0)
+            return indexPositions[i];
+        int insertion = -i - 1;
+        return insertion == 0 ? 0 : indexPositions[insertion - 1];
+    }
+
+    private void writeIndexFile() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(indexEntries * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < indexEntries; i++)
+            buf.putInt(indexKeys[i]).putLong(indexPositions[i]);
+        buf.flip();
+
+        indexChannel.truncate(0);
+        indexChannel.position(0);
+        while (buf.hasRemaining())
+            indexChannel.write(buf);
+    }
+
+    /// Lazily opens a sealed segment for reading and loads its index, rebuilding it if it is unusable.
+    private void ensureOpen() throws IOException {
+        if (channel != null)
+            return;
+
+        channel = FileChannel.open(logPath, READ);
+        size = channel.size();
+
+        if (Files.exists(indexPath)) {
+            byte[] bytes = Files.readAllBytes(indexPath);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            long previous = -1;
+            while (buf.remaining() >= INDEX_ENTRY_SIZE) {
+                int index = buf.getInt();
+                long position = buf.getLong();
+                if (position <= previous || position >= size)
+                    break; // garbage from an unclean shutdown, keep what we have so far
+                addIndexEntry(index, position);
+                previous = position;
+            }
+        }
+
+        if (indexEntries == 0 && size > 0) {
+            System.out.println("Rebuilding log index for " + logPath.getFileName());
+            scan(0, record -> true, (record, position) -> maybeAddIndexEntry(record.getIndex(), position, record.encodedSize()));
+        }
+    }
+
+    int getBaseIndex() {
+        return baseIndex;
+    }
+
+    /// Only meaningful for the active segment, sealed segments are not scanned on open.
+    int getLastIndex() {
+        return lastIndex;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /// Size on disk, without opening a sealed segment.
+    long getFileSize() throws IOException {
+        return channel != null ? size : Files.size(logPath);
+    }
+
+    Path getLogPath() {
+        return logPath;
+    }
+
+    Path getIndexPath() {
+        return indexPath;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -1,142 +1,300 @@
 package com.leon;
 
+import com.google.protobuf.ByteString;
 import com.leon.gRPC.*;
+import com.leon.helpers.Config;
+import com.leon.helpers.Metrics;
+import com.leon.helpers.Role;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class LoggingService {
-    private int lastLogIndex = 1; // first log is #1
+    private volatile int lastLogIndex = 1; // first log is #1
+    private volatile int lastDurableIndex = 0;
+    private volatile int commitIndex = 0; // highest log index known to be on a majority
+    private volatile int appliedIndex = 0; // highest log index applied to storage
+    private volatile int leaderCommitIndex = 0; // follower: commit index the leader sent last
+    private volatile long lastLeaderContactNanos = 0; // follower: when the leader sent it
     private final String logFilePath;
+    private final SegmentedLog log;
+    private final WriteAheadLog wal;
     private Map<String, FollowerGRPCChannel> followerChannelMap;
+    private volatile List<ReplicationWorker> workers = List.of();
+    private final Object workersLock = new Object(); // serializes membership changes, writes never take it
+    private final ConcurrentSkipListMap<Integer, CompletableFuture<Void>> commitWaiters = new ConcurrentSkipListMap<>();
+    private final Object applyLock = new Object(); // held while logs are applied, so onApplied sees the state of appliedIndex
+    private volatile Runnable onApplied = () -> {
+    };
+
+    // terms and leases, see acceptLeader() and hasReadLease()
+    private final long leaseNanos = TimeUnit.MILLISECONDS.toNanos(Config.LEASE_DURATION_MS);
+    private final long leaseGuardNanos = TimeUnit.MILLISECONDS.toNanos(Config.LEASE_GUARD_MS);
+    private final Object termLock = new Object();
+    private volatile long term = 0; // highest leader term accepted, our own while we lead
+    private long refusedTerm = 0; // follower: newer term turned away while the promise to the current one runs
+    private long promiseUntilNanos = System.nanoTime() + leaseNanos; // we may have made a promise before a restart
+    private volatile long leaderTerm = 0; // term we lead in, 0 - not leader
+    private volatile int termStartIndex = Integer.MAX_VALUE; // leader: the first entry of our term
+    private volatile boolean coordinatorConnected = true; // our ZooKeeper session is known to be alive
+    private volatile Runnable onDeposed = () -> {
+    };
+
+    // most recent logs, by index modulo size, so replication rarely has to go to disk
+    private final AtomicReferenceArray<LogRecord> tailCache = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(Config.REPLICATION_TAIL_CACHE_ENTRIES, 2)));
 
     private SnapshotService snapshotService;
+    private final Metrics metrics;
+
+    // handles AppendEntries responses for all ReplicationWorkers
+    private final ExecutorService replicationExecutor = Executors.newFixedThreadPool(Config.REPLICATION_THREADS, r -> {
+        Thread t = new Thread(r, "replication");
+        t.setDaemon(true);
+        return t;
+    });
 
     /**
-     * Log entry examples:
-     * Log #X: PUT:KEY:VALUE:UNIX_TIMESTAMP
-     * Log #X: DELETE:KEY:VALUE:UNIX_TIMESTAMP
+     * Log entries are binary LogRecords (index, term, op type, key, value, timestamp, CRC32C),
+     * both in the local write-ahead log and in the AppendEntries sent to followers.
+     * On disk they live in a SegmentedLog under the logFilePath directory.
+     * Printed, an entry looks like:
+     * Log #X: PUT:KEY:VALUE:UNIX_TIMESTAMP_MILLIS
      */
 
-    public LoggingService(String logFilePath, Map<String, FollowerGRPCChannel> followerGRPCChannelMap, SnapshotService snapshotService) {
+    public LoggingService(String logFilePath, Map<String, FollowerGRPCChannel> followerGRPCChannelMap, SnapshotService snapshotService,
+                          Metrics metrics) throws IOException {
         this.logFilePath = logFilePath;
+        Path archiveDir = Config.LOG_ARCHIVE_DIR.isBlank() ? null : Path.of(Config.LOG_ARCHIVE_DIR);
+        this.log = new SegmentedLog(Path.of(logFilePath), archiveDir, Config.LOG_SEGMENT_BYTES, Config.LOG_INDEX_INTERVAL_BYTES);
+        this.wal = new WriteAheadLog(log, Config.WAL_GROUP_COMMIT, Config.WAL_MAX_BATCH_SIZE, Config.WAL_LINGER_MICROS);
         this.followerChannelMap = followerGRPCChannelMap;
         this.snapshotService = snapshotService;
-    }
+        this.metrics = metrics;
 
-    /// Writes a CommandRequest cr to local log file
-    /// Called when receiving CommandRequest from User
-    public String writeLocal(CommandRequest cr) {
-        try {
-            String logEntry = createLogString(cr);
+        metrics.gauge("lease.term", () -> term);
+        metrics.gauge("lease.remaining_ms", () -> leaderTerm == 0 ? 0 : Math.max(0, leaseRemainingNanos() / 1_000_000));
+    }
 
-            System.out.println(logEntry);
-            BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true));
-            writer.write(logEntry);
-            writer.newLine();  // Line separator
+    /// Builds a new log entry once the index and term it is written at are known, see appendLocal()
+    @FunctionalInterface
+    public interface NewEntry {
+        LogRecord at(int index, long term);
+    }
 
-            writer.close();
-            incrementLastLogIndex();
-            return logEntry;
-        } catch (IOException e) {
+    /// Writes a batch of new log entries to the local log file, as consecutive logs
+    /// Returns once the whole batch is durable, or null if we do not lead or writing it failed, see appendLocal()
+    public List<LogRecord> writeLocal(List<NewEntry> entries) {
+        CompletableFuture<List<LogRecord>> written = appendLocal(entries);
+        if (written == null)
+            return null;
+        try {
+            return written.join();
+        } catch (CompletionException e) {
             System.out.println("An error occurred while writing the log.");
             e.printStackTrace();
         }
         return null;
     }
 
-    public void writeLocalFromLog(String log) {
-        try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true));
-            writer.write(log);
-            writer.newLine();
-            writer.close();
-        } catch (IOException e) {
-            System.out.println("An error occurred while writing the log.");
-            e.printStackTrace();
+    /// Queues a batch of new log entries for the local log file, as consecutive logs
+    /// Called by the leader's CommandBatcher; each entry is built from the index it is assigned and the term we lead,
+    /// read once for the whole batch. Returns null if we do not lead (any more): a deposed leader's getTerm() is the
+    /// newer leader's term, and entries of it would pass the followers' log matching as that leader's
+    /// The followers' ReplicationWorkers are woken right away, they send the batch while we force it
+    /// The future completes once the whole batch is durable, or fails if writing it failed. The indexes stay taken:
+    /// after a failed write the WriteAheadLog fails every later one, so the log never continues past a hole
+    public CompletableFuture<List<LogRecord>> appendLocal(List<NewEntry> entries) {
+        List<LogRecord> records = new ArrayList<>(entries.size());
+        CompletableFuture<Void> durable;
+
+        // index assignment and enqueueing must happen together so entries hit the file in index order
+        synchronized (this) {
+            long writeTerm = leaderTerm;
+            if (writeTerm == 0)
+                return null;
+            for (NewEntry entry : entries) {
+                LogRecord record = entry.at(lastLogIndex, writeTerm);
+                records.add(record);
+                cacheTail(record);
+                incrementLastLogIndex();
+            }
+            durable = wal.appendAll(records);
         }
+        for (ReplicationWorker worker : workers)
+            worker.signal();
+
+        for (LogRecord record : records)
+            System.out.println(record);
+        return durable.thenApply(v -> {
+            markDurable(records.get(records.size() - 1).getIndex());
+            snapshotService.getPolicy().onLogWritten(encodedSize(records));
+            return records;
+        });
     }
 
-    public void replicateOnFollowers(String log) throws InterruptedException {
-        LogMessage logToReplicate = LogMessage.newBuilder()
-                .setLog(log)
-                .setLogIndex(lastLogIndex - 1)
-                .build();
+    /// Completes once index is on a majority of the cluster. Lagging followers are caught up by their own worker and never hold it up.
+    public CompletableFuture<Void> awaitCommit(int index) {
+        if (commitIndex >= index)
+            return CompletableFuture.completedFuture(null);
 
-        LogResponse response;
-        List<FollowerGRPCChannel> busyFollowers = new ArrayList<>();
+        CompletableFuture<Void> f = commitWaiters.computeIfAbsent(index, i -> new CompletableFuture<>());
+        if (commitIndex >= index) {
+            // commit index moved while we were registering
+            commitWaiters.remove(index);
+            f.complete(null);
+        }
+        return f;
+    }
 
-        for (FollowerGRPCChannel follower : followerChannelMap.values()) {
-            response = follower.blockingStub.appendLog(logToReplicate);
-            if (response.getStatus() == LogStatus.FOLLOWER_BUSY) {
-                // wait a little :)
-                busyFollowers.add(follower);
-            } else if (response.getStatus() == LogStatus.LOG_MISMATCH) {
-                sendMissingLogs(follower, response.getLastEntryIndex());
-            }
+    /**
+     * Recomputes the commit index as the highest log index that a majority of the cluster has durably written.
+     * Like in Raft, that only counts for logs of our own term: a log of an earlier leader may be on a majority
+     * and still be replaced by a later leader that never saw it. It is committed together with the entry that
+     * started our term, see writeTermStart().
+     */
+    public void onFollowerProgress() {
+        List<ReplicationWorker> current = workers;
+        int[] matchIndexes = new int[current.size() + 1];
+
+        matchIndexes[0] = lastDurableIndex;
+        for (int i = 0; i < current.size(); i++)
+            matchIndexes[i + 1] = current.get(i).getMatchIndex();
+
+        Arrays.sort(matchIndexes);
+        int majority = matchIndexes.length / 2 + 1;
+        int onMajority = matchIndexes[matchIndexes.length - majority];
+        if (onMajority >= termStartIndex)
+            advanceCommitIndex(onMajority);
+    }
+
+    /**
+     * Returns up to maxEntries / maxBytes consecutive logs starting at from, served from the in-memory
+     * tail cache when possible and from the segmented log otherwise. Returns null if from was truncated.
+     */
+    public List<LogRecord> readLogs(int from, int maxEntries, int maxBytes) {
+        List<LogRecord> batch = new ArrayList<>();
+        int last = lastLogIndex - 1;
+        int[] bytes = {0};
+
+        for (int i = from; i <= last && batch.size() < maxEntries; i++) {
+            LogRecord cached = tailCache.get(i & (tailCache.length() - 1));
+            if (cached == null || cached.getIndex() != i)
+                break;
+            if (!batch.isEmpty() && bytes[0] + cached.encodedSize() > maxBytes)
+                return batch;
+            batch.add(cached);
+            bytes[0] += cached.encodedSize();
         }
 
-        Thread.sleep(500);
-        for (FollowerGRPCChannel follower : busyFollowers) {
-            // try again
-            response = follower.blockingStub.appendLog(logToReplicate);
-            // todo implement retrys
+        if (!batch.isEmpty() || from > last)
+            return batch;
+
+        if (from < log.getFirstIndex())
+            return null;
+
+        try {
+            log.read(from, record -> {
+                if (record.getIndex() > last || batch.size() >= maxEntries
+                        || (!batch.isEmpty() && bytes[0] + record.encodedSize() > maxBytes))
+                    return false;
+                batch.add(record);
+                bytes[0] += record.encodedSize();
+                return true;
+            });
+        } catch (IOException e) {
+            System.out.println("An error occurred while reading the log file: " + e.getMessage());
         }
+        return batch;
     }
 
-    public void sendMissingLogs(FollowerGRPCChannel follower, int startIndex) {
-        List<String> missingLogs = findLogsFrom(startIndex);
-        LogMessage logToReplicate;
-
-        for (int i = 0; i < missingLogs.size(); i++) {
-            logToReplicate = LogMessage.newBuilder()
-                    .setLog(missingLogs.get(i))
-                    .setLogIndex(startIndex + i)
-                    .build();
+    /// Term of the log at index: 0 for index 0, -1 if it is not in the log (truncated or not written yet).
+    public long termAt(int index) throws IOException {
+        if (index <= 0)
+            return 0;
+        if (index >= lastLogIndex)
+            return -1;
+
+        LogRecord cached = tailCache.get(index & (tailCache.length() - 1));
+        if (cached != null && cached.getIndex() == index)
+            return cached.getTerm();
+        if (index < log.getFirstIndex())
+            return -1;
+
+        long[] found = {-1};
+        log.read(index, record -> {
+            if (record.getIndex() == index)
+                found[0] = record.getTerm();
+            return false;
+        });
+        return found[0];
+    }
 
-            follower.blockingStub.appendLog(logToReplicate);
-            // currently ignores responses
+    public AppendEntriesRequest buildAppendEntries(int prevLogIndex, List<LogRecord> batch) {
+        long prevLogTerm;
+        try {
+            prevLogTerm = termAt(prevLogIndex);
+        } catch (IOException e) {
+            prevLogTerm = -1; // the follower only accepts it if prevLogIndex is committed there
         }
+
+        AppendEntriesRequest.Builder builder = AppendEntriesRequest.newBuilder()
+                .setTerm(term)
+                .setPrevLogIndex(prevLogIndex)
+                .setPrevLogTerm(prevLogTerm)
+                .setCommitIndex(commitIndex);
+        for (LogRecord record : batch)
+            builder.addEntries(ByteString.copyFrom(record.encode()));
+        return builder.build();
     }
 
-    public void restoreState(Node node, String logFileName) {
+    public void restoreState(Node node) {
 
         // see if there is snapshot
-        // snapshots are done every 5 logs
         // if there is, ie up and including log#5 & last log is #8
-        // apply snapshot to state, lastIndex = 5;
-        // after applying snapshot to state
-
-        Snapshot s = snapshotService.readSnapshot();
+        // apply snapshot to state, then apply logs #6 - #8 on top of it
+
+        int snapshotIndex;
+        MappedSnapshot mapped = Config.SNAPSHOT_LAZY_LOAD ? snapshotService.mapSnapshot() : null;
+        if (mapped != null) {
+            // reads are served from the mapped file until the background copy is done
+            node.loadSnapshotLazily(mapped);
+            snapshotIndex = mapped.getLastLogIndex();
+        } else {
+            snapshotIndex = snapshotService.loadSnapshot(node.getStorage());
+        }
 
-        if (s != null) {
-            node.setStorageMap(s.getStorageMap());
-            lastLogIndex = s.getLastLogIndex();
-            System.out.println("Reading from local snapshot - last log is #" + lastLogIndex);
+        if (snapshotIndex > 0) {
+            snapshotIndex = snapshotService.applyDeltas(snapshotIndex);
+            lastLogIndex = snapshotIndex + 1;
+            appliedIndex = snapshotIndex;
+            advanceCommitIndex(snapshotIndex); // snapshots only cover committed logs
+            System.out.println("Reading from local snapshot - last log is #" + snapshotIndex);
         }
 
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(logFileName));
-            System.out.println("Log file found - restoring state");
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (getIndexFromLog(line) > lastLogIndex) {
-                    System.out.println("Applying log" + getIndexFromLog(line));
-                    parseAndApplyLog(node, line);
-                }
+            // a torn tail left behind by a crash mid-write was already cut off when the log was opened;
+            // the read seeks straight to the first entry not covered by the snapshot
+            LogReplayer replayer = new LogReplayer(node, metrics, Config.RECOVERY_THREADS, Config.RECOVERY_CHUNK_BYTES);
+            lastLogIndex = replayer.replay(log, lastLogIndex);
+            if (log.getLastIndex() >= lastLogIndex) {
+                // replay stopped at a corrupt record or a gap; new logs go right after the last good one
+                System.out.println("Dropping the log after #" + (lastLogIndex - 1) + ", the leader sends it again");
+                log.truncateSuffix(lastLogIndex);
             }
-            if (s == null)
-                incrementLastLogIndex();
-
-            reader.close();
+            lastDurableIndex = lastLogIndex - 1;
+            appliedIndex = lastLogIndex - 1; // the commit index is not known yet, see isReadable()
+            restoreTerm();
+            snapshotService.getPolicy().onReplay(replayer.getBytesApplied(), replayer.getElapsedNanos());
+            snapshotService.getPolicy().onLogWritten(replayer.getBytesApplied()); // not covered by the snapshot either
+            System.out.println("Log restored - next log is #" + lastLogIndex);
             // can now start normal interaction
 
-        } catch (FileNotFoundException e) {
-            System.out.println("No log file found. Continuing normal operation");
         } catch (IOException e) {
             System.out.println("An error occurred while reading the log.");
             e.printStackTrace();
@@ -144,81 +302,416 @@ public class LoggingService {
         node.setNotBusy();
     }
 
-    private void parseAndApplyLog(Node node, String log) {
-        String[] parts = log.split(":");
+    /// The term of the last log entry is the newest we accepted, a stale leader must not get our promise after a restart.
+    private void restoreTerm() throws IOException {
+        if (lastLogIndex <= log.getFirstIndex())
+            return;
+        long lastTerm = termAt(lastLogIndex - 1);
+        synchronized (termLock) {
+            if (lastTerm > term)
+                term = lastTerm;
+        }
+        if (term > 0)
+            System.out.println("Last log is of term " + term);
+    }
+
+    /**
+     * Follower: our logs from fromIndex on differ from the leader's. They were written under an older leader
+     * and never committed, so they are cut off the log. Only committed logs are applied, so usually that is all;
+     * right after a restart the replay has applied the whole log though, then the state is rebuilt from the local
+     * snapshot and the log before fromIndex. Snapshots never cover uncommitted logs, see
+     * NodeGRPCServer.maybeSnapshot(). Refuses to touch committed logs.
+     */
+    public void truncateSuffix(Node node, int fromIndex) throws IOException {
+        if (fromIndex <= commitIndex)
+            throw new IOException("Log #" + fromIndex + " is committed, it cannot be replaced");
+
+        System.out.println("Dropping logs #" + fromIndex + " - #" + (lastLogIndex - 1) + ", they conflict with the leader's");
+        synchronized (applyLock) {
+            boolean applied = fromIndex <= appliedIndex;
+            if (applied) {
+                node.setBusy();
+                snapshotService.awaitIdle(); // the snapshot being written has a view of the storage we are about to clear
+            }
+
+            synchronized (this) {
+                log.truncateSuffix(fromIndex);
+                for (int i = 0; i < tailCache.length(); i++) {
+                    LogRecord cached = tailCache.get(i);
+                    if (cached != null && cached.getIndex() >= fromIndex)
+                        tailCache.set(i, null);
+                }
+                lastLogIndex = applied ? 1 : fromIndex;
+                synchronized (commitWaiters) {
+                    lastDurableIndex = Math.min(lastDurableIndex, fromIndex - 1);
+                }
+            }
 
-        String commandType = parts[1].trim();
-        String key = parts[2].trim();
-        String value = parts[3].trim();
+            if (applied) {
+                appliedIndex = 0;
+                node.cancelSnapshotLoad();
+                node.getStorage().clear();
+                restoreState(node);
+            }
+        }
+    }
 
-        if (commandType.equals("PUT")) {
-            node.put(key, value);
-            incrementLastLogIndex();
-        } else if (commandType.equals("DELETE")) {
-            node.delete(key);
-            incrementLastLogIndex();
+    /**
+     * Applies the logs after appliedIndex up to the commit index, in log order, then runs onApplied.
+     * Logs are applied once they are committed and never before, so no state ever holds a log that a
+     * later leader may replace. Logs committed but not durable here yet are applied on a later call.
+     */
+    public void applyCommitted(Node node) {
+        synchronized (applyLock) {
+            int upTo = Math.min(commitIndex, lastDurableIndex);
+            if (appliedIndex >= upTo)
+                return;
+
+            while (appliedIndex < upTo) {
+                List<LogRecord> batch = readLogs(appliedIndex + 1, Config.APPEND_BATCH_MAX_ENTRIES, Config.APPEND_BATCH_MAX_BYTES);
+                if (batch == null || batch.isEmpty()) {
+                    System.out.println("Log #" + (appliedIndex + 1) + " cannot be read, it is not applied");
+                    return;
+                }
+                for (LogRecord record : batch) {
+                    if (record.getIndex() > upTo)
+                        break;
+                    node.apply(record);
+                    appliedIndex = record.getIndex();
+                }
+            }
+            onApplied.run();
         }
     }
 
-    public String createLogString(CommandRequest request) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Called once a snapshot up to and including snapshotIndex is safely on disk.
+     * Drops the log segments it covers; a leader keeps the last LOG_RETENTION_ENTRIES entries
+     * below the snapshot so followers that are slightly behind can still catch up from the log.
+     */
+    public void truncateAfterSnapshot(int snapshotIndex, Role role) {
+        int retain = role == Role.LEADER ? Config.LOG_RETENTION_ENTRIES : 0;
+
+        try {
+            int removed = log.truncatePrefix(snapshotIndex - retain);
+            if (removed > 0)
+                System.out.println("Snapshot at log #" + snapshotIndex + " - truncated " + removed + " log segment(s)");
+        } catch (IOException e) {
+            System.out.println("An error occurred while truncating the log.");
+            e.printStackTrace();
+        }
+    }
 
-        // Append the request ID
-        sb.append("Log #").append(lastLogIndex).append(": ");
+    /**
+     * Follower: the leader sent a snapshot covering everything up to snapshotIndex.
+     * The local log is discarded and continues right after the snapshot.
+     */
+    public synchronized void resetToSnapshot(int snapshotIndex) throws IOException {
+        log.reset(snapshotIndex + 1);
+        for (int i = 0; i < tailCache.length(); i++)
+            tailCache.set(i, null);
+
+        lastLogIndex = snapshotIndex + 1;
+        lastDurableIndex = snapshotIndex;
+        synchronized (applyLock) {
+            appliedIndex = snapshotIndex; // the storage holds the snapshot now
+        }
+        advanceCommitIndex(snapshotIndex);
+    }
 
-        CommandType type = request.getOpType();
+    private static long encodedSize(List<LogRecord> records) {
+        long bytes = 0;
+        for (LogRecord r : records)
+            bytes += r.encodedSize();
+        return bytes;
+    }
 
-        sb.append(type).append(":");
-        sb.append(request.getKey()).append(":");
-        sb.append(request.getValue());
+    public SnapshotService getSnapshotService() {
+        return snapshotService;
+    }
 
-        if (type == CommandType.DELETE)
-            sb.append(System.currentTimeMillis() / 1000L);
-        else
-            sb.append(":").append(System.currentTimeMillis() / 1000L);
+    /// Makes a batch of replicated logs durable with as few fsyncs as possible. They are applied once committed, see applyCommitted().
+    public void appendReplicatedLogs(List<LogRecord> logs) throws IOException {
+        try {
+            wal.appendAll(logs).join();
+            for (LogRecord l : logs)
+                cacheTail(l);
+            lastLogIndex = logs.get(logs.size() - 1).getIndex() + 1;
+            markDurable(logs.get(logs.size() - 1).getIndex());
+            snapshotService.getPolicy().onLogWritten(encodedSize(logs));
+        } catch (CompletionException e) {
+            throw new IOException("Writing replicated logs failed", e.getCause());
+        }
+    }
 
-        return sb.toString();
+    public int getCommitIndex() {
+        return commitIndex;
     }
 
-    public void applyReplicatedLog(Node n, String log) {
-        parseAndApplyLog(n, log);
+    public int getAppliedIndex() {
+        return appliedIndex;
+    }
+
+    /// Leader: called once an index is on a majority. Follower: called with the commit index the leader sent.
+    public void advanceCommitIndex(int index) {
+        synchronized (commitWaiters) {
+            if (index <= commitIndex)
+                return;
+            commitIndex = index;
+        }
+
+        Map<Integer, CompletableFuture<Void>> done = commitWaiters.headMap(index, true);
+        for (CompletableFuture<Void> f : done.values())
+            f.complete(null);
+        done.clear();
+    }
+
+    /// Follower: the leader sent an AppendEntries (or heartbeat) carrying leaderCommit.
+    public void onLeaderContact(int leaderCommit) {
+        leaderCommitIndex = leaderCommit;
+        lastLeaderContactNanos = System.nanoTime();
+    }
+
+    /**
+     * Follower: true if a READ can be answered from local state. Everything the leader had committed when
+     * it last contacted us must be applied here, and that contact must be no older than maxStalenessMs.
+     * Nothing applied may be uncommitted either, which only happens after a restart: the replay applies
+     * the whole log, and the leader may still replace its end.
+     */
+    public boolean isReadable(long maxStalenessMs) {
+        long contact = lastLeaderContactNanos;
+        if (contact == 0 || System.nanoTime() - contact > TimeUnit.MILLISECONDS.toNanos(maxStalenessMs))
+            return false;
+        int applied = appliedIndex;
+        return applied >= leaderCommitIndex && applied <= commitIndex;
+    }
+
+    private void cacheTail(LogRecord record) {
+        tailCache.set(record.getIndex() & (tailCache.length() - 1), record);
+    }
+
+    private void markDurable(int index) {
+        synchronized (commitWaiters) {
+            if (index > lastDurableIndex)
+                lastDurableIndex = index;
+        }
+        if (followerChannelMap != null) // leader, followers take their commit index from the leader
+            onFollowerProgress();
     }
 
     public int getLastLogIndex() {
         return lastLogIndex;
     }
 
+    /// Term of the last log, -1 if it is not known because the log was reset to a snapshot.
+    public long getLastLogTerm() {
+        try {
+            return termAt(lastLogIndex - 1);
+        } catch (IOException e) {
+            System.out.println("An error occurred while reading the log file: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /// Stops replication and closes the log, writes still queued are forced first.
+    public void close() {
+        replicationExecutor.shutdown(); // answers already queued still run
+        try {
+            wal.close();
+        } catch (IOException e) {
+            System.out.println("An error occurred while closing the log.");
+            e.printStackTrace();
+        }
+    }
+
     private void incrementLastLogIndex() {
         this.lastLogIndex++;
     }
 
+    /// Leader only: followerChannelMap holds the followers, each added and removed through addFollower / removeFollower.
     public void setFollowerChannelMap(Map<String, FollowerGRPCChannel> followerChannelMap) {
         this.followerChannelMap = followerChannelMap;
     }
 
-    public List<String> findLogsFrom(int startIndex) {
-        List<String> logs = new ArrayList<>();
+    /// Leader only: starts replicating to a follower that joined. Takes no lock writes need.
+    public void addFollower(FollowerGRPCChannel follower) {
+        synchronized (workersLock) {
+            ReplicationWorker worker = new ReplicationWorker(follower, this, replicationExecutor);
+            follower.setReplicationWorker(worker);
+            worker.start();
+
+            List<ReplicationWorker> updated = new ArrayList<>(workers);
+            updated.add(worker);
+            workers = List.copyOf(updated);
+        }
+        onFollowerProgress(); // cluster size changed, so did the majority
+    }
+
+    /// Leader only: stops replicating to a follower that left.
+    public void removeFollower(FollowerGRPCChannel follower) {
+        ReplicationWorker worker = follower.getReplicationWorker();
+        if (worker == null)
+            return;
+
+        synchronized (workersLock) {
+            List<ReplicationWorker> updated = new ArrayList<>(workers);
+            updated.remove(worker);
+            workers = List.copyOf(updated);
+        }
+        worker.stop();
+        onFollowerProgress();
+    }
+
+    public long getTerm() {
+        return term;
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFilePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                int logIndex = getIndexFromLog(line);
-                if (logIndex >= startIndex) {
-                    logs.add(line);
+    /**
+     * Follower: a leader of requestTerm sent AppendEntries or a snapshot. Accepting it is a promise not to
+     * accept a newer leader until LEASE_DURATION_MS after this contact; that promise is what lets the leader
+     * answer READs on its own, see hasReadLease(). A newer leader has to wait until the promise runs out,
+     * meanwhile the current one is turned away so it cannot renew it. Returns LOG_OK if accepted, STALE_TERM
+     * if a newer leader is known, FOLLOWER_BUSY if a newer leader has to try again later.
+     */
+    public LogStatus acceptLeader(long requestTerm) {
+        return acceptTerm(requestTerm, true);
+    }
+
+    /// Follower: a candidate of requestTerm asks for our vote. Like acceptLeader(), but no promise is made yet.
+    public LogStatus acceptCandidate(long requestTerm) {
+        return acceptTerm(requestTerm, false);
+    }
+
+    private LogStatus acceptTerm(long requestTerm, boolean promise) {
+        long now = System.nanoTime();
+        boolean deposed = false;
+
+        synchronized (termLock) {
+            if (requestTerm < term || requestTerm < refusedTerm)
+                return LogStatus.STALE_TERM;
+            if (requestTerm > term) {
+                if (leaderTerm != 0) {
+                    deposed = true; // we lead an older term, step down before following anyone
+                } else if (now - promiseUntilNanos < 0) {
+                    refusedTerm = requestTerm;
+                    return LogStatus.FOLLOWER_BUSY;
+                } else {
+                    term = requestTerm;
+                    System.out.println("Following the leader of term " + term);
                 }
             }
-        } catch (IOException e) {
-            System.out.println("An error occurred while reading the log file: " + e.getMessage());
+            if (!deposed && promise && leaseNanos > 0)
+                promiseUntilNanos = now + leaseNanos;
         }
 
-        return logs;
+        if (deposed) {
+            onNewerTerm(requestTerm);
+            return LogStatus.FOLLOWER_BUSY;
+        }
+        return LogStatus.LOG_OK;
     }
 
-    private int getIndexFromLog(String log) {
-        String[] parts = log.split(":");
+    /**
+     * Leader: we won the election for newTerm. Waits for a promise we made to the previous leader to run out,
+     * as that leader may still count on it. Must be called before any AppendEntries of the new term goes out.
+     */
+    public void setLeaderTerm(long newTerm) throws InterruptedException {
+        long waitNanos;
+        synchronized (termLock) {
+            term = newTerm;
+            refusedTerm = 0;
+            waitNanos = promiseUntilNanos - System.nanoTime();
+        }
+        if (waitNanos > 0) {
+            System.out.println("Waiting " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms for the previous leader's lease to run out");
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        termStartIndex = Integer.MAX_VALUE;
+        leaderTerm = newTerm;
+        System.out.println("Leading term " + newTerm);
+    }
 
-        String id = parts[0].replaceAll("[^0-9]", "");
-        return Integer.parseInt(id);
+    /**
+     * Leader: writes an empty entry of our term once the followers are known. When it is committed, so is
+     * everything earlier leaders committed, and READs may be answered locally.
+     */
+    public void writeTermStart() {
+        List<LogRecord> records = writeLocal(List.of((index, term) -> LogRecord.fromBatch(index, term, List.of())));
+        if (records == null)
+            return;
+        termStartIndex = records.get(0).getIndex();
+        onFollowerProgress(); // it may be on a majority already, i.e. we are the only node
+        for (ReplicationWorker worker : workers)
+            worker.signal();
     }
-}
 
+    /// Leader: a follower answered with a newer term, another node was elected. Runs onDeposed once per term.
+    public void onNewerTerm(long newerTerm) {
+        long deposedTerm;
+        synchronized (termLock) {
+            deposedTerm = leaderTerm;
+            if (deposedTerm == 0 || newerTerm <= deposedTerm)
+                return;
+            leaderTerm = 0;
+            termStartIndex = Integer.MAX_VALUE;
+            term = newerTerm;
+        }
+        System.out.println("Deposed: the leader of term " + deposedTerm + " found term " + newerTerm);
+        onDeposed.run();
+    }
+
+    /// Leader: our term is over, i.e. because the ZooKeeper session was lost.
+    public void stepDown() {
+        synchronized (termLock) {
+            leaderTerm = 0;
+            termStartIndex = Integer.MAX_VALUE;
+        }
+    }
+
+    public void setOnDeposed(Runnable onDeposed) {
+        this.onDeposed = onDeposed;
+    }
+
+    /// Runs after logs were applied, with nothing applied concurrently, i.e. to open a snapshot view of appliedIndex.
+    public void setOnApplied(Runnable onApplied) {
+        this.onApplied = onApplied;
+    }
+
+    /// Without a live ZooKeeper session another node may be elected any moment, so no READs are answered on the lease.
+    public void setCoordinatorConnected(boolean connected) {
+        coordinatorConnected = connected;
+    }
+
+    /**
+     * Leader: true while a READ can be answered from local state without asking the followers.
+     * A majority, us included, must have acknowledged an AppendEntries sent less than
+     * LEASE_DURATION_MS - LEASE_GUARD_MS ago, and the entry that started our term must be committed and
+     * applied, as must everything earlier leaders committed before it.
+     * With LEASE_DURATION_MS 0 leases are off and the leader answers every READ, as before terms.
+     */
+    public boolean hasReadLease() {
+        if (leaseNanos <= 0)
+            return true;
+        if (leaderTerm == 0 || !coordinatorConnected || appliedIndex < termStartIndex)
+            return false;
+        return leaseRemainingNanos() > 0;
+    }
+
+    /// The majority-th most recent acknowledged send time, the leader counting as now, plus the lease.
+    private long leaseRemainingNanos() {
+        List<ReplicationWorker> current = workers;
+        long now = System.nanoTime();
+        long[] acked = new long[current.size() + 1];
+
+        acked[0] = now;
+        for (int i = 0; i < current.size(); i++)
+            acked[i + 1] = current.get(i).getLastAckSentNanos();
+
+        Arrays.sort(acked);
+        int majority = acked.length / 2 + 1;
+        long start = acked[acked.length - majority];
+        if (start == Long.MIN_VALUE)
+            return 0; // a majority never answered this term
+        return start + leaseNanos - leaseGuardNanos - now;
+    }
+}
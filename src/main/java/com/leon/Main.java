@@ -9,7 +9,7 @@ public class Main {
 
         String zookeeperAddress;
         String port = null;
-        String logFilePath = null;
+        String logFilePath = null; // directory holding the log segments
         String snapshotFilePath = null;
 
         zookeeperAddress = args[0];
@@ -21,10 +21,13 @@ public class Main {
         }
 
         try {
-            if (args.length == 4)
+            if (args.length == 4) {
                 node = new Node(zookeeperAddress, port, snapshotFilePath, logFilePath);
-            else
+                node.start();
+                node.awaitTermination();
+            } else {
                 u = new User(zookeeperAddress);
+            }
         } catch (Exception e) {
             System.out.println("System crashed at boot! Stack trace:");
             e.printStackTrace();
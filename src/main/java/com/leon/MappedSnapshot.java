@@ -0,0 +1,340 @@
+package com.leon;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiPredicate;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A snapshot file mapped into memory, for looking up single keys through its index without loading it.
+ * See {@link SnapshotWriter} for the layout.
+ * <p>
+ * The file is mapped in regions of REGION_BYTES, a single mapping holds less than 2GB. Opening checks the
+ * header and the trailer and walks the block headers, so a node can serve a snapshot of any size right away.
+ * Nothing unchecked is served: the first lookup verifies the index checksum, and a lookup verifies the
+ * checksum of the block its record is in the first time it lands there. Blocks that passed are remembered,
+ * forEach() checks every block again as it copies the snapshot into storage. A lookup that finds damage
+ * throws an UncheckedIOException around a CorruptSnapshotException. Lookups only use absolute reads and are
+ * safe from any thread. The mapping lives as long as this object is reachable.
+ */
+public class MappedSnapshot {
+    private static final int REGION_SHIFT = 30;
+    private static final long REGION_BYTES = 1L << REGION_SHIFT;
+
+    private final MappedByteBuffer[] regions;
+    private final Path path;
+    private final int lastLogIndex;
+    private final long entryCount;
+    private final long indexOffset;
+    private final int slots;
+    private final long[] blockStarts; // offset of each block header, in file order
+    private final AtomicLongArray verifiedBlocks; // one bit per block whose checksum passed
+    private volatile boolean indexVerified = false;
+
+    private MappedSnapshot(MappedByteBuffer[] regions, Path path, int lastLogIndex, long entryCount, long indexOffset, int slots,
+                           long[] blockStarts) {
+        this.regions = regions;
+        this.path = path;
+        this.lastLogIndex = lastLogIndex;
+        this.entryCount = entryCount;
+        this.indexOffset = indexOffset;
+        this.slots = slots;
+        this.blockStarts = blockStarts;
+        this.verifiedBlocks = new AtomicLongArray((blockStarts.length + 63) / 64);
+    }
+
+    /**
+     * Maps path and checks its header and trailer. Returns null if the file cannot be served from a mapping:
+     * it has no index (written by an older version or too many entries). Throws if the file is damaged.
+     */
+    public static MappedSnapshot open(Path path) throws IOException {
+        MappedByteBuffer[] regions;
+        long size;
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            size = channel.size();
+            if (size < SnapshotWriter.HEADER_SIZE)
+                throw new SnapshotReader.CorruptSnapshotException("Snapshot file is truncated");
+            regions = new MappedByteBuffer[(int) ((size + REGION_BYTES - 1) >>> REGION_SHIFT)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = (long) i << REGION_SHIFT;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_BYTES, size - start));
+            }
+        }
+
+        SnapshotReader.checkHeader(regions[0], path);
+        if (regions[0].get(4) < 2)
+            return null;
+        int lastLogIndex = regions[0].getInt(5);
+        long entryCount = regions[0].getLong(9);
+
+        long blocksStart = SnapshotWriter.HEADER_SIZE + SnapshotWriter.BLOCK_HEADER_SIZE; // at least the end marker
+        if (size - blocksStart < SnapshotWriter.TRAILER_SIZE)
+            throw new SnapshotReader.CorruptSnapshotException("Snapshot file is truncated");
+
+        MappedSnapshot snapshot = new MappedSnapshot(regions, path, lastLogIndex, entryCount, 0, 0, new long[0]);
+        long trailer = size - SnapshotWriter.TRAILER_SIZE;
+        long indexOffset = snapshot.getLong(trailer);
+        int slots = snapshot.getInt(trailer + 8);
+        if (indexOffset < blocksStart || slots < 0 || (slots & (slots - 1)) != 0 || (long) slots * 8 != trailer - indexOffset
+                || snapshot.getInt(indexOffset - SnapshotWriter.BLOCK_HEADER_SIZE) != 0)
+            throw new SnapshotReader.CorruptSnapshotException("Invalid snapshot index in " + path);
+
+        if (slots == 0)
+            return null;
+        return new MappedSnapshot(regions, path, lastLogIndex, entryCount, indexOffset, slots, snapshot.blockStarts(indexOffset));
+    }
+
+    /// Offsets of the block headers before the index, only their lengths are read. Throws if they do not end right at it.
+    private long[] blockStarts(long indexOffset) throws IOException {
+        long[] starts = new long[16];
+        int count = 0;
+        long position = SnapshotWriter.HEADER_SIZE;
+
+        while (true) {
+            if (position > indexOffset - SnapshotWriter.BLOCK_HEADER_SIZE)
+                throw new SnapshotReader.CorruptSnapshotException("Snapshot blocks run into the index in " + path);
+            int length = getInt(position);
+            if (length == 0)
+                break;
+            if (length < 0 || length > indexOffset - position - SnapshotWriter.BLOCK_HEADER_SIZE)
+                throw new SnapshotReader.CorruptSnapshotException("Invalid snapshot block length " + length + " at offset " + position);
+
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, count * 2);
+            starts[count++] = position;
+            position += SnapshotWriter.BLOCK_HEADER_SIZE + length;
+        }
+
+        if (position + SnapshotWriter.BLOCK_HEADER_SIZE != indexOffset)
+            throw new SnapshotReader.CorruptSnapshotException("Snapshot blocks end at " + position + ", the index starts at " + indexOffset);
+        return Arrays.copyOf(starts, count);
+    }
+
+    static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /// Returns the value of key, or null if the snapshot does not hold it. Throws UncheckedIOException if the file is damaged.
+    public String get(String key) {
+        long record = find(key);
+        if (record < 0)
+            return null;
+        long valuePos = record + 4 + getInt(record);
+        String value = readString(valuePos, blockEnd(record));
+        if (value == null)
+            throw damaged("Malformed snapshot record at offset " + record);
+        return value;
+    }
+
+    /// Throws UncheckedIOException if the file is damaged.
+    public boolean containsKey(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Offset of key's record, or -1. Probed records are compared before their block is verified: a damaged
+     * one matches nothing, or it matches and the check of its block catches it. A slot pointing outside the
+     * blocks, only in a damaged file, matches nothing.
+     */
+    private long find(String key) {
+        checkIndex();
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int slot = spread(key.hashCode()) & (slots - 1);
+
+        for (int probes = 0; probes < slots; probes++) {
+            long entry = getLong(indexOffset + (long) slot * 8);
+            if (entry == 0)
+                return -1;
+            long record = entry - 1;
+            if (record >= SnapshotWriter.HEADER_SIZE && record <= indexOffset - 4 - k.length && getInt(record) == k.length) {
+                byte[] stored = new byte[k.length];
+                get(record + 4, stored);
+                if (Arrays.equals(stored, k)) {
+                    checkBlock(record);
+                    return record;
+                }
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+        return -1;
+    }
+
+    /// Verifies the index checksum once, the first lookup pays for it.
+    private void checkIndex() {
+        if (indexVerified)
+            return;
+        synchronized (this) {
+            if (indexVerified)
+                return;
+            CRC32C crc = new CRC32C();
+            update(crc, indexOffset, (long) slots * 8 + SnapshotWriter.TRAILER_SIZE - 4);
+            if ((int) crc.getValue() != getInt(indexOffset + (long) slots * 8 + SnapshotWriter.TRAILER_SIZE - 4))
+                throw damaged("Checksum mismatch in snapshot index of " + path);
+            indexVerified = true;
+        }
+    }
+
+    /// Verifies the checksum of the block holding position, unless it passed before. Two threads may both check a block once.
+    private void checkBlock(long position) {
+        int block = blockOf(position);
+        if (block < 0)
+            throw damaged("Snapshot index points before the first block of " + path);
+        long bit = 1L << block;
+        if ((verifiedBlocks.get(block >>> 6) & bit) != 0)
+            return;
+
+        long start = blockStarts[block];
+        int length = getInt(start);
+        CRC32C crc = new CRC32C();
+        update(crc, start + SnapshotWriter.BLOCK_HEADER_SIZE, length);
+        if ((int) crc.getValue() != getInt(start + 4))
+            throw damaged("Checksum mismatch in snapshot block at offset " + start);
+        markVerified(block);
+    }
+
+    private void markVerified(int block) {
+        verifiedBlocks.getAndAccumulate(block >>> 6, 1L << block, (a, b) -> a | b);
+    }
+
+    /// Index of the block whose data holds position.
+    private int blockOf(long position) {
+        int i = Arrays.binarySearch(blockStarts, position);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /// End of the data of the block holding position.
+    private long blockEnd(long position) {
+        long start = blockStarts[blockOf(position)];
+        return start + SnapshotWriter.BLOCK_HEADER_SIZE + getInt(start);
+    }
+
+    private UncheckedIOException damaged(String message) {
+        return new UncheckedIOException(new SnapshotReader.CorruptSnapshotException(message));
+    }
+
+    /// The string at position, or null if its length runs past end.
+    private String readString(long position, long end) {
+        if (position > end - 4)
+            return null;
+        int length = getInt(position);
+        if (length < 0 || length > end - position - 4)
+            return null;
+        byte[] bytes = new byte[length];
+        get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Visits every entry in file order until consumer returns false. Each block's checksum is verified
+     * before its entries are visited, and once all are visited, the entry count and the index checksum.
+     * Throws on the first damage found, entries visited before it are intact.
+     */
+    public void forEach(BiPredicate<String, String> consumer) throws IOException {
+        long position = SnapshotWriter.HEADER_SIZE;
+        long count = 0;
+        int block = 0;
+
+        while (true) {
+            if (position > indexOffset - SnapshotWriter.BLOCK_HEADER_SIZE)
+                throw new SnapshotReader.CorruptSnapshotException("Snapshot blocks run into the index in " + path);
+            int length = getInt(position);
+            int expectedCrc = getInt(position + 4);
+            long start = position + SnapshotWriter.BLOCK_HEADER_SIZE;
+
+            if (length == 0)
+                break;
+            if (length < 0 || length > indexOffset - start)
+                throw new SnapshotReader.CorruptSnapshotException("Invalid snapshot block length " + length + " at offset " + position);
+
+            CRC32C crc = new CRC32C();
+            update(crc, start, length);
+            if ((int) crc.getValue() != expectedCrc)
+                throw new SnapshotReader.CorruptSnapshotException("Checksum mismatch in snapshot block at offset " + position);
+            markVerified(block++); // lookups need not check it again
+
+            long end = start + length;
+            long p = start;
+            while (p < end) {
+                String key = readString(p, end);
+                if (key == null)
+                    throw new SnapshotReader.CorruptSnapshotException("Malformed snapshot record at offset " + p);
+                p += 4 + getInt(p);
+                String value = readString(p, end);
+                if (value == null)
+                    throw new SnapshotReader.CorruptSnapshotException("Malformed snapshot record at offset " + p);
+                p += 4 + getInt(p);
+                count++;
+                if (!consumer.test(key, value))
+                    return;
+            }
+            position = end;
+        }
+
+        if (position + SnapshotWriter.BLOCK_HEADER_SIZE != indexOffset)
+            throw new SnapshotReader.CorruptSnapshotException("Snapshot blocks end at " + position + ", the index starts at " + indexOffset);
+        if (count != entryCount)
+            throw new SnapshotReader.CorruptSnapshotException("Snapshot holds " + count + " entries, header says " + entryCount);
+
+        CRC32C crc = new CRC32C();
+        update(crc, indexOffset, (long) slots * 8 + SnapshotWriter.TRAILER_SIZE - 4);
+        if ((int) crc.getValue() != getInt(indexOffset + (long) slots * 8 + SnapshotWriter.TRAILER_SIZE - 4))
+            throw new SnapshotReader.CorruptSnapshotException("Checksum mismatch in snapshot index of " + path);
+    }
+
+    private int getInt(long position) {
+        MappedByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+        int offset = (int) (position & (REGION_BYTES - 1));
+        if (offset <= region.capacity() - 4)
+            return region.getInt(offset);
+        byte[] bytes = new byte[4];
+        get(position, bytes);
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | bytes[3] & 0xff;
+    }
+
+    private long getLong(long position) {
+        MappedByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+        int offset = (int) (position & (REGION_BYTES - 1));
+        if (offset <= region.capacity() - 8)
+            return region.getLong(offset);
+        return (long) getInt(position) << 32 | getInt(position + 4) & 0xffffffffL;
+    }
+
+    /// Reads dst.length bytes at position, across regions if need be.
+    private void get(long position, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            MappedByteBuffer region = regions[(int) ((position + done) >>> REGION_SHIFT)];
+            int offset = (int) ((position + done) & (REGION_BYTES - 1));
+            int n = Math.min(dst.length - done, region.capacity() - offset);
+            region.get(offset, dst, done, n);
+            done += n;
+        }
+    }
+
+    private void update(CRC32C crc, long position, long length) {
+        while (length > 0) {
+            MappedByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+            int offset = (int) (position & (REGION_BYTES - 1));
+            int n = (int) Math.min(length, region.capacity() - offset);
+            crc.update(region.slice(offset, n));
+            position += n;
+            length -= n;
+        }
+    }
+
+    public int getLastLogIndex() {
+        return lastLogIndex;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+}
@@ -1,49 +1,97 @@
 package com.leon;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.leon.gRPC.LogStatus;
 import com.leon.gRPC.StorageServiceGrpc;
+import com.leon.gRPC.VoteRequest;
+import com.leon.gRPC.VoteResponse;
+import com.leon.helpers.Config;
+import com.leon.helpers.Metrics;
 import com.leon.helpers.Role;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
-import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import com.leon.storage.OffHeapStorageEngine;
+import com.leon.storage.SkipListStorageEngine;
+import com.leon.storage.StorageEngine;
+import com.leon.storage.StripedStorageEngine;
+import io.grpc.*;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class Node implements Watcher {
+    private static final long SESSION_RETRY_MS = 1000; // between attempts to rejoin after the ZooKeeper session expired
+
     private ZooKeeper zk = null;
     private LoggingService logger = null;
     private String port = "";
-    private Map<String, String> storageMap = null;
-
-    private Integer zkSyncMutex;
+    private final String zookeeperAddress;
+    private final StorageEngine storage;
+    private final List<ServerInterceptor> interceptors = new ArrayList<>();
+    private Server grpcServer = null;
+    private NodeGRPCServer service = null;
+    private Thread eventLoop = null;
+
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>(); // ZooKeeper events and step-downs, run by run()
     private String rootZNode = "/root";
     private String nodeNamePrefix = "/node";
+    private String leaderZNode = "/root/leader";
+    private String epochZNode = "/root/epoch"; // the last leader term handed out
     private String grpcAddress; // ip + port
 
     private int nodeID = -1;
+    private String zNodeName = ""; // i.e. node0000000007
+    private String predecessorZNodePath = ""; // follower: the node right before us, the only one we watch
     private volatile Role nodeRole = null;
 
     Map<String, FollowerGRPCChannel> followersChannelMap = null;
-    private String leaderZNodePath = "";
-    private String leaderGRPCAddress = "";
-    private boolean busy = true;
+    private volatile String leaderGRPCAddress = "";
+    private volatile boolean busy = true;
 
     private SnapshotService snapshotService;
+    private final Metrics metrics = new Metrics(); // served by GetMetrics
+    private volatile SnapshotLoader snapshotLoader = null; // set while a mapped snapshot is copied into storage
+    private boolean stopped = false; // guarded by this, start() and shutdown() do not interleave
 
 
+    /// Opens the node's log, nothing runs before start(). Port "0" picks a free port.
     public Node(String zookeeperAddress, String port, String snapshotFilePath, String logFilePath) throws Exception {
 
         this.port = port;
-        this.storageMap = new HashMap<>();
-        this.snapshotService = new SnapshotService(snapshotFilePath, this);
-        this.logger = new LoggingService(logFilePath, null, snapshotService);
+        this.zookeeperAddress = zookeeperAddress;
+        this.storage = createStorageEngine();
+        this.snapshotService = new SnapshotService(snapshotFilePath, this, metrics);
+        this.logger = new LoggingService(logFilePath, null, snapshotService, metrics);
+        this.logger.setOnDeposed(() -> tasks.add(this::stepDown));
+    }
 
-        this.grpcAddress = "localhost" + ":" + port;
+    /// Wraps every gRPC call the node receives, must be added before start().
+    public void addInterceptor(ServerInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
 
-        logger.restoreState(this, logFilePath);
+    /**
+     * Restores the state from snapshot and log, starts serving, then joins the cluster and takes part in the
+     * election. Returns once the node leads or follows; ZooKeeper events are handled on a thread of their own.
+     */
+    public synchronized void start() throws IOException {
+        if (stopped)
+            throw new IOException("Node was stopped");
+        logger.restoreState(this);
+
+        // serving before joining, so the address we register is the port we actually got
+        service = new NodeGRPCServer(this, logger, snapshotService);
+        grpcServer = ServerBuilder.forPort(Integer.parseInt(port))
+                .addService(ServerInterceptors.intercept(service, interceptors))
+                .build()
+                .start();
+        this.grpcAddress = "localhost" + ":" + grpcServer.getPort();
 
         connectToZookeeper(zookeeperAddress);
         joinZoo();
@@ -56,19 +104,68 @@ public class Node implements Watcher {
         }
 
         // if not leader wait for leader info, reply w wrong log index if you're missing logs
-        // followers map should be instantiated after election
+        // followers map is instantiated by the election, if we won it
 
-        if (this.nodeRole == Role.LEADER) {
-            logger.setFollowerChannelMap(followersChannelMap);
+        eventLoop = new Thread(this::run, "node-events-" + port);
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        grpcServer.awaitTermination();
+    }
+
+    /// Leaves the cluster cleanly: closing the ZooKeeper session removes our znodes, so the others react at once.
+    public synchronized void shutdown() {
+        if (stopped)
+            return;
+        stopped = true;
+        if (eventLoop != null)
+            eventLoop.interrupt();
+        if (zk != null) {
+            try {
+                zk.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (grpcServer != null)
+            grpcServer.shutdownNow();
+
+        setNodeRole(null);
+        if (followersChannelMap != null) {
+            for (FollowerGRPCChannel followerChannel : followersChannelMap.values()) {
+                logger.removeFollower(followerChannel);
+                followerChannel.getChannel().shutdownNow();
+            }
+            // the calls that were cancelled hand their callbacks to the replication executor before the channel terminates
+            for (FollowerGRPCChannel followerChannel : followersChannelMap.values()) {
+                try {
+                    followerChannel.getChannel().awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
-        Server grpcServer = ServerBuilder.forPort(Integer.parseInt(port)).addService(new NodeGRPCServer(this, logger, snapshotService)).build();
+        if (service != null)
+            service.shutdown();
+        cancelSnapshotLoad();
+        snapshotService.close();
+        logger.close();
+        System.out.println("Node at " + grpcAddress + " shut down");
+    }
 
-        try {
-            grpcServer.start();
-            this.run(); // start listening
-            grpcServer.awaitTermination();
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static StorageEngine createStorageEngine() {
+        switch (Config.STORAGE_ENGINE) {
+            case "offheap":
+                System.out.println("Using off-heap storage");
+                return new OffHeapStorageEngine(Config.STORAGE_OFF_HEAP_SLAB_BYTES, Config.STORAGE_OFF_HEAP_INITIAL_KEYS);
+            case "striped":
+                return new StripedStorageEngine(Config.STORAGE_STRIPES);
+            case "ordered":
+                return new SkipListStorageEngine();
+            default:
+                throw new IllegalArgumentException("Unknown storage.engine " + Config.STORAGE_ENGINE);
         }
     }
 
@@ -77,7 +174,6 @@ public class Node implements Watcher {
             try {
                 System.out.println("Connecting to ZK...");
                 zk = new ZooKeeper(address, 3000, this);
-                zkSyncMutex = -1;
             } catch (IOException e) {
                 e.printStackTrace();
                 zk = null;
@@ -100,6 +196,7 @@ public class Node implements Watcher {
                 System.out.println("Successfully joined system!");
                 System.out.println("zNode path: " + zNodePath); // i.e /root/node0000000007
 
+                this.zNodeName = zNodePath.substring(rootZNode.length() + 1);
                 this.nodeID = extractIDFromNodeName(zNodePath);
                 System.out.println("Node ID: " + this.nodeID);
 
@@ -111,92 +208,351 @@ public class Node implements Watcher {
         }
     }
 
+    /**
+     * Leader election on the "watch your predecessor" recipe. Nodes are ordered by their sequential znode and
+     * the lowest one leads. Every other node watches only the node right before it, so when a node leaves,
+     * only its successor wakes up: it leads if it is now the lowest, otherwise it watches its new predecessor.
+     * Followers learn the leader's address from /root/leader, and only the leader watches the list of nodes.
+     * The lowest node still needs the others' votes, see collectVotes(); if a node's log is ahead of its own
+     * it goes to the end of the line instead.
+     */
     private void election() throws Exception {
-        List<String> list = zk.getChildren(rootZNode, true);
+        System.out.println("========== ELECTION ===========");
+
+        while (true) {
+            List<String> list = listNodes(false);
+
+            if (list.isEmpty())
+                throw new Exception("0 nodes in system - is Zookeeper up?");
+
+            int position = list.indexOf(zNodeName);
+            if (position < 0)
+                throw new Exception("Own znode " + zNodeName + " is gone - ZooKeeper session expired?");
 
-        for (String s : list) {
-            if (s.equals("leader")) {
-                list.remove(s);
+            if (position == 0) {
+                System.out.println("I'm next in line to lead! Node ID: " + this.nodeID);
+                if (setLeader())
+                    break;
+                continue; // another node's log is ahead of ours, we went to the end of the line
+            }
+
+            // the predecessor may have left since we listed the nodes, then look again
+            String predecessor = rootZNode + '/' + list.get(position - 1);
+            if (zk.exists(predecessor, this) != null) {
+                predecessorZNodePath = predecessor;
+                setNodeRole(Role.FOLLOWER);
+                readLeaderAddress();
+                System.out.println("Following, watching node ID " + extractIDFromNodeName(predecessor) + ". Leader: " + leaderGRPCAddress);
                 break;
             }
         }
 
-        int numOfNodes = list.size();
-        System.out.println("========== ELECTION ===========");
+        System.out.println("======== ELECTION OVER ========");
+    }
 
-        if (numOfNodes == 0)
-            throw new Exception("0 nodes in system - is Zookeeper up?");
+    /// Names of the node znodes under the root, in join order. With watch set, a join or leave is reported once.
+    private List<String> listNodes(boolean watch) throws KeeperException, InterruptedException {
+        List<String> list = new ArrayList<>();
+        for (String child : zk.getChildren(rootZNode, watch ? this : null)) {
+            if (child.startsWith(nodeNamePrefix.substring(1)))
+                list.add(child);
+        }
+        list.sort(Comparator.comparingInt(this::extractIDFromNodeName));
+        return list;
+    }
 
-        printNodeList(list);
+    /// Follower: reads the leader's address and watches /root/leader for the next change, "" while there is no leader.
+    private void readLeaderAddress() throws KeeperException, InterruptedException {
+        try {
+            if (zk.exists(leaderZNode, this) != null) {
+                leaderGRPCAddress = new String(zk.getData(leaderZNode, this, null));
+                return;
+            }
+        } catch (KeeperException.NoNodeException e) {
+            // deleted in between, exists() left a watch for when it is created again
+        }
+        leaderGRPCAddress = "";
+    }
+
+    /// Returns false if we must not lead after all and rejoined the line, see collectVotes().
+    private boolean setLeader() throws InterruptedException, KeeperException {
+        long term = nextTerm();
+        logger.setLeaderTerm(term); // before the first AppendEntries of our term goes out
+        predecessorZNodePath = "";
+
+        if (!collectVotes(term)) {
+            logger.stepDown();
+            rejoin();
+            return false;
+        }
 
-        // leader is the node with the smallest ID value in the system
-        // ID values only keep rising due ZK's SEQUENTIAL mode
+        if (followersChannelMap == null) {
+            followersChannelMap = new ConcurrentHashMap<>();
+            logger.setFollowerChannelMap(followersChannelMap);
+        }
+        createFollowerChannelMap(listNodes(true));
+        logger.writeTermStart();
+
+        setNodeRole(Role.LEADER);
+        leaderGRPCAddress = grpcAddress;
+        publishLeader();
+        return true;
+    }
 
-        int minID = Integer.MAX_VALUE;
-        for (int i = 0; i < numOfNodes; i++) {
-            int id = extractIDFromNodeName(list.get(i));
-            if (id < minID) {
-                minID = id;
-                this.leaderZNodePath = rootZNode + '/' + list.get(i);
+    /// Leader: creates /root/leader with our address. If a deposed leader's is still there, watches it and tries again once it is gone.
+    private void publishLeader() throws KeeperException, InterruptedException {
+        while (true) {
+            try {
+                zk.create(leaderZNode, grpcAddress.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                return;
+            } catch (KeeperException.NodeExistsException e) {
+                if (zk.exists(leaderZNode, this) != null)
+                    return;
             }
         }
+    }
+
+    /**
+     * Raft's vote, asked of every other node before we lead term. Accepting the term turns the previous leader
+     * away, and none of the nodes may have a log ahead of ours: the logs we lack may be committed, and our
+     * AppendEntries would make the others drop them. Nodes still bound by their promise to the previous leader
+     * are asked again. Returns true once a majority, us included, voted for us and none was ahead; false if one
+     * was ahead, a newer term showed up, or no majority voted within LEASE_DURATION_MS + REPLICATION_TIMEOUT_MS.
+     */
+    private boolean collectVotes(long term) throws KeeperException, InterruptedException {
+        VoteRequest request = VoteRequest.newBuilder()
+                .setTerm(term)
+                .setLastLogIndex(logger.getLastLogIndex() - 1)
+                .setLastLogTerm(logger.getLastLogTerm())
+                .build();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.LEASE_DURATION_MS + Config.REPLICATION_TIMEOUT_MS);
+        Map<String, ManagedChannel> channels = new HashMap<>();
 
-        if (minID == this.nodeID) {
-            System.out.println("I'm the new Leader! Node ID: " + this.nodeID);
-            setLeader(list);
-        } else {
-            System.out.println("Leader selected! Leader node ID: " + extractIDFromNodeName(this.leaderZNodePath));
-            byte[] b = zk.getData(this.leaderZNodePath, false, null);
-            this.leaderGRPCAddress = new String(b);
-            setNodeRole(Role.FOLLOWER);
+        try {
+            while (true) {
+                List<String> others = listNodes(false);
+                others.remove(zNodeName);
+
+                Map<String, ListenableFuture<VoteResponse>> calls = new HashMap<>();
+                for (String nodeName : others) {
+                    ManagedChannel channel = channels.get(nodeName);
+                    if (channel == null) {
+                        try {
+                            String address = new String(zk.getData(rootZNode + '/' + nodeName, false, null));
+                            channel = ManagedChannelBuilder.forTarget(address).usePlaintext().build();
+                            channels.put(nodeName, channel);
+                        } catch (KeeperException.NoNodeException e) {
+                            continue; // left meanwhile
+                        }
+                    }
+                    calls.put(nodeName, StorageServiceGrpc.newFutureStub(channel)
+                            .withDeadlineAfter(Config.REPLICATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                            .requestVote(request));
+                }
+
+                int votes = 1;
+                for (Map.Entry<String, ListenableFuture<VoteResponse>> call : calls.entrySet()) {
+                    VoteResponse response;
+                    try {
+                        response = call.getValue().get();
+                    } catch (ExecutionException e) {
+                        continue; // unreachable, it does not count
+                    }
+
+                    int voter = extractIDFromNodeName(call.getKey());
+                    if (response.getStatus() == LogStatus.STALE_TERM) {
+                        System.out.println("Node ID " + voter + " is in term " + response.getTerm() + ", not leading term " + term);
+                        return false;
+                    }
+                    if (response.getLastLogTerm() > request.getLastLogTerm()
+                            || (response.getLastLogTerm() == request.getLastLogTerm() && response.getLastLogIndex() > request.getLastLogIndex())) {
+                        System.out.println("Node ID " + voter + " has log #" + response.getLastLogIndex() + " of term " + response.getLastLogTerm()
+                                + ", ours is #" + request.getLastLogIndex() + " of term " + request.getLastLogTerm() + " - not leading");
+                        return false;
+                    }
+                    if (response.getStatus() == LogStatus.LOG_OK)
+                        votes++;
+                }
+
+                if (votes >= (others.size() + 1) / 2 + 1)
+                    return true;
+                if (System.nanoTime() - deadline > 0) {
+                    System.out.println("Only " + votes + " of " + (others.size() + 1) + " nodes voted for term " + term + " - not leading");
+                    return false;
+                }
+                Thread.sleep(Config.HEARTBEAT_INTERVAL_MS);
+            }
+        } finally {
+            for (ManagedChannel channel : channels.values())
+                channel.shutdownNow();
         }
+    }
 
-        System.out.println("======== ELECTION OVER ========");
+    /// Gives up our place in line: a new znode at the end replaces ours, so the node after us gets its turn to lead.
+    private void rejoin() throws KeeperException, InterruptedException {
+        String previous = rootZNode + '/' + zNodeName;
+        joinZoo();
+        try {
+            zk.delete(previous, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // our session expired, joinZoo() failed as well
+        }
     }
 
-    private void setLeader(List<String> list) throws InterruptedException, KeeperException {
-        setNodeRole(Role.LEADER);
-        createFollowerChannelMap(list);
-        logger.setFollowerChannelMap(followersChannelMap);
+    /**
+     * Hands out the next leader term from the /root/epoch counter, with a compare-and-set on its version.
+     * The term is also above any term in our own log, in case ZooKeeper's data was lost.
+     */
+    private long nextTerm() throws KeeperException, InterruptedException {
+        while (true) {
+            try {
+                Stat stat = new Stat();
+                long last = Long.parseLong(new String(zk.getData(epochZNode, false, stat)));
+                long term = Math.max(last, logger.getTerm()) + 1;
+                zk.setData(epochZNode, Long.toString(term).getBytes(), stat.getVersion());
+                return term;
+            } catch (KeeperException.NoNodeException e) {
+                long term = logger.getTerm() + 1;
+                try {
+                    zk.create(epochZNode, Long.toString(term).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                    return term;
+                } catch (KeeperException.NodeExistsException again) {
+                    // created concurrently, read it
+                }
+            } catch (KeeperException.BadVersionException e) {
+                // moved concurrently, read it again
+            }
+        }
+    }
 
-        Stat s = zk.exists(rootZNode + "/leader", false);
-        if (s == null)
-            zk.create(rootZNode + "/leader", grpcAddress.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
-        zk.getChildren(rootZNode, true);
+    /**
+     * Leader: a follower accepted a newer term, so another node leads. Stops leading, then takes a place at the
+     * end of the line and runs the election again, which leaves us following the new leader and watching both
+     * our predecessor and /root/leader. Without a ZooKeeper session that fails; renewSession() runs the
+     * election once the expiry is reported.
+     */
+    private void stepDown() {
+        if (!stopLeading())
+            return;
 
+        try {
+            rejoin();
+            election();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.println("Could not rejoin the election after stepping down");
+            e.printStackTrace();
+        }
     }
 
-    private void createFollowerChannelMap(List<String> list) {
-        if (followersChannelMap == null)
-            followersChannelMap = new HashMap<>();
+    /// Stops replicating; writes are rejected and READs answered like on any follower from now on. False if we did not lead.
+    private boolean stopLeading() {
+        logger.stepDown();
+        if (nodeRole != Role.LEADER)
+            return false;
+
+        setNodeRole(Role.FOLLOWER);
+        leaderGRPCAddress = "";
+        for (FollowerGRPCChannel followerChannel : followersChannelMap.values()) {
+            logger.removeFollower(followerChannel);
+            followerChannel.getChannel().shutdownNow();
+        }
+        followersChannelMap = null;
+        logger.setFollowerChannelMap(null);
+        try {
+            // if it is still ours: the next leader creates its own, the followers' watches fire
+            Stat stat = new Stat();
+            if (grpcAddress.equals(new String(zk.getData(leaderZNode, false, stat))))
+                zk.delete(leaderZNode, stat.getVersion());
+        } catch (KeeperException e) {
+            // gone already, replaced, or no session: then it goes when the session expires
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Stepped down as leader");
+        return true;
+    }
 
-        Map<String, FollowerGRPCChannel> oldMap = followersChannelMap;
-        followersChannelMap = new HashMap<>();
+    /**
+     * Our ZooKeeper session expired: our znodes are gone and another node may lead already. Stops leading,
+     * opens a new session, joins the line again with a new znode and runs the election, as on start().
+     * Tried again every SESSION_RETRY_MS until it succeeds or the node is shut down.
+     */
+    private void renewSession() {
+        stopLeading();
 
-        for (String nodeName : list) {
+        while (true) {
+            try {
+                synchronized (this) {
+                    if (stopped)
+                        return;
+                    if (zk != null)
+                        zk.close();
+                    zk = null;
+                    connectToZookeeper(zookeeperAddress);
+                }
+                zNodeName = "";
+                joinZoo();
+                election();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                System.out.println("Could not rejoin the cluster with a new ZooKeeper session, trying again");
+                e.printStackTrace();
+            }
 
-            if (extractIDFromNodeName(nodeName) == this.nodeID)
+            try {
+                Thread.sleep(SESSION_RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Leader: applies the difference between the nodes in list and followersChannelMap. Channels of nodes
+     * that left are shut down together with their ReplicationWorker, nodes that joined get both. Nothing here
+     * takes a lock that writes need, so a membership change never stalls the write path.
+     */
+    private void createFollowerChannelMap(List<String> list) {
+        Set<String> current = new HashSet<>(list);
+        current.remove(zNodeName);
+
+        Iterator<Map.Entry<String, FollowerGRPCChannel>> it = followersChannelMap.entrySet().iterator();
+        while (it.hasNext()) {
+            FollowerGRPCChannel followerChannel = it.next().getValue();
+            if (current.contains(followerChannel.getZkNode()))
                 continue;
 
-            FollowerGRPCChannel followerChannel = oldMap.get(nodeName);
+            it.remove();
+            logger.removeFollower(followerChannel);
+            followerChannel.getChannel().shutdownNow();
+            System.out.println("Node ID " + extractIDFromNodeName(followerChannel.getZkNode()) + " left");
+        }
+
+        for (String nodeName : current) {
+            if (followersChannelMap.containsKey(nodeName))
+                continue;
 
             try {
-                if (followerChannel == null) {
-                    byte[] b = zk.getData(rootZNode + '/' + nodeName, false, null);
-                    String grpcConnection = new String(b);
-                    String[] tokens = grpcConnection.split(":");
-                    ManagedChannel channel = ManagedChannelBuilder
-                            .forAddress(tokens[0], Integer.parseInt(tokens[1]))
-                            .usePlaintext()
-                            .build();
-
-                    StorageServiceGrpc.StorageServiceBlockingStub blockingStub = StorageServiceGrpc.newBlockingStub(channel);
-                    followerChannel = new FollowerGRPCChannel(nodeName, grpcConnection, blockingStub);
-
-                } else {
-                    oldMap.remove(nodeName);
-                }
+                byte[] b = zk.getData(rootZNode + '/' + nodeName, false, null);
+                String grpcConnection = new String(b);
+                String[] tokens = grpcConnection.split(":");
+                ManagedChannel channel = ManagedChannelBuilder
+                        .forAddress(tokens[0], Integer.parseInt(tokens[1]))
+                        .usePlaintext()
+                        .build();
+
+                FollowerGRPCChannel followerChannel = new FollowerGRPCChannel(nodeName, grpcConnection, channel);
                 followersChannelMap.put(nodeName, followerChannel);
+                logger.addFollower(followerChannel);
+                System.out.println("Node ID " + extractIDFromNodeName(nodeName) + " joined at " + grpcConnection);
+            } catch (KeeperException.NoNodeException e) {
+                // left again already, the watch reports that too
             } catch (InterruptedException | KeeperException e) {
                 throw new RuntimeException(e);
             }
@@ -205,59 +561,162 @@ public class Node implements Watcher {
 
     public void run() {
         while (true) {
-            // main node loop
-            synchronized (zkSyncMutex) {
-                try {
-                    zkSyncMutex.wait();
-                    System.out.println("System config changed! Re-electing.");
-                    // rerun election
-                    election();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            // main node loop, handles the ZooKeeper watches one at a time
+            try {
+                tasks.take().run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handle(WatchedEvent event) {
+        String path = event.getPath();
+        try {
+            if (nodeRole == Role.LEADER) {
+                if (rootZNode.equals(path) && event.getType() == Watcher.Event.EventType.NodeChildrenChanged)
+                    createFollowerChannelMap(listNodes(true));
+                else if (leaderZNode.equals(path) && event.getType() == Watcher.Event.EventType.NodeDeleted)
+                    publishLeader();
+            } else if (predecessorZNodePath.equals(path) && event.getType() == Watcher.Event.EventType.NodeDeleted) {
+                System.out.println("Node ID " + extractIDFromNodeName(path) + " before us left! Re-electing.");
+                election();
+            } else if (leaderZNode.equals(path)) {
+                readLeaderAddress();
+                System.out.println("Leader: " + (leaderGRPCAddress.isEmpty() ? "none" : leaderGRPCAddress));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
-    synchronized public void process(WatchedEvent event) {
-        synchronized (zkSyncMutex) {
-            zkSyncMutex.notify();
+    public void process(WatchedEvent event) {
+        if (event.getType() == Watcher.Event.EventType.None) {
+            // connection state, not a change in the cluster; a leader cut off from ZooKeeper may be replaced any moment
+            switch (event.getState()) {
+                case SyncConnected -> logger.setCoordinatorConnected(true);
+                case Disconnected -> logger.setCoordinatorConnected(false);
+                case Expired -> {
+                    System.out.println("ZooKeeper session expired!");
+                    logger.setCoordinatorConnected(false);
+                    tasks.add(this::renewSession);
+                }
+            }
+            return;
         }
+        tasks.add(() -> handle(event));
     }
 
-    public void put(String key, String value) {
+    public void put(String key, String value, int logIndex) {
         // assumes values are non-null and correct. in case of already existing key we do an update.
-        this.storageMap.put(key, value);
+        this.storage.put(key, value, logIndex);
     }
 
-    public void delete(String key) {
+    public void delete(String key, int logIndex) {
         // assumes key:value pair exists and simply removes it from the map
-        this.storageMap.remove(key);
+        SnapshotLoader loader = snapshotLoader;
+        if (loader != null)
+            loader.delete(key, logIndex);
+        else
+            this.storage.delete(key, logIndex);
+        snapshotService.onDelete(key);
+    }
+
+    /// Applies a log entry (PUT, DELETE or BATCH), its index becomes the version of every key it writes
+    public void apply(LogRecord log) {
+        for (LogRecord op : log.getOperations()) {
+            switch (op.getOpType()) {
+                case PUT -> put(op.getKey(), op.getValue(), op.getIndex());
+                case DELETE -> delete(op.getKey(), op.getIndex());
+            }
+        }
     }
 
     public String read(String key) {
-        return storageMap.get(key);
+        SnapshotLoader loader = snapshotLoader; // read before storage, the loader may finish in between
+        String value = storage.get(key);
+        if (value != null || loader == null)
+            return value;
+        try {
+            return loader.get(key);
+        } catch (UncheckedIOException e) {
+            snapshotDamaged(loader.getSnapshot(), e.getCause());
+            throw e;
+        }
     }
 
 
     public boolean keyExists(String key) {
-        return this.storageMap.containsKey(key);
+        SnapshotLoader loader = snapshotLoader;
+        if (this.storage.containsKey(key))
+            return true;
+        if (loader == null)
+            return false;
+        try {
+            return loader.containsKey(key);
+        } catch (UncheckedIOException e) {
+            snapshotDamaged(loader.getSnapshot(), e.getCause());
+            throw e;
+        }
     }
 
-    public int extractIDFromNodeName(String nodename) {
-        String id = nodename.replaceAll("[^0-9]", "");
-        return Integer.parseInt(id);
+    /**
+     * Starts serving a mapped snapshot in place of the storage content and copies it into storage
+     * on a background thread. Logs after the snapshot can be applied right away.
+     */
+    public void loadSnapshotLazily(MappedSnapshot snapshot) {
+        storage.clear();
+        SnapshotLoader loader = new SnapshotLoader(snapshot, storage);
+        snapshotLoader = loader;
+
+        Thread t = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                if (loader.load()) {
+                    snapshotLoader = null;
+                    System.out.println("Loaded snapshot up to log #" + snapshot.getLastLogIndex() + " into storage: "
+                            + snapshot.getEntryCount() + " entries in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+                }
+            } catch (IOException e) {
+                snapshotDamaged(snapshot, e);
+            }
+        }, "snapshot-loader");
+        t.setDaemon(true);
+        t.start();
     }
 
-    private void printNodeList(List<String> list) {
-        if (list.size() == 1) {
-            System.out.println("There is " + list.size() + " node in the system currently.");
-        } else {
-            System.out.println("There are a total of " + list.size() + " nodes in the system currently.");
-            System.out.println("IDs of nodes in the system:");
-            for (String s : list) System.out.print(extractIDFromNodeName(s) + " ");
-            System.out.println();
+    /// The mapped snapshot we serve from is damaged. We may have served from it already, so stop; a restart recovers from the log and the leader
+    private void snapshotDamaged(MappedSnapshot snapshot, IOException e) {
+        synchronized (this) {
+            if (stopped)
+                return;
         }
+        System.out.println("Snapshot up to log #" + snapshot.getLastLogIndex() + " is damaged, leaving the cluster: " + e.getMessage());
+        logger.getSnapshotService().discardBase(snapshot.getLastLogIndex());
+        shutdown();
+    }
+
+    /// Stops copying a mapped snapshot into storage, i.e. because the leader is installing a new one
+    public void cancelSnapshotLoad() {
+        SnapshotLoader loader = snapshotLoader;
+        if (loader != null) {
+            loader.cancel();
+            snapshotLoader = null;
+        }
+    }
+
+    /// True while storage does not hold the whole state yet, see loadSnapshotLazily()
+    public boolean isLoadingSnapshot() {
+        return snapshotLoader != null;
+    }
+
+    public int extractIDFromNodeName(String nodename) {
+        String id = nodename.replaceAll("[^0-9]", "");
+        return Integer.parseInt(id);
     }
 
     public Role getNodeRole() {
@@ -268,6 +727,11 @@ public class Node implements Watcher {
         this.nodeRole = nodeRole;
     }
 
+    /// Where this node serves, known once start() has bound the port.
+    public String getGRPCAddress() {
+        return grpcAddress;
+    }
+
     public String getLeaderGRPCAddress() {
         return leaderGRPCAddress;
     }
@@ -288,11 +752,15 @@ public class Node implements Watcher {
         busy = false;
     }
 
-    public Map<String, String> getStorageMap() {
-        return storageMap;
+    public StorageEngine getStorage() {
+        return storage;
+    }
+
+    public LoggingService getLoggingService() {
+        return logger;
     }
 
-    public void setStorageMap(Map<String, String> storageMap) {
-        this.storageMap = storageMap;
+    public Metrics getMetrics() {
+        return metrics;
     }
 }
@@ -1,25 +1,46 @@
 package com.leon;
 
-import com.google.api.Logging;
+import com.google.protobuf.ByteString;
 import com.leon.gRPC.*;
+import com.leon.helpers.Config;
 import com.leon.helpers.Role;
+import com.leon.storage.OrderedStorageEngine;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import org.apache.zookeeper.server.admin.Command;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class NodeGRPCServer extends StorageServiceGrpc.StorageServiceImplBase {
 
     public final Node node;
     public final LoggingService logger;
 
-    private final int SNAPSHOT_SCHEDULE_LOGS = 15;
-    private int logsUntilSnapshot = 15;
 
     private SnapshotService snapshotService;
+    private final CommandBatcher batcher;
 
     public NodeGRPCServer(Node node, LoggingService logger, SnapshotService snapshotService) {
         this.node = node;
         this.logger = logger;
         this.snapshotService = snapshotService;
+        this.batcher = new CommandBatcher(node, logger, Config.COMMAND_BATCH_MAX_SIZE, Config.COMMAND_LINGER_MICROS,
+                Config.COMMAND_MAX_PENDING_BATCHES);
+        logger.setOnApplied(this::maybeSnapshot);
+    }
+
+    /// The node is stopping: no more writes are taken.
+    public void shutdown() {
+        batcher.stop();
     }
 
     public void command(CommandRequest cr, StreamObserver<CommandResponse> responseObserver) {
@@ -47,12 +68,8 @@ public class NodeGRPCServer extends StorageServiceGrpc.StorageServiceImplBase {
                         break;
                     }
 
-                    String log = logger.writeLocal(cr); // log logic should contain write and increase log index;
-                    logger.replicateOnFollowers(log);
-
-                    node.put(key, value);
-                    response = buildOKStatus(reqID);
-                    --logsUntilSnapshot;
+                    submitWrite(cr, responseObserver);
+                    return;
                 }
                 case DELETE -> {
                     if (key.isBlank()) {
@@ -63,20 +80,16 @@ public class NodeGRPCServer extends StorageServiceGrpc.StorageServiceImplBase {
                         break;
                     }
 
-                    String log = logger.writeLocal(cr);
-                    logger.replicateOnFollowers(log);
-
-                    node.delete(key);
-                    response = buildOKStatus(reqID);
-                    --logsUntilSnapshot;
                     // todo implement that OK status returns values provided by client from memory
+                    submitWrite(cr, responseObserver);
+                    return;
                 }
 
                 case READ -> {
                     // READ request ignores value field from user.
                     // todo make this more strict, for security reasons
 
-                    if (node.getNodeRole() != Role.LEADER && !isSyncedWithLeader()) {
+                    if (!canServeRead(cr.getMaxStalenessMs())) {
                         response = buildNotSynced(reqID);
                         break;
                     }
@@ -84,12 +97,14 @@ public class NodeGRPCServer extends StorageServiceGrpc.StorageServiceImplBase {
                     if (key.isBlank()) {
                         response = buildKeyOrValueNotProvidedStatus(reqID);
                         break;
-                    } else if (!node.keyExists(key)) {
+                    }
+
+                    String valueFromMap = node.read(key); // single lookup, the key may be deleted concurrently
+                    if (valueFromMap == null) {
                         response = buildKeyNotFoundStatus(reqID);
                         break;
                     }
 
-                    String valueFromMap = node.read(key);
                     response = CommandResponse.newBuilder()
                             .setRequestId(reqID)
                             .setStatus(RequestStatus.STATUS_OK)
@@ -107,71 +122,414 @@ public class NodeGRPCServer extends StorageServiceGrpc.StorageServiceImplBase {
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Executes many operations in one call. The valid writes go into a single BATCH log entry, so they are
+     * replicated and applied all together; invalid ones are answered individually and left out. Reads are
+     * answered in one pass after the writes are applied, so they see them. Read-only batches work on followers.
+     */
+    public void batch(BatchRequest request, StreamObserver<BatchResponse> responseObserver) {
+        List<CommandRequest> ops = request.getOperationsList();
+        CommandResponse[] results = new CommandResponse[ops.size()];
+        List<CommandRequest> writes = new ArrayList<>();
+        Map<String, Boolean> exists = new HashMap<>(); // keys written earlier in this batch
+
+        for (int i = 0; i < ops.size(); i++) {
+            CommandRequest op = ops.get(i);
+            CommandType type = CommandType.forNumber(op.getOpTypeValue());
+            String key = op.getKey();
+
+            if (type == null || type == CommandType.BATCH) {
+                results[i] = buildUnrecognizedStatus(op.getRequestId());
+            } else if (type == CommandType.PUT) {
+                if (!checkPutValues(key, op.getValue())) {
+                    results[i] = buildKeyOrValueNotProvidedStatus(op.getRequestId());
+                } else {
+                    writes.add(op);
+                    exists.put(key, true);
+                }
+            } else if (type == CommandType.DELETE) {
+                if (key.isBlank()) {
+                    results[i] = buildKeyOrValueNotProvidedStatus(op.getRequestId());
+                } else if (!exists.getOrDefault(key, node.keyExists(key))) {
+                    results[i] = buildKeyNotFoundStatus(op.getRequestId());
+                } else {
+                    writes.add(op);
+                    exists.put(key, false);
+                }
+            }
+            // READs are answered in finishBatch
+        }
+
+        if (writes.isEmpty()) {
+            finishBatch(request, results, true, responseObserver);
+            return;
+        }
 
-        if (logsUntilSnapshot == 0) {
-            snapshotService.makeSnapshot(logger.getLastLogIndex()-1);
-            logsUntilSnapshot = SNAPSHOT_SCHEDULE_LOGS;
+        if (node.getNodeRole() != Role.LEADER) {
+            responseObserver.onNext(BatchResponse.newBuilder()
+                    .setRequestId(request.getRequestId())
+                    .setStatus(RequestStatus.REJECTED_NOT_LEADER)
+                    .setLeaderAddress(node.getLeaderGRPCAddress())
+                    .build());
+            responseObserver.onCompleted();
+            return;
         }
+
+        batcher.submitBatch(writes).whenComplete((replicated, e) -> {
+            if (e != null) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            finishBatch(request, results, replicated, responseObserver);
+        });
     }
 
-    public void appendLog(LogMessage l, StreamObserver<LogResponse> responseObserver) {
-        // get log in as string format defined in logging service
-        // check if local last log index+1 == what is being sent
-        // apply log locally
+    private void finishBatch(BatchRequest request, CommandResponse[] results, boolean replicated, StreamObserver<BatchResponse> responseObserver) {
+        boolean readable = canServeRead(request.getMaxStalenessMs());
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null)
+                continue;
+
+            CommandRequest op = request.getOperations(i);
+            if (op.getOpType() != CommandType.READ) {
+                results[i] = replicated ? buildOKStatus(op.getRequestId()) : buildReplicationTimeoutStatus(op.getRequestId());
+            } else if (!readable) {
+                results[i] = buildNotSynced(op.getRequestId());
+            } else if (op.getKey().isBlank()) {
+                results[i] = buildKeyOrValueNotProvidedStatus(op.getRequestId());
+            } else {
+                String value = node.read(op.getKey());
+                results[i] = value == null ? buildKeyNotFoundStatus(op.getRequestId()) : CommandResponse.newBuilder()
+                        .setRequestId(op.getRequestId())
+                        .setStatus(RequestStatus.STATUS_OK)
+                        .setKey(op.getKey())
+                        .setValue(value)
+                        .build();
+            }
+        }
 
-        int lastLogIndex = logger.getLastLogIndex();
+        responseObserver.onNext(BatchResponse.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setStatus(RequestStatus.STATUS_OK)
+                .addAllResults(Arrays.asList(results))
+                .build());
+        responseObserver.onCompleted();
+    }
 
-        LogResponse response;
-        String log = l.getLog();
-        int logIndex = l.getLogIndex();
+    /**
+     * Streams the entries of a key range or prefix in pages, see ScanStreamer. Needs an ordered
+     * storage engine. The same check as for a READ applies.
+     */
+    public void scan(ScanRequest request, StreamObserver<ScanPage> responseObserver) {
+        if (!(node.getStorage() instanceof OrderedStorageEngine storage)) {
+            responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("Scan needs storage.engine=ordered").asRuntimeException());
+            return;
+        }
+        if (node.isLoadingSnapshot()) { // the engine does not hold every key yet, only single key lookups work
+            responseObserver.onError(Status.UNAVAILABLE.withDescription("Snapshot is still being loaded").asRuntimeException());
+            return;
+        }
+
+        if (!canServeRead(request.getMaxStalenessMs())) {
+            responseObserver.onNext(ScanPage.newBuilder()
+                    .setRequestId(request.getRequestId())
+                    .setStatus(RequestStatus.NOT_SYNCED)
+                    .build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        new ScanStreamer(storage, (ServerCallStreamObserver<ScanPage>) responseObserver, request).start();
+    }
+
+    /// Hands a validated PUT / DELETE to the CommandBatcher, the response is sent once its batch is done.
+    private void submitWrite(CommandRequest cr, StreamObserver<CommandResponse> responseObserver) {
+        Integer reqID = cr.getRequestId();
+
+        batcher.submit(cr).whenComplete((replicated, e) -> {
+            if (e != null) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(replicated ? buildOKStatus(reqID) : buildReplicationTimeoutStatus(reqID));
+            responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * Receives the leader's snapshot in chunks into a temp file. Once the last chunk is in, the file is
+     * forced and atomically swapped in as our snapshot, the state is replaced with it and the log restarts
+     * right after the snapshot's last index. Appends are answered FOLLOWER_BUSY in the meantime.
+     */
+    public StreamObserver<SnapshotChunk> installSnapshot(StreamObserver<LogResponse> responseObserver) {
+        return new StreamObserver<>() {
+            private FileChannel out = null;
+            private long received = 0;
+            private int lastLogIndex = -1;
+            private boolean finished = false;
+
+            @Override
+            public void onNext(SnapshotChunk chunk) {
+                if (finished)
+                    return;
+
+                try {
+                    if (out == null) {
+                        LogStatus accepted = logger.acceptLeader(chunk.getTerm());
+                        if (accepted != LogStatus.LOG_OK) {
+                            finished = true;
+                            responseObserver.onNext(buildTermRejected(accepted));
+                            responseObserver.onCompleted();
+                            return;
+                        }
+                        node.setBusy();
+                        lastLogIndex = chunk.getLastLogIndex();
+                        out = FileChannel.open(snapshotService.installTempPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        System.out.println("Receiving snapshot up to log #" + lastLogIndex + " from leader");
+                    }
+
+                    if (chunk.getOffset() != received || chunk.getLastLogIndex() != lastLogIndex)
+                        throw new IOException("Unexpected snapshot chunk at offset " + chunk.getOffset() + ", expected " + received);
+
+                    ByteBuffer data = chunk.getData().asReadOnlyByteBuffer();
+                    while (data.hasRemaining())
+                        received += out.write(data);
+
+                    if (chunk.getDone())
+                        finish();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    abort();
+                    responseObserver.onNext(buildLogIOError(logger.getLastLogIndex()));
+                    responseObserver.onCompleted();
+                }
+            }
+
+            private void finish() throws IOException {
+                finished = true;
+                out.force(true);
+                out.close();
+
+                synchronized (NodeGRPCServer.this) { // no appendEntries while the state is swapped
+                    int snapshotIndex = snapshotService.installSnapshot(node.getStorage());
+                    logger.resetToSnapshot(snapshotIndex);
+                }
+                node.setNotBusy();
+                System.out.println("Installed snapshot up to log #" + lastLogIndex);
+
+                responseObserver.onNext(buildLogOK(lastLogIndex));
+                responseObserver.onCompleted();
+            }
+
+            private void abort() {
+                finished = true;
+                try {
+                    if (out != null)
+                        out.close();
+                    Files.deleteIfExists(snapshotService.installTempPath());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                node.setNotBusy();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                System.out.println("Snapshot transfer from leader failed: " + t.getMessage());
+                if (!finished)
+                    abort();
+            }
+
+            @Override
+            public void onCompleted() {
+                if (!finished) {
+                    abort();
+                    responseObserver.onNext(buildLogIOError(logger.getLastLogIndex()));
+                    responseObserver.onCompleted();
+                }
+            }
+        };
+    }
+
+    /**
+     * Called between two applied logs, see LoggingService.setOnApplied(); asks the snapshot policy whether one
+     * is due, see SnapshotPolicy. Only a state that is all committed is snapshotted: after a restart the replay
+     * applied logs that may still be replaced by another leader's, see LoggingService.truncateSuffix().
+     */
+    private void maybeSnapshot() {
+        if (logger.getAppliedIndex() > logger.getCommitIndex())
+            return;
+        if (!node.isLoadingSnapshot() && snapshotService.getPolicy().shouldSnapshot())
+            takeSnapshot();
+    }
+
+    /// The snapshot is written in the background and truncates the log once done.
+    private void takeSnapshot() {
+        int snapshotIndex = logger.getAppliedIndex();
+        snapshotService.snapshotAsync(snapshotIndex).thenAccept(done -> {
+            if (done)
+                logger.truncateAfterSnapshot(snapshotIndex, node.getNodeRole());
+        });
+    }
+
+    /**
+     * A node that is about to lead asks for our vote, see Node.collectVotes(). Accepting its term means turning
+     * away older leaders from now on; whether our log is ahead of the candidate's is for the candidate to judge,
+     * so we answer with our last log either way.
+     */
+    public synchronized void requestVote(VoteRequest request, StreamObserver<VoteResponse> responseObserver) {
+        LogStatus accepted = node.busy() ? LogStatus.FOLLOWER_BUSY : logger.acceptCandidate(request.getTerm());
+        responseObserver.onNext(VoteResponse.newBuilder()
+                .setStatus(accepted)
+                .setTerm(logger.getTerm())
+                .setLastLogIndex(logger.getLastLogIndex() - 1)
+                .setLastLogTerm(logger.getLastLogTerm())
+                .build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Replication from the leader: entries must directly follow prevLogIndex, and our log at prevLogIndex
+     * must be of prevLogTerm. Entries we already have with the same term (i.e. a retried batch) are skipped.
+     * From the first one whose term differs our log is truncated, those were written under an older leader.
+     * The rest are validated and made durable together, only then is the batch acknowledged. Logs are applied
+     * once the leader's commit index covers them, see LoggingService.applyCommitted().
+     */
+    public synchronized void appendEntries(AppendEntriesRequest request, StreamObserver<LogResponse> responseObserver) {
+        int nextIndex = logger.getLastLogIndex();
+        int prevLogIndex = request.getPrevLogIndex();
 
         if (node.busy()) {
-            response = buildFollowerBusy();
-            responseObserver.onNext(response);
+            responseObserver.onNext(buildFollowerBusy());
             responseObserver.onCompleted();
-            System.out.println("Leader tried replicating but I'm busy");
             return;
         }
 
-        if (logIndex != lastLogIndex) {
-            response = buildLogMismatch(lastLogIndex);
-            responseObserver.onNext(response);
+        LogStatus accepted = logger.acceptLeader(request.getTerm());
+        if (accepted != LogStatus.LOG_OK) {
+            responseObserver.onNext(buildTermRejected(accepted));
             responseObserver.onCompleted();
-            System.out.println("LOG MISMATCH: Last local log is #" + lastLogIndex);
             return;
         }
 
-        System.out.println(log);
+        logger.onLeaderContact(request.getCommitIndex());
 
-        logger.applyReplicatedLog(node, log);
-        logger.writeLocalFromLog(log);
+        if (prevLogIndex + 1 > nextIndex) {
+            responseObserver.onNext(buildLogMismatch(nextIndex));
+            responseObserver.onCompleted();
+            System.out.println("LOG MISMATCH: Last local log is #" + nextIndex + ", leader sent logs after #" + prevLogIndex);
+            return;
+        }
 
-        response = buildLogOK(logIndex); // returns the index of log that was just written to sender
+        List<LogRecord> toAppend = new ArrayList<>(request.getEntriesCount());
+        int conflictIndex = 0;
+        try {
+            // committed logs are the same on every node, anything after them has to match the leader's term
+            if (prevLogIndex > logger.getCommitIndex()) {
+                long prevLogTerm = logger.termAt(prevLogIndex);
+                if (request.getPrevLogTerm() < 0 || prevLogTerm != request.getPrevLogTerm()) {
+                    int from = logger.getCommitIndex() + 1;
+                    responseObserver.onNext(buildLogMismatch(from));
+                    responseObserver.onCompleted();
+                    System.out.println("LOG MISMATCH: Log #" + prevLogIndex + " is of term " + prevLogTerm + ", the leader's of term "
+                            + request.getPrevLogTerm() + ", asking for logs from #" + from);
+                    return;
+                }
+            }
 
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+            int expected = prevLogIndex + 1;
+            for (ByteString entry : request.getEntriesList()) {
+                LogRecord record = LogRecord.decode(entry.toByteArray());
+                if (record.getIndex() != expected)
+                    throw new LogRecord.CorruptRecordException("Expected log #" + expected + " but got #" + record.getIndex());
+                if (conflictIndex == 0 && record.getIndex() < nextIndex) {
+                    long localTerm = logger.termAt(record.getIndex()); // -1: covered by our snapshot, so committed
+                    if (localTerm < 0 || localTerm == record.getTerm()) {
+                        expected++;
+                        continue;
+                    }
+                    conflictIndex = record.getIndex();
+                }
+                toAppend.add(record);
+                expected++;
+            }
+        } catch (LogRecord.CorruptRecordException e) {
+            responseObserver.onNext(buildLogIOError(nextIndex));
+            responseObserver.onCompleted();
+            System.out.println("Received corrupt batch after log #" + prevLogIndex + ": " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            responseObserver.onNext(buildLogIOError(nextIndex));
+            responseObserver.onCompleted();
+            return;
+        }
 
-        --logsUntilSnapshot;
+        // everything up to prevLogIndex matches the leader's log now
+        logger.advanceCommitIndex(Math.min(request.getCommitIndex(), prevLogIndex));
 
-        if (logsUntilSnapshot == 0) {
-            snapshotService.makeSnapshot(logger.getLastLogIndex()-1);
-            logsUntilSnapshot = SNAPSHOT_SCHEDULE_LOGS;
+        try {
+            if (conflictIndex > 0) {
+                logger.truncateSuffix(node, conflictIndex);
+                if (logger.getLastLogIndex() != conflictIndex) {
+                    // the log before the conflict could not be replayed completely, have the leader send it again
+                    responseObserver.onNext(buildLogMismatch(logger.getLastLogIndex()));
+                    responseObserver.onCompleted();
+                    return;
+                }
+            }
+            if (!toAppend.isEmpty())
+                logger.appendReplicatedLogs(toAppend);
+        } catch (IOException e) {
+            e.printStackTrace();
+            responseObserver.onNext(buildLogIOError(logger.getLastLogIndex()));
+            responseObserver.onCompleted();
+            return;
         }
+
+        int matched = prevLogIndex + request.getEntriesCount();
+        logger.advanceCommitIndex(Math.min(request.getCommitIndex(), matched));
+
+        responseObserver.onNext(buildLogOK(matched));
+        responseObserver.onCompleted();
+
+        logger.applyCommitted(node);
     }
 
+    public void getMetrics(MetricsRequest request, StreamObserver<MetricsResponse> responseObserver) {
+        responseObserver.onNext(MetricsResponse.newBuilder().putAllValues(node.getMetrics().collect()).build());
+        responseObserver.onCompleted();
+    }
 
     private boolean checkPutValues(String key, String value) {
         // both key and value must not be "". return true if values are correct
         return !key.isBlank() && !value.isBlank();
     }
 
-    private boolean isSyncedWithLeader() {
-        // ask leader for last log
-        // check your log
-        // log indexes match => synced
+    /// A leader answers READs locally while it holds the lease, a follower while it is in sync with the leader.
+    private boolean canServeRead(long maxStalenessMs) {
+        if (node.getNodeRole() != Role.LEADER)
+            return isSyncedWithLeader(maxStalenessMs);
+        if (logger.hasReadLease())
+            return true;
+        node.getMetrics().increment("lease.reads_rejected");
         return false;
     }
 
+    /**
+     * Read-index check for a follower READ: the leader piggybacks its commit index on every AppendEntries
+     * and heartbeat, the follower is in sync once it has applied up to the last one it saw, and that was
+     * recently enough. maxStalenessMs comes from the request, 0 means READ_MAX_STALENESS_MS.
+     */
+    private boolean isSyncedWithLeader(long maxStalenessMs) {
+        if (node.busy())
+            return false; // restoring or installing a snapshot
+        return logger.isReadable(maxStalenessMs > 0 ? maxStalenessMs : Config.READ_MAX_STALENESS_MS);
+    }
+
     private CommandResponse buildOKStatus(Integer reqID) {
         return CommandResponse.newBuilder().
                 setRequestId(reqID).
@@ -179,6 +537,13 @@ public class NodeGRPCServer extends StorageServiceGrpc.StorageServiceImplBase {
                 build();
     }
 
+    private CommandResponse buildReplicationTimeoutStatus(Integer reqID) {
+        return CommandResponse.newBuilder().
+                setRequestId(reqID).
+                setStatus(RequestStatus.REPLICATION_TIMEOUT).
+                build();
+    }
+
     private CommandResponse buildRejectedNotLeaderStatus(Integer reqID) {
         String leaderGRPCAddress = node.getLeaderGRPCAddress(); // might be empty
         return CommandResponse.newBuilder()
@@ -224,12 +589,27 @@ public class NodeGRPCServer extends StorageServiceGrpc.StorageServiceImplBase {
                 .build();
     }
 
+    private LogResponse buildLogIOError(int lastEntryIndex) {
+        return LogResponse.newBuilder()
+                .setLastEntryIndex(lastEntryIndex)
+                .setStatus(LogStatus.IO_ERROR)
+                .build();
+    }
+
     private LogResponse buildFollowerBusy() {
         return LogResponse.newBuilder()
                 .setStatus(LogStatus.FOLLOWER_BUSY)
                 .build();
     }
 
+    /// STALE_TERM or FOLLOWER_BUSY for a leader whose term we do not accept (yet), with our term.
+    private LogResponse buildTermRejected(LogStatus status) {
+        return LogResponse.newBuilder()
+                .setStatus(status)
+                .setTerm(logger.getTerm())
+                .build();
+    }
+
     private LogResponse buildLogOK(int lastEntryIndex) {
         return LogResponse.newBuilder()
                 .setLastEntryIndex(lastEntryIndex)
@@ -0,0 +1,368 @@
+package com.leon;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.leon.gRPC.AppendEntriesRequest;
+import com.leon.gRPC.LogResponse;
+import com.leon.gRPC.LogStatus;
+import com.leon.gRPC.SnapshotChunk;
+import com.leon.helpers.Config;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leader side replication state of one follower, with its own sender thread.
+ * <p>
+ * nextIndex is the next log to send, matchIndex the highest log the follower is known to have.
+ * Up to REPLICATION_MAX_IN_FLIGHT AppendEntries calls are kept in flight, so the follower's round trip
+ * time is hidden as long as there is log to send. When nothing is pending an empty AppendEntries is
+ * sent every HEARTBEAT_INTERVAL_MS, carrying the commit index.
+ * <p>
+ * Each AppendEntries carries the term of the log before its entries, so the follower can tell whether its log
+ * matches ours up to there; a LOG_OK acknowledges only logs that do, which are all that matchIndex counts.
+ * On LOG_MISMATCH nextIndex jumps to what the follower expects, on any other failure it falls back to
+ * matchIndex + 1 with exponential backoff. Each reset bumps the generation so answers to requests
+ * sent before the reset don't move nextIndex again.
+ * <p>
+ * Every answer that shows the follower accepted our term (LOG_OK, LOG_MISMATCH) is an acknowledgement for the
+ * leader's lease, dated by when its request was sent, see LoggingService.hasReadLease(). STALE_TERM means the
+ * follower went over to a newer leader.
+ * <p>
+ * A follower that needs log the leader already truncated, or that is more than SNAPSHOT_INSTALL_LAG_ENTRIES
+ * behind the leader's snapshot, is sent the snapshot through InstallSnapshot and continues with the log after it.
+ */
+public class ReplicationWorker {
+    private final FollowerGRPCChannel follower;
+    private final LoggingService logger;
+    private final Executor callbackExecutor;
+    private final Thread sender;
+
+    private int nextIndex;
+    private volatile int matchIndex = 0;
+    private int inFlight = 0;
+    private long generation = 0;
+    private int failures = 0;
+    private long retryAtNanos = 0;
+    private long lastSendNanos = 0;
+    private volatile long lastAckSentNanos = Long.MIN_VALUE; // send time of the newest acknowledged request
+    private volatile boolean running = true;
+
+    public ReplicationWorker(FollowerGRPCChannel follower, LoggingService logger, Executor callbackExecutor) {
+        this.follower = follower;
+        this.logger = logger;
+        this.callbackExecutor = callbackExecutor;
+        this.nextIndex = logger.getLastLogIndex(); // optimistic, the first answer tells us where the follower really is
+
+        this.sender = new Thread(this::run, "replication-" + follower.getZkNode());
+        this.sender.setDaemon(true);
+    }
+
+    public void start() {
+        sender.start();
+    }
+
+    public void stop() {
+        running = false;
+        sender.interrupt();
+    }
+
+    /// Wakes the sender up, i.e. because new logs were written.
+    public synchronized void signal() {
+        notifyAll();
+    }
+
+    public int getMatchIndex() {
+        return matchIndex;
+    }
+
+    /// When the most recent request the follower acknowledged was sent, Long.MIN_VALUE if none was.
+    public long getLastAckSentNanos() {
+        return lastAckSentNanos;
+    }
+
+    public FollowerGRPCChannel getFollower() {
+        return follower;
+    }
+
+    private void run() {
+        while (running) {
+            int from;
+            long gen;
+
+            synchronized (this) {
+                try {
+                    awaitSendSlot();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running)
+                    return;
+                from = nextIndex;
+                gen = generation;
+            }
+
+            if (logger.getSnapshotService().getLastSnapshotIndex() - from >= Config.SNAPSHOT_INSTALL_LAG_ENTRIES) {
+                installSnapshot();
+                continue;
+            }
+
+            List<LogRecord> batch = logger.readLogs(from, Config.APPEND_BATCH_MAX_ENTRIES, Config.APPEND_BATCH_MAX_BYTES);
+            if (batch == null) {
+                installSnapshot(); // the log we need is gone
+                continue;
+            }
+            boolean nothingReadable = batch.isEmpty() && from < logger.getLastLogIndex();
+
+            synchronized (this) {
+                if (gen != generation)
+                    continue; // reset while we were reading, start over from the new nextIndex
+
+                if (nothingReadable) {
+                    backOff();
+                    continue;
+                }
+
+                nextIndex = from + batch.size();
+                inFlight++;
+                lastSendNanos = System.nanoTime();
+            }
+
+            send(logger.buildAppendEntries(from - 1, batch), gen);
+        }
+    }
+
+    private void awaitSendSlot() throws InterruptedException {
+        long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Config.HEARTBEAT_INTERVAL_MS);
+
+        while (running) {
+            long now = System.nanoTime();
+            long waitNanos;
+
+            if (now < retryAtNanos) {
+                waitNanos = retryAtNanos - now;
+            } else if (inFlight >= Config.REPLICATION_MAX_IN_FLIGHT) {
+                waitNanos = heartbeatNanos;
+            } else if (nextIndex < logger.getLastLogIndex()) {
+                return; // there is log to send
+            } else if (inFlight == 0 && now - lastSendNanos >= heartbeatNanos) {
+                return; // heartbeat
+            } else {
+                waitNanos = heartbeatNanos - (now - lastSendNanos);
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1000));
+        }
+    }
+
+    /**
+     * Streams the leader's latest snapshot to the follower in SNAPSHOT_CHUNK_BYTES chunks, respecting
+     * gRPC flow control, and waits for the follower to install it. Runs on the sender thread.
+     */
+    private void installSnapshot() {
+        long gen;
+        synchronized (this) {
+            generation++; // whatever is still in flight is about to be superseded
+            gen = generation;
+        }
+
+        try (SnapshotService.SnapshotFile snapshot = logger.getSnapshotService().openLatestSnapshot()) {
+            if (snapshot == null) {
+                System.out.println(follower.getZkNode() + " needs a snapshot, but there is none yet");
+                synchronized (this) {
+                    backOff();
+                }
+                return;
+            }
+
+            System.out.println("Sending snapshot up to log #" + snapshot.getLastLogIndex() + " to " + follower.getZkNode());
+            CompletableFuture<LogResponse> result = new CompletableFuture<>();
+            Object ready = new Object();
+
+            ClientResponseObserver<SnapshotChunk, LogResponse> responseObserver = new ClientResponseObserver<>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<SnapshotChunk> requestStream) {
+                    requestStream.setOnReadyHandler(() -> {
+                        synchronized (ready) {
+                            ready.notifyAll();
+                        }
+                    });
+                }
+
+                @Override
+                public void onNext(LogResponse response) {
+                    result.complete(response);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    result.completeExceptionally(t);
+                }
+
+                @Override
+                public void onCompleted() {
+                    result.complete(null);
+                }
+            };
+
+            ClientCallStreamObserver<SnapshotChunk> requestStream = (ClientCallStreamObserver<SnapshotChunk>) follower.asyncStub
+                    .withDeadlineAfter(Config.SNAPSHOT_INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .installSnapshot(responseObserver);
+
+            FileChannel channel = snapshot.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(Config.SNAPSHOT_CHUNK_BYTES);
+            long offset = 0;
+            long size = channel.size();
+
+            do {
+                synchronized (ready) {
+                    while (!requestStream.isReady() && !result.isDone() && running)
+                        ready.wait(100);
+                }
+                if (result.isDone() || !running)
+                    break;
+
+                buf.clear();
+                int n = channel.read(buf, offset);
+                buf.flip();
+                boolean done = n <= 0 || offset + n >= size;
+
+                requestStream.onNext(SnapshotChunk.newBuilder()
+                        .setTerm(logger.getTerm())
+                        .setLastLogIndex(snapshot.getLastLogIndex())
+                        .setOffset(offset)
+                        .setData(ByteString.copyFrom(buf))
+                        .setDone(done)
+                        .build());
+                offset += Math.max(n, 0);
+                if (done)
+                    break;
+            } while (true);
+
+            if (!result.isDone())
+                requestStream.onCompleted();
+
+            LogResponse response = result.get(Config.SNAPSHOT_INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                if (response != null && response.getStatus() == LogStatus.LOG_OK && gen == generation) {
+                    generation++;
+                    matchIndex = Math.max(matchIndex, response.getLastEntryIndex());
+                    nextIndex = matchIndex + 1;
+                    failures = 0;
+                    System.out.println(follower.getZkNode() + " installed snapshot up to log #" + response.getLastEntryIndex());
+                } else {
+                    System.out.println(follower.getZkNode() + " did not install the snapshot: " + (response == null ? "no response" : response.getStatus()));
+                    backOff();
+                }
+            }
+            if (response != null && response.getStatus() == LogStatus.STALE_TERM)
+                logger.onNewerTerm(response.getTerm());
+            logger.onFollowerProgress();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.println("Sending snapshot to " + follower.getZkNode() + " failed: " + e.getMessage());
+            synchronized (this) {
+                backOff();
+            }
+        }
+    }
+
+    private void send(AppendEntriesRequest request, long gen) {
+        long sentNanos = System.nanoTime(); // before the follower can see it, so the lease ends before its promise
+        ListenableFuture<LogResponse> future = follower.futureStub
+                .withDeadlineAfter(Config.REPLICATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .appendEntries(request);
+
+        Futures.addCallback(future, new FutureCallback<>() {
+            @Override
+            public void onSuccess(LogResponse response) {
+                onResponse(response, gen, sentNanos);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                onSendFailure(t, gen);
+            }
+        }, callbackExecutor);
+    }
+
+    private void onResponse(LogResponse response, long gen, long sentNanos) {
+        boolean progressed = false;
+
+        synchronized (this) {
+            inFlight--;
+            if (response.getStatus() == LogStatus.LOG_OK || response.getStatus() == LogStatus.LOG_MISMATCH) {
+                if (lastAckSentNanos == Long.MIN_VALUE || sentNanos - lastAckSentNanos > 0)
+                    lastAckSentNanos = sentNanos;
+            }
+            switch (response.getStatus()) {
+                case LOG_OK -> {
+                    // an OK is a fact about the follower's log, no matter which generation it answers
+                    if (response.getLastEntryIndex() > matchIndex) {
+                        matchIndex = response.getLastEntryIndex();
+                        progressed = true;
+                    }
+                    failures = 0;
+                }
+                case LOG_MISMATCH -> {
+                    if (gen == generation) {
+                        // may go below matchIndex: a follower whose log differs asks for everything after its commit index
+                        generation++;
+                        nextIndex = Math.max(response.getLastEntryIndex(), 1);
+                    }
+                }
+                default -> {
+                    if (gen == generation) {
+                        generation++;
+                        nextIndex = matchIndex + 1;
+                        backOff();
+                    }
+                }
+            }
+            notifyAll();
+        }
+
+        if (response.getStatus() == LogStatus.STALE_TERM)
+            logger.onNewerTerm(response.getTerm());
+        if (progressed)
+            logger.onFollowerProgress();
+    }
+
+    private void onSendFailure(Throwable t, long gen) {
+        synchronized (this) {
+            inFlight--;
+            if (gen == generation) {
+                if (failures == 0)
+                    System.out.println("Replicating on " + follower.getZkNode() + " failed: " + t.getMessage());
+                generation++;
+                nextIndex = matchIndex + 1;
+                backOff();
+            }
+            notifyAll();
+        }
+    }
+
+    private void backOff() {
+        long backoff = Math.min(Config.REPLICATION_RETRY_BACKOFF_MS << Math.min(failures, 16), Config.REPLICATION_MAX_BACKOFF_MS);
+        failures++;
+        retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationWorker{" +
+                "follower=" + follower.getZkNode() +
+                ", nextIndex=" + nextIndex +
+                ", matchIndex=" + matchIndex +
+                '}';
+    }
+}
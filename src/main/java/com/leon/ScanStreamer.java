@@ -0,0 +1,103 @@
+package com.leon;
+
+import com.leon.gRPC.KeyValue;
+import com.leon.gRPC.RequestStatus;
+import com.leon.gRPC.ScanPage;
+import com.leon.gRPC.ScanRequest;
+import com.leon.helpers.Config;
+import com.leon.storage.OrderedStorageEngine;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+/**
+ * Sends the result of one Scan call, page by page.
+ * <p>
+ * A page is only built when the client's stream is ready for more (gRPC flow control), and every page
+ * continues the range right after the last key sent. So a scan holds at most one page in memory however
+ * big the range is, and a slow client simply pauses it.
+ */
+public class ScanStreamer {
+    private final OrderedStorageEngine storage;
+    private final ServerCallStreamObserver<ScanPage> call;
+    private final int requestId;
+    private final String prefix;
+    private final String endKey; // exclusive, null - open
+    private final int pageSize;
+
+    private String cursor; // where the next page starts, null - at the first key
+    private boolean cursorInclusive = true;
+    private int remaining; // entries still allowed by the request's limit
+    private volatile boolean done = false;
+
+    public ScanStreamer(OrderedStorageEngine storage, ServerCallStreamObserver<ScanPage> call, ScanRequest request) {
+        this.storage = storage;
+        this.call = call;
+        this.requestId = request.getRequestId();
+        this.prefix = request.getPrefix();
+        this.endKey = request.getEndKey().isEmpty() ? null : request.getEndKey();
+        this.pageSize = request.getPageSize() > 0 ? request.getPageSize() : Config.SCAN_PAGE_SIZE;
+        this.remaining = request.getLimit() > 0 ? request.getLimit() : Integer.MAX_VALUE;
+
+        String start = request.getStartKey().isEmpty() ? null : request.getStartKey();
+        if (!prefix.isEmpty() && (start == null || start.compareTo(prefix) < 0))
+            start = prefix; // keys with the prefix are contiguous and start at the prefix itself
+        this.cursor = start;
+    }
+
+    public void start() {
+        call.setOnCancelHandler(() -> done = true);
+        call.setOnReadyHandler(this::drain);
+        drain();
+    }
+
+    private synchronized void drain() {
+        try {
+            while (!done && call.isReady())
+                sendPage();
+        } catch (Exception e) {
+            e.printStackTrace();
+            done = true;
+            call.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    private void sendPage() {
+        ScanPage.Builder page = ScanPage.newBuilder()
+                .setStatus(RequestStatus.STATUS_OK)
+                .setRequestId(requestId);
+        int[] bytes = {0};
+        boolean[] more = {false};
+        String[] last = {null};
+
+        storage.scan(cursor, cursorInclusive, endKey, (key, value) -> {
+            if (!prefix.isEmpty() && !key.startsWith(prefix))
+                return false; // past the prefix
+            if (remaining == 0) {
+                page.setResumeKey(key);
+                return false;
+            }
+
+            int size = key.length() + value.length();
+            if (page.getEntriesCount() >= pageSize || (page.getEntriesCount() > 0 && bytes[0] + size > Config.SCAN_PAGE_MAX_BYTES)) {
+                more[0] = true;
+                return false;
+            }
+
+            page.addEntries(KeyValue.newBuilder().setKey(key).setValue(value));
+            bytes[0] += size;
+            last[0] = key;
+            remaining--;
+            return true;
+        });
+
+        call.onNext(page.build());
+
+        if (more[0]) {
+            cursor = last[0];
+            cursorInclusive = false;
+        } else {
+            done = true;
+            call.onCompleted();
+        }
+    }
+}
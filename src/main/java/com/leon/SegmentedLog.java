@@ -0,0 +1,369 @@
+package com.leon;
+
+import com.leon.gRPC.CommandType;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * The log directory: a sequence of LogSegment files and a MANIFEST listing their base indexes.
+ * <p>
+ * Only the newest (active) segment is opened and scanned on startup, older segments are opened lazily
+ * the first time something reads from them. Once the active segment grows past segmentBytes a new one
+ * is started at the next batch boundary and the manifest is rewritten atomically.
+ * <p>
+ * Older versions kept the whole log as one text file at the path that is now the directory, it is converted
+ * on startup, see convertTextLog().
+ */
+public class SegmentedLog implements Closeable {
+    private static final String MANIFEST = "MANIFEST";
+
+    private final Path dir;
+    private final Path archiveDir; // null - truncated segments are deleted
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+
+    private final TreeMap<Integer, LogSegment> segments = new TreeMap<>();
+    private LogSegment active;
+
+    public SegmentedLog(Path dir, int segmentBytes, int indexIntervalBytes) throws IOException {
+        this(dir, null, segmentBytes, indexIntervalBytes);
+    }
+
+    public SegmentedLog(Path dir, Path archiveDir, int segmentBytes, int indexIntervalBytes) throws IOException {
+        this.dir = dir;
+        this.archiveDir = archiveDir;
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+
+        convertTextLog(dir, segmentBytes, indexIntervalBytes);
+        Files.createDirectories(dir);
+        List<Integer> baseIndexes = readManifest();
+
+        if (baseIndexes.isEmpty()) {
+            active = LogSegment.create(dir, 1, indexIntervalBytes); // first log is #1
+            segments.put(1, active);
+            writeManifest();
+            return;
+        }
+
+        int newest = baseIndexes.get(baseIndexes.size() - 1);
+        for (int baseIndex : baseIndexes) {
+            if (baseIndex != newest)
+                segments.put(baseIndex, LogSegment.sealed(dir, baseIndex, indexIntervalBytes));
+        }
+        active = LogSegment.recoverActive(dir, newest, indexIntervalBytes);
+        segments.put(newest, active);
+    }
+
+    /**
+     * A log written before segments is a text file at dir, one "Log #X: PUT:KEY:VALUE:UNIX_TIMESTAMP" or
+     * "Log #X: DELETE:KEY:UNIX_TIMESTAMP" line per entry. Its entries are written into a log directory next to it
+     * as records of term 0, then the text file is moved to dir.txt and the directory takes its place. A crash
+     * in between is finished on the next start. Conversion stops at the first line that cannot be parsed or
+     * does not continue the index sequence, like reading a log stops at a torn record.
+     */
+    static void convertTextLog(Path dir, int segmentBytes, int indexIntervalBytes) throws IOException {
+        Path converting = dir.resolveSibling(dir.getFileName() + ".converting");
+        Path text = dir.resolveSibling(dir.getFileName() + ".txt");
+
+        if (!Files.exists(dir) && Files.isDirectory(converting) && Files.isRegularFile(text)) {
+            Files.move(converting, dir, StandardCopyOption.ATOMIC_MOVE); // crashed right before the last step
+            return;
+        }
+        if (!Files.isRegularFile(dir))
+            return;
+        if (Files.exists(text))
+            throw new IOException("Cannot convert the text log " + dir + ", " + text + " is in the way");
+
+        System.out.println("Converting the text log " + dir + " into a log directory, the original is kept as " + text);
+        deleteDirectory(converting); // left by a conversion that crashed halfway
+        int converted = 0;
+        try (SegmentedLog log = new SegmentedLog(converting, segmentBytes, indexIntervalBytes);
+             BufferedReader reader = Files.newBufferedReader(dir, StandardCharsets.UTF_8)) {
+            List<LogRecord> batch = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LogRecord record = parseTextLine(line);
+                if (record == null || record.getIndex() > converted + 1) {
+                    System.out.println("Text log ends at log #" + converted + ", dropping what follows: " + line);
+                    break;
+                }
+                if (record.getIndex() <= converted)
+                    continue; // written twice, followers used to append whatever the leader resent
+
+                batch.add(record);
+                converted++;
+                if (batch.size() == 1024) {
+                    log.append(batch);
+                    batch.clear();
+                }
+            }
+            log.append(batch);
+            log.force();
+        }
+
+        Files.move(dir, text, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(converting, dir, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Converted " + converted + " log entries");
+    }
+
+    /// The record of a text log line, null if the line is malformed. Timestamps were unix seconds.
+    private static LogRecord parseTextLine(String line) {
+        int colon = line.indexOf(": ");
+        if (!line.startsWith("Log #") || colon < 0)
+            return null;
+        String[] parts = line.substring(colon + 2).split(":", 3); // type, key, the rest
+        if (parts.length < 3 || parts[1].isEmpty())
+            return null;
+
+        try {
+            int index = Integer.parseInt(line.substring("Log #".length(), colon));
+            CommandType type = CommandType.valueOf(parts[0]);
+            String value = "";
+            String timestamp = parts[2];
+
+            if (type == CommandType.PUT) {
+                int last = parts[2].lastIndexOf(':');
+                if (last < 0)
+                    return null;
+                value = parts[2].substring(0, last);
+                timestamp = parts[2].substring(last + 1);
+            } else if (type == CommandType.DELETE) {
+                int digits = timestamp.length(); // a DELETE's value, if the client sent one, runs into its timestamp
+                while (digits > 0 && Character.isDigit(timestamp.charAt(digits - 1)))
+                    digits--;
+                timestamp = timestamp.substring(digits);
+            } else {
+                return null;
+            }
+            return new LogRecord(index, 0, type, parts[1].getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8),
+                    Long.parseLong(timestamp) * 1000);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList())
+                Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    /// Appends consecutive records to the active segment, rolling to a new segment first if it is full.
+    public synchronized void append(List<LogRecord> records) throws IOException {
+        if (records.isEmpty())
+            return;
+
+        if (active.getSize() >= segmentBytes)
+            roll(records.get(0).getIndex());
+
+        active.append(records);
+    }
+
+    public synchronized void force() throws IOException {
+        active.force();
+    }
+
+    private void roll(int baseIndex) throws IOException {
+        active.seal();
+        active = LogSegment.create(dir, baseIndex, indexIntervalBytes);
+        segments.put(baseIndex, active);
+        writeManifest();
+    }
+
+    /**
+     * Drops every segment whose entries all have index <= upToIndex, i.e. because a snapshot covers them.
+     * The manifest is rewritten first, so a crash halfway through never leaves a manifest pointing at
+     * missing files. The active segment is never dropped. Returns the number of segments removed.
+     */
+    public int truncatePrefix(int upToIndex) throws IOException {
+        List<LogSegment> removed = new ArrayList<>();
+
+        synchronized (this) {
+            while (segments.size() > 1) {
+                LogSegment oldest = segments.firstEntry().getValue();
+                int nextBaseIndex = segments.higherKey(oldest.getBaseIndex());
+                if (nextBaseIndex - 1 > upToIndex)
+                    break;
+
+                segments.pollFirstEntry();
+                removed.add(oldest);
+            }
+
+            if (removed.isEmpty())
+                return 0;
+            writeManifest();
+        }
+
+        if (archiveDir != null)
+            Files.createDirectories(archiveDir);
+
+        for (LogSegment segment : removed) {
+            segment.close();
+            for (Path file : List.of(segment.getLogPath(), segment.getIndexPath())) {
+                if (archiveDir != null)
+                    Files.move(file, archiveDir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                else
+                    Files.deleteIfExists(file);
+            }
+        }
+        return removed.size();
+    }
+
+    /**
+     * Drops every record with index >= fromIndex, i.e. entries of an old leader that conflict with the current
+     * leader's. Later segments are deleted and the segment holding fromIndex is cut and becomes the active one.
+     * The manifest is rewritten first, like in truncatePrefix().
+     */
+    public synchronized void truncateSuffix(int fromIndex) throws IOException {
+        if (fromIndex <= segments.firstKey()) {
+            reset(fromIndex);
+            return;
+        }
+
+        List<LogSegment> removed = new ArrayList<>(segments.tailMap(fromIndex, true).values());
+        segments.tailMap(fromIndex, true).clear();
+        writeManifest();
+
+        for (LogSegment segment : removed) {
+            segment.close();
+            Files.deleteIfExists(segment.getLogPath());
+            Files.deleteIfExists(segment.getIndexPath());
+        }
+
+        active = segments.lastEntry().getValue().truncateFrom(fromIndex);
+        segments.put(active.getBaseIndex(), active);
+    }
+
+    /**
+     * Throws the whole log away and starts over with an empty segment at baseIndex,
+     * i.e. after installing a snapshot from the leader that is ahead of everything we have.
+     */
+    public synchronized void reset(int baseIndex) throws IOException {
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+            Files.deleteIfExists(segment.getLogPath());
+            Files.deleteIfExists(segment.getIndexPath());
+        }
+        segments.clear();
+
+        active = LogSegment.create(dir, baseIndex, indexIntervalBytes);
+        segments.put(baseIndex, active);
+        writeManifest();
+    }
+
+    /**
+     * Feeds records with index >= fromIndex to consumer, in order, until consumer returns false or the log ends.
+     * Seeks straight to the segment and sparse index entry closest to fromIndex.
+     */
+    public void read(int fromIndex, Predicate<LogRecord> consumer) throws IOException {
+        for (LogSegment segment : segmentsFrom(fromIndex)) {
+            if (!segment.read(fromIndex, consumer))
+                return;
+        }
+    }
+
+    /**
+     * Like read, but hands out whole encoded records in chunks of about chunkBytes, with the segment
+     * file and offset each chunk came from, so they can be decoded in parallel. See {@link LogSegment#readChunks}.
+     */
+    public void readChunks(int fromIndex, int chunkBytes, ChunkConsumer consumer) throws IOException {
+        for (LogSegment segment : segmentsFrom(fromIndex)) {
+            if (!segment.readChunks(fromIndex, chunkBytes, consumer))
+                return;
+        }
+    }
+
+    public interface ChunkConsumer {
+        /// chunk holds whole records starting at offset position of the segment file; returns false to stop reading.
+        boolean accept(String segment, long position, ByteBuffer chunk) throws IOException;
+    }
+
+    /// Approximate number of bytes read(fromIndex) goes through: the segments holding fromIndex and later logs.
+    public long bytesFrom(int fromIndex) throws IOException {
+        long bytes = 0;
+        for (LogSegment segment : segmentsFrom(fromIndex))
+            bytes += segment.getFileSize();
+        return bytes;
+    }
+
+    private synchronized List<LogSegment> segmentsFrom(int fromIndex) {
+        Integer first = segments.floorKey(fromIndex);
+        if (first == null)
+            first = segments.firstKey();
+        return new ArrayList<>(segments.tailMap(first, true).values());
+    }
+
+    /// Index of the last record in the log, or 0 if the log is empty.
+    public synchronized int getLastIndex() {
+        return active.getLastIndex(); // an empty segment reports baseIndex - 1
+    }
+
+    /// Base index of the oldest segment still on disk. Entries below it were truncated.
+    public synchronized int getFirstIndex() {
+        return segments.firstKey();
+    }
+
+    private List<Integer> readManifest() throws IOException {
+        List<Integer> baseIndexes = new ArrayList<>();
+        Path manifest = dir.resolve(MANIFEST);
+
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (!line.isBlank())
+                    baseIndexes.add(Integer.parseInt(line.trim()));
+            }
+            return baseIndexes;
+        }
+
+        // no manifest (i.e. crashed before the first one was written), fall back to listing the directory
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .map(name -> Integer.parseInt(name.substring(0, name.length() - 4)))
+                    .sorted()
+                    .forEach(baseIndexes::add);
+        }
+        return baseIndexes;
+    }
+
+    private void writeManifest() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int baseIndex : segments.keySet())
+            sb.append(baseIndex).append('\n');
+
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining())
+                channel.write(buf);
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (LogSegment segment : segments.values())
+            segment.close();
+    }
+}
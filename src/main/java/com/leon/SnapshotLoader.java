@@ -0,0 +1,94 @@
+package com.leon;
+
+import com.leon.storage.StorageEngine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves a memory-mapped snapshot while it is copied into the storage engine in the background,
+ * so a restarting node does not wait for the whole snapshot to be loaded before it starts.
+ * <p>
+ * Until the copy is done, a key missing from the engine is looked up in the snapshot, unless a log applied
+ * since deleted it. The copy never overwrites newer entries (put ignores older versions), and it takes
+ * turns with deletes, so a key deleted by the log is not brought back either.
+ * <p>
+ * Lookups verify what they read from the snapshot, see MappedSnapshot, and throw UncheckedIOException if it is damaged.
+ */
+public class SnapshotLoader {
+    private static final int CHUNK_SIZE = 1024;
+
+    private final MappedSnapshot snapshot;
+    private final StorageEngine storage;
+    private final Set<String> deleted = ConcurrentHashMap.newKeySet();
+    private boolean cancelled = false;
+
+    public SnapshotLoader(MappedSnapshot snapshot, StorageEngine storage) {
+        this.snapshot = snapshot;
+        this.storage = storage;
+    }
+
+    /// Value of key in the snapshot, for a key the engine does not have (yet).
+    public String get(String key) {
+        return deleted.contains(key) ? null : snapshot.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return !deleted.contains(key) && snapshot.containsKey(key);
+    }
+
+    public synchronized boolean delete(String key, long version) {
+        boolean inSnapshot;
+        try {
+            inSnapshot = !deleted.contains(key) && snapshot.containsKey(key);
+        } catch (UncheckedIOException e) {
+            inSnapshot = false; // damaged there, the key is hidden from lookups all the same
+        }
+        deleted.add(key);
+        return storage.delete(key, version) || inSnapshot;
+    }
+
+    /**
+     * Copies the snapshot into the engine, CHUNK_SIZE entries at a time, verifying it on the way.
+     * Returns false if it was cancelled, throws if the snapshot is damaged.
+     */
+    public boolean load() throws IOException {
+        List<String> keys = new ArrayList<>(CHUNK_SIZE);
+        List<String> values = new ArrayList<>(CHUNK_SIZE);
+        boolean[] stopped = {false};
+
+        snapshot.forEach((k, v) -> {
+            keys.add(k);
+            values.add(v);
+            if (keys.size() == CHUNK_SIZE && !putAll(keys, values))
+                stopped[0] = true;
+            return !stopped[0];
+        });
+        return !stopped[0] && putAll(keys, values);
+    }
+
+    private synchronized boolean putAll(List<String> keys, List<String> values) {
+        if (cancelled)
+            return false;
+        for (int i = 0; i < keys.size(); i++) {
+            if (!deleted.contains(keys.get(i)))
+                storage.put(keys.get(i), values.get(i), snapshot.getLastLogIndex());
+        }
+        keys.clear();
+        values.clear();
+        return true;
+    }
+
+    /// Stops the copy, i.e. before the engine's content is replaced by another snapshot.
+    public synchronized void cancel() {
+        cancelled = true;
+    }
+
+    public MappedSnapshot getSnapshot() {
+        return snapshot;
+    }
+}
@@ -0,0 +1,167 @@
+package com.leon;
+
+import com.leon.helpers.Metrics;
+
+/**
+ * Decides when a node takes a snapshot, from how much log a restart would have to replay.
+ * <p>
+ * A snapshot is due once the log since the last one reaches maxLogBytes, or once replaying it is estimated
+ * to take longer than maxReplayMs. Both are projected to when a snapshot started now would be done, from the
+ * current write rate and how long the last snapshot took. Nothing is taken below minLogBytes, and snapshots
+ * are spaced so the snapshot thread is busy at most maxBusyRatio of the time, so a big dataset that is slow
+ * to write out is snapshotted less often. Reaching maxLogBytes itself ignores the spacing.
+ * <p>
+ * The replay rate is measured when the log is replayed on startup, the write rate is a moving average
+ * over one second windows. Decisions and inputs are published as snapshot.* metrics.
+ */
+public class SnapshotPolicy {
+    private static final double DEFAULT_REPLAY_BYTES_PER_SEC = 20 * 1024 * 1024; // until a replay was measured
+    private static final long MIN_MEASURED_REPLAY_BYTES = 1024 * 1024; // shorter replays say little about the rate
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+    private final long minLogBytes;
+    private final long maxLogBytes;
+    private final long maxReplayMs;
+    private final double maxBusyRatio;
+    private final Metrics metrics;
+
+    private long logBytes = 0; // log not covered by a snapshot
+    private long logBytesAtStart = -1; // logBytes when the running snapshot started, -1 - none is running
+    private long lastStartNanos = 0;
+    private long lastDurationNanos = 0;
+    private long lastSnapshotBytes = 0;
+    private boolean deferred = false;
+
+    private double replayBytesPerSec = DEFAULT_REPLAY_BYTES_PER_SEC;
+    private double writeBytesPerSec = 0;
+    private long windowStartNanos = System.nanoTime();
+    private long windowBytes = 0;
+
+    public SnapshotPolicy(long minLogBytes, long maxLogBytes, long maxReplayMs, double maxBusyRatio, Metrics metrics) {
+        this.metrics = metrics;
+        this.minLogBytes = minLogBytes;
+        this.maxLogBytes = maxLogBytes;
+        this.maxReplayMs = maxReplayMs;
+        this.maxBusyRatio = maxBusyRatio;
+
+        metrics.gauge("snapshot.policy.log_bytes", () -> getLogBytes());
+        metrics.gauge("snapshot.policy.estimated_replay_ms", () -> estimatedReplayMs(getLogBytes()));
+        metrics.gauge("snapshot.policy.write_bytes_per_sec", () -> getWriteBytesPerSec());
+        metrics.gauge("snapshot.policy.replay_bytes_per_sec", () -> getReplayBytesPerSec());
+        metrics.gauge("snapshot.last_duration_ms", () -> getLastDurationNanos() / 1e6);
+        metrics.gauge("snapshot.last_bytes", () -> getLastSnapshotBytes());
+    }
+
+    /// bytes of log were written that no snapshot covers yet
+    public synchronized void onLogWritten(long bytes) {
+        logBytes += bytes;
+        windowBytes += bytes;
+        updateWriteRate(System.nanoTime());
+    }
+
+    /// The log was replayed on startup: bytes of it in nanos.
+    public synchronized void onReplay(long bytes, long nanos) {
+        if (bytes >= MIN_MEASURED_REPLAY_BYTES && nanos > 0)
+            replayBytesPerSec = bytes * 1e9 / nanos;
+    }
+
+    /// Asked after logs were applied. Returns true if a snapshot should be started now.
+    public synchronized boolean shouldSnapshot() {
+        if (logBytesAtStart >= 0 || logBytes < minLogBytes)
+            return false;
+
+        long now = System.nanoTime();
+        updateWriteRate(now);
+
+        String reason;
+        if (logBytes >= maxLogBytes) {
+            reason = "log_size";
+        } else {
+            long projected = logBytes + (long) (writeBytesPerSec * lastDurationNanos / 1e9);
+            if (projected >= maxLogBytes)
+                reason = "log_size";
+            else if (estimatedReplayMs(projected) >= maxReplayMs)
+                reason = "replay_time";
+            else
+                return false;
+
+            if (maxBusyRatio > 0 && now - lastStartNanos < lastDurationNanos / maxBusyRatio) {
+                if (!deferred) {
+                    deferred = true;
+                    metrics.increment("snapshot.deferred");
+                }
+                return false;
+            }
+        }
+
+        deferred = false;
+        metrics.increment("snapshot.triggered." + reason);
+        System.out.printf("Snapshot due (%s): %d bytes of log, replay estimated at %.0fms%n", reason, logBytes, estimatedReplayMs(logBytes));
+        return true;
+    }
+
+    /// A snapshot of everything written so far was started.
+    public synchronized void onSnapshotStarted() {
+        logBytesAtStart = logBytes;
+        lastStartNanos = System.nanoTime();
+    }
+
+    /// The snapshot started last is done; written is false if it failed or was superseded.
+    public synchronized void onSnapshotFinished(boolean written, long fileBytes) {
+        if (logBytesAtStart < 0)
+            return;
+
+        if (written) {
+            logBytes = Math.max(0, logBytes - logBytesAtStart);
+            lastDurationNanos = System.nanoTime() - lastStartNanos;
+            lastSnapshotBytes = fileBytes;
+            metrics.increment("snapshot.written");
+        } else {
+            metrics.increment("snapshot.failed");
+        }
+        logBytesAtStart = -1;
+    }
+
+    /// The leader installed a snapshot, the local log was discarded.
+    public synchronized void onSnapshotInstalled(long fileBytes) {
+        logBytes = 0;
+        lastSnapshotBytes = fileBytes;
+        metrics.increment("snapshot.installed");
+    }
+
+    private void updateWriteRate(long now) {
+        long elapsed = now - windowStartNanos;
+        if (elapsed < RATE_WINDOW_NANOS)
+            return;
+
+        double rate = windowBytes * 1e9 / elapsed;
+        writeBytesPerSec = writeBytesPerSec == 0 ? rate : 0.7 * writeBytesPerSec + 0.3 * rate;
+        windowStartNanos = now;
+        windowBytes = 0;
+    }
+
+    private synchronized double estimatedReplayMs(long bytes) {
+        return bytes * 1000 / replayBytesPerSec;
+    }
+
+    public synchronized long getLogBytes() {
+        return logBytes;
+    }
+
+    public synchronized double getWriteBytesPerSec() {
+        updateWriteRate(System.nanoTime());
+        return writeBytesPerSec;
+    }
+
+    public synchronized double getReplayBytesPerSec() {
+        return replayBytesPerSec;
+    }
+
+    public synchronized long getLastDurationNanos() {
+        return lastDurationNanos;
+    }
+
+    public synchronized long getLastSnapshotBytes() {
+        return lastSnapshotBytes;
+    }
+}
@@ -0,0 +1,145 @@
+package com.leon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reads a snapshot file written by {@link SnapshotWriter} block by block, verifying every checksum,
+ * and hands out the entries one at a time.
+ */
+public class SnapshotReader implements Closeable {
+    private final FileChannel channel;
+    private final int lastLogIndex;
+    private final long entryCount;
+
+    private SnapshotReader(FileChannel channel, int lastLogIndex, long entryCount) {
+        this.channel = channel;
+        this.lastLogIndex = lastLogIndex;
+        this.entryCount = entryCount;
+    }
+
+    /// Opens path and checks its header.
+    public static SnapshotReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SnapshotWriter.HEADER_SIZE);
+            readFully(channel, header, 0);
+
+            checkHeader(header, path);
+            return new SnapshotReader(channel, header.getInt(5), header.getLong(9));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /// Throws unless header (HEADER_SIZE bytes from its position 0) is a valid snapshot header.
+    static void checkHeader(ByteBuffer header, Path path) throws CorruptSnapshotException {
+        byte[] bytes = new byte[SnapshotWriter.HEADER_SIZE];
+        header.get(0, bytes);
+
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, SnapshotWriter.HEADER_SIZE - 4);
+        if (header.getInt(0) != SnapshotWriter.MAGIC)
+            throw new CorruptSnapshotException("Not a snapshot file: " + path);
+        if (header.getInt(SnapshotWriter.HEADER_SIZE - 4) != (int) crc.getValue())
+            throw new CorruptSnapshotException("Checksum mismatch in snapshot header of " + path);
+        if (header.get(4) < 1 || header.get(4) > SnapshotWriter.FORMAT_VERSION)
+            throw new CorruptSnapshotException("Unknown snapshot version " + header.get(4) + " in " + path);
+    }
+
+    /// Feeds every entry to consumer, in file order, value null for a deleted key (delta snapshots).
+    /// Throws if any block is damaged or entries are missing.
+    public void forEach(BiConsumer<String, String> consumer) throws IOException {
+        long position = SnapshotWriter.HEADER_SIZE;
+        long count = 0;
+        ByteBuffer blockHeader = ByteBuffer.allocate(SnapshotWriter.BLOCK_HEADER_SIZE);
+        ByteBuffer block = ByteBuffer.allocate(0);
+
+        while (true) {
+            long blockStart = position;
+            blockHeader.clear();
+            readFully(channel, blockHeader, position);
+            int length = blockHeader.getInt(0);
+            int expectedCrc = blockHeader.getInt(4);
+            position += SnapshotWriter.BLOCK_HEADER_SIZE;
+
+            if (length == 0)
+                break;
+            if (length < 0 || length > channel.size() - position)
+                throw new CorruptSnapshotException("Invalid snapshot block length " + length + " at offset " + blockStart);
+
+            if (block.capacity() < length)
+                block = ByteBuffer.allocate(length);
+            block.clear().limit(length);
+            readFully(channel, block, position);
+            position += length;
+
+            CRC32C crc = new CRC32C();
+            crc.update(block.array(), 0, length);
+            if ((int) crc.getValue() != expectedCrc)
+                throw new CorruptSnapshotException("Checksum mismatch in snapshot block at offset " + blockStart);
+
+            while (block.hasRemaining()) {
+                String key = readString(block, false);
+                String value = readString(block, true);
+                consumer.accept(key, value);
+                count++;
+            }
+        }
+
+        if (count != entryCount)
+            throw new CorruptSnapshotException("Snapshot holds " + count + " entries, header says " + entryCount);
+    }
+
+    private static String readString(ByteBuffer block, boolean nullable) throws CorruptSnapshotException {
+        if (block.remaining() < 4)
+            throw new CorruptSnapshotException("Malformed snapshot record");
+        int length = block.getInt();
+        if (length == -1 && nullable)
+            return null;
+        if (length < 0 || length > block.remaining())
+            throw new CorruptSnapshotException("Malformed snapshot record");
+        String s = new String(block.array(), block.position(), length, StandardCharsets.UTF_8);
+        block.position(block.position() + length);
+        return s;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0)
+                throw new CorruptSnapshotException("Snapshot file is truncated");
+        }
+        buf.flip();
+    }
+
+    public int getLastLogIndex() {
+        return lastLogIndex;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static class CorruptSnapshotException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptSnapshotException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,50 +1,563 @@
 package com.leon;
 
+import com.leon.helpers.Config;
+import com.leon.helpers.Metrics;
+import com.leon.storage.StorageEngine;
+import com.leon.storage.StorageView;
+
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
+/**
+ * The node's snapshots on disk: a full base snapshot at snapshotFilePath, and on top of it a chain of delta
+ * snapshots holding only the keys written or deleted since the snapshot before, named
+ * {@code <snapshotFilePath>.delta.<previous index>-<index>}. Base plus deltas cover the log up to the last delta.
+ * <p>
+ * Keys written since the last snapshot are found by their version in the storage view, deleted ones are
+ * recorded as the node applies them. Once there are SNAPSHOT_MAX_DELTAS deltas, or they add up to
+ * SNAPSHOT_DELTA_MERGE_RATIO of the base, a background merger folds them into a new base.
+ */
 public class SnapshotService {
     private String snapshotFilePath = "";
     private Node node;
+    private volatile int lastSnapshotIndex = 0; // log index base + deltas on disk cover, 0 - no snapshot
+    private final AtomicBoolean inProgress = new AtomicBoolean(false);
+    private final Metrics metrics;
+    private final SnapshotPolicy policy;
+
+    // guarded by this
+    private int baseIndex = 0;
+    private long baseBytes = 0;
+    private final List<Delta> deltas = new ArrayList<>(); // oldest first
+
+    // keys deleted since the last snapshot, swapped for an empty set whenever one is started
+    private volatile Set<String> deletedSinceSnapshot = ConcurrentHashMap.newKeySet();
+
+    private final Object mergeLock = new Object(); // one merge at a time
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean(false);
 
-    public SnapshotService(String snapshotFilePath, Node node) {
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService mergeExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "snapshot-merger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SnapshotService(String snapshotFilePath, Node node, Metrics metrics) {
         this.snapshotFilePath = snapshotFilePath;
         this.node = node;
+        this.metrics = metrics;
+        this.policy = new SnapshotPolicy(Config.SNAPSHOT_MIN_LOG_BYTES, Config.SNAPSHOT_MAX_LOG_BYTES,
+                Config.SNAPSHOT_MAX_REPLAY_MS, Config.SNAPSHOT_MAX_BUSY_RATIO, metrics);
+
+        metrics.gauge("snapshot.deltas", () -> deltaCount());
+    }
+
+    /**
+     * Snapshots the state as of lastLogIndex without holding up writes. A point-in-time view of the storage
+     * is opened right away, so this must be called between two applied logs; writing it out entry by entry
+     * happens on the background snapshot thread. Once there is a base snapshot, only a delta is written.
+     * The future completes with true once the snapshot is on disk (so the log it covers can be truncated),
+     * with false if writing failed, a snapshot is still being written, or a newer one was installed meanwhile.
+     */
+    public CompletableFuture<Boolean> snapshotAsync(int lastLogIndex) {
+        if (node.isLoadingSnapshot()) // storage does not hold everything yet
+            return CompletableFuture.completedFuture(false);
+        if (!inProgress.compareAndSet(false, true))
+            return CompletableFuture.completedFuture(false);
+
+        StorageView view;
+        try {
+            view = node.getStorage().openView(lastLogIndex);
+        } catch (RuntimeException e) {
+            inProgress.set(false);
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
+
+        boolean delta = Config.SNAPSHOT_MAX_DELTAS > 0 && lastSnapshotIndex > 0;
+        int previousIndex = lastSnapshotIndex;
+        Set<String> deleted = deletedSinceSnapshot;
+        deletedSinceSnapshot = ConcurrentHashMap.newKeySet();
+        policy.onSnapshotStarted();
+
+        return CompletableFuture.supplyAsync(() -> {
+            long written = -1;
+            try (view) {
+                written = delta ? writeDelta(view, previousIndex, lastLogIndex, deleted) : writeSnapshot(view, lastLogIndex);
+                return written >= 0;
+            } finally {
+                if (written < 0 && delta)
+                    deletedSinceSnapshot.addAll(deleted); // the next delta has to cover them
+                policy.onSnapshotFinished(written >= 0, Math.max(written, 0));
+                inProgress.set(false);
+                if (written >= 0 && delta)
+                    maybeScheduleMerge();
+            }
+        }, snapshotExecutor);
     }
 
-    public void makeSnapshot(int lastLogIndex) {
-        Snapshot s = new Snapshot(node.getStorageMap(), lastLogIndex);
+    /// Writes a full snapshot as the new base, returns its size or -1.
+    private long writeSnapshot(StorageView view, int lastLogIndex) {
+        Path tmp = Path.of(snapshotFilePath + ".tmp");
 
         try {
-            FileOutputStream fos = new FileOutputStream(snapshotFilePath);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(s);
-            oos.close();
-            fos.close();
+            long size = writeFile(tmp, lastLogIndex, true, writer -> view.forEach(addTo(writer)));
+
+            synchronized (this) {
+                if (lastLogIndex <= lastSnapshotIndex) { // the leader installed a newer one while we were writing
+                    Files.deleteIfExists(tmp);
+                    return -1;
+                }
+                // replace the old snapshot in one step, readers that already opened it keep reading the old one
+                Files.move(tmp, Path.of(snapshotFilePath), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                setBase(lastLogIndex, size);
+                lastSnapshotIndex = lastLogIndex;
+            }
+            return size;
         } catch (IOException ioe) {
             ioe.printStackTrace();
+            deleteQuietly(tmp);
+            return -1;
         }
     }
 
-    public Snapshot readSnapshot() {
-        Snapshot s = null;
+    /// Writes the keys deleted and written after previousIndex as a delta, returns its size or -1.
+    private long writeDelta(StorageView view, int previousIndex, int lastLogIndex, Set<String> deleted) {
+        Path path = deltaPath(previousIndex, lastLogIndex);
+        Path tmp = Path.of(path + ".tmp");
+
         try {
-            FileInputStream fis = new FileInputStream(snapshotFilePath);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            s = (Snapshot) ois.readObject();
-            ois.close();
-            fis.close();
-        }catch (FileNotFoundException e) {
-                System.out.println("No snapshot file found. Continuing normal operation");
+            long size = writeFile(tmp, lastLogIndex, false, writer -> {
+                for (String key : deleted)
+                    writer.add(key, null); // before the writes: a key may have been deleted and written again
+                view.forEachSince(previousIndex, addTo(writer));
+            });
+
+            synchronized (this) {
+                if (previousIndex != lastSnapshotIndex) { // the leader installed a snapshot while we were writing
+                    Files.deleteIfExists(tmp);
+                    return -1;
+                }
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                deltas.add(new Delta(previousIndex, lastLogIndex, path, size));
+                lastSnapshotIndex = lastLogIndex;
+            }
+            metrics.increment("snapshot.delta.written");
+            return size;
         } catch (IOException ioe) {
             ioe.printStackTrace();
+            deleteQuietly(tmp);
+            return -1;
+        }
+    }
+
+    private interface FileContent {
+        void write(SnapshotWriter writer) throws IOException;
+    }
+
+    /// Writes a snapshot file at path and forces it to disk, returns its size. Only bases are indexed, deltas are read whole.
+    private static long writeFile(Path path, int lastLogIndex, boolean indexed, FileContent content) throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(path, lastLogIndex, Config.SNAPSHOT_BLOCK_BYTES, indexed)) {
+            content.write(writer);
+            writer.finish();
+            return writer.getSize();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /// writer.add() for forEach, an IOException comes out as UncheckedIOException.
+    private static BiConsumer<String, String> addTo(SnapshotWriter writer) {
+        return (k, v) -> {
+            try {
+                writer.add(k, v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /// The node applied a delete, the next delta has to record it.
+    public void onDelete(String key) {
+        if (Config.SNAPSHOT_MAX_DELTAS > 0)
+            deletedSinceSnapshot.add(key);
+    }
+
+    private void maybeScheduleMerge() {
+        boolean due;
+        synchronized (this) {
+            long deltaBytes = 0;
+            for (Delta d : deltas)
+                deltaBytes += d.bytes;
+            due = deltas.size() >= Config.SNAPSHOT_MAX_DELTAS || deltaBytes >= baseBytes * Config.SNAPSHOT_DELTA_MERGE_RATIO;
+        }
+
+        if (due && mergeScheduled.compareAndSet(false, true)) {
+            mergeExecutor.execute(() -> {
+                try {
+                    mergeDeltas();
+                } finally {
+                    mergeScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Folds the current deltas into a new base covering the last of them. Only the deltas are held in
+     * memory, the base is streamed through. Returns false if merging failed or the base was replaced meanwhile.
+     */
+    boolean mergeDeltas() {
+        synchronized (mergeLock) {
+            List<Delta> merging;
+            int oldBaseIndex;
+            synchronized (this) {
+                if (deltas.isEmpty())
+                    return true;
+                merging = new ArrayList<>(deltas);
+                oldBaseIndex = baseIndex;
+            }
+
+            long start = System.nanoTime();
+            int index = merging.get(merging.size() - 1).index;
+            Path tmp = Path.of(snapshotFilePath + ".merge");
+
+            try {
+                Map<String, String> changes = new HashMap<>(); // value null - deleted
+                for (Delta d : merging) {
+                    try (SnapshotReader reader = SnapshotReader.open(d.path)) {
+                        reader.forEach(changes::put);
+                    }
+                }
+
+                long size;
+                try (SnapshotReader base = SnapshotReader.open(Path.of(snapshotFilePath))) {
+                    size = writeFile(tmp, index, true, writer -> {
+                        BiConsumer<String, String> add = addTo(writer);
+                        base.forEach((k, v) -> {
+                            if (!changes.containsKey(k))
+                                add.accept(k, v);
+                        });
+                        changes.forEach((k, v) -> {
+                            if (v != null)
+                                add.accept(k, v);
+                        });
+                    });
+                }
+
+                synchronized (this) {
+                    if (baseIndex != oldBaseIndex) { // a snapshot from the leader replaced everything
+                        Files.deleteIfExists(tmp);
+                        return false;
+                    }
+                    Files.move(tmp, Path.of(snapshotFilePath), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    setBase(index, size);
+                    for (Delta d : merging)
+                        deleteQuietly(d.path);
+                    deltas.removeAll(merging);
+                }
+            } catch (IOException ioe) {
+                System.out.println("Merging delta snapshots failed: " + ioe.getMessage());
+                deleteQuietly(tmp);
+                return false;
+            }
+
+            metrics.increment("snapshot.merged");
+            System.out.println("Merged " + merging.size() + " delta snapshot(s) into a new base up to log #" + index
+                    + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+            return true;
+        }
+    }
+
+    /**
+     * Maps the snapshot on disk for lazy loading, see {@link MappedSnapshot}.
+     * Returns null if there is none or it cannot be mapped, loadSnapshot() is the fallback.
+     */
+    public MappedSnapshot mapSnapshot() {
+        Path path = Path.of(snapshotFilePath);
+        if (!Files.exists(path))
             return null;
-        } catch (ClassNotFoundException c) {
-            System.out.println("Class not found");
-            c.printStackTrace();
+
+        try {
+            MappedSnapshot snapshot = MappedSnapshot.open(path);
+            if (snapshot != null) {
+                synchronized (this) {
+                    setBase(snapshot.getLastLogIndex(), Files.size(path));
+                }
+                lastSnapshotIndex = snapshot.getLastLogIndex();
+            }
+            return snapshot;
+        } catch (IOException ioe) {
+            System.out.println("Could not map snapshot " + path + ": " + ioe.getMessage());
             return null;
         }
+    }
+
+    /// Moves the base snapshot covering index aside, it is damaged, and deletes the deltas on top of it.
+    public synchronized void discardBase(int index) {
+        if (baseIndex != index)
+            return;
+        try {
+            Files.move(Path.of(snapshotFilePath), Path.of(snapshotFilePath + ".damaged"), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("Could not move the damaged snapshot aside: " + e.getMessage());
+        }
+        for (Delta d : listDeltas())
+            deleteQuietly(d.path);
+        deltas.clear();
+    }
+
+    /**
+     * Streams the snapshot on disk into storage, replacing its content.
+     * Returns the log index the snapshot covers, or 0 if there is none or it could not be read,
+     * in which case storage is left empty.
+     */
+    public int loadSnapshot(StorageEngine storage) {
+        Path path = Path.of(snapshotFilePath);
+        if (!Files.exists(path)) {
+            System.out.println("No snapshot file found. Continuing normal operation");
+            return 0;
+        }
+
+        storage.clear();
+        try (SnapshotReader reader = SnapshotReader.open(path)) {
+            int index = reader.getLastLogIndex();
+            reader.forEach((k, v) -> storage.put(k, v, index));
+            synchronized (this) {
+                setBase(index, Files.size(path));
+            }
+            lastSnapshotIndex = index;
+            return index;
+        } catch (IOException ioe) {
+            System.out.println("Could not load snapshot " + path + ": " + ioe.getMessage());
+            storage.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Applies the chain of delta snapshots on disk on top of the base at baseIndex. They go through the
+     * node like logs do, so a snapshot that is still being loaded lazily sees them as newer writes.
+     * Returns the log index the last applied delta covers, or baseIndex if there is none. Deltas the base
+     * already covers, and deltas after a gap or a damaged one, can never be used and are deleted.
+     */
+    public int applyDeltas(int baseIndex) {
+        int current = baseIndex;
+        int applied = 0;
+
+        for (Delta d : listDeltas()) {
+            if (d.index <= current) {
+                deleteQuietly(d.path);
+                continue;
+            }
+            if (d.previousIndex == current) {
+                try (SnapshotReader reader = SnapshotReader.open(d.path)) {
+                    reader.forEach((k, v) -> {
+                        if (v == null)
+                            node.delete(k, d.index);
+                        else
+                            node.put(k, v, d.index);
+                    });
+                    current = d.index;
+                    applied++;
+                    synchronized (this) {
+                        deltas.add(d);
+                    }
+                    continue;
+                } catch (IOException ioe) {
+                    System.out.println("Could not load delta snapshot " + d.path.getFileName() + ": " + ioe.getMessage());
+                }
+            }
+            System.out.println("Dropping unusable delta snapshot " + d.path.getFileName() + ", the log from #" + (current + 1) + " is needed instead");
+            deleteQuietly(d.path);
+        }
+
+        deletedSinceSnapshot.clear(); // deletes of the deltas themselves
+        lastSnapshotIndex = current;
+        if (applied > 0)
+            System.out.println("Applied " + applied + " delta snapshot(s) - last log is #" + current);
+        return current;
+    }
+
+    /// Delta files next to the base, ordered by the index they start from.
+    private List<Delta> listDeltas() {
+        Path base = Path.of(snapshotFilePath).toAbsolutePath();
+        String prefix = base.getFileName() + ".delta.";
+        List<Delta> found = new ArrayList<>();
+
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(base.getParent(), prefix + "*")) {
+            for (Path p : dir) {
+                String range = p.getFileName().toString().substring(prefix.length());
+                if (range.endsWith(".tmp")) { // left behind by a crash
+                    deleteQuietly(p);
+                    continue;
+                }
+                String[] parts = range.split("-");
+                try {
+                    found.add(new Delta(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), p, Files.size(p)));
+                } catch (RuntimeException e) {
+                    System.out.println("Ignoring unexpected file " + p.getFileName());
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.println("Could not list delta snapshots: " + ioe.getMessage());
+        }
+
+        found.sort(Comparator.comparingInt((Delta d) -> d.previousIndex).thenComparingInt(d -> d.index));
+        return found;
+    }
+
+    private Path deltaPath(int previousIndex, int index) {
+        return Path.of(String.format("%s.delta.%010d-%010d", snapshotFilePath, previousIndex, index));
+    }
+
+    /// Opens the base snapshot for streaming to a follower, or returns null if there is none.
+    /// Deltas are merged into it first, so the follower gets everything in one file.
+    public SnapshotFile openLatestSnapshot() throws IOException {
+        if (deltaCount() > 0)
+            mergeDeltas();
+
+        synchronized (this) {
+            if (baseIndex == 0 || !Files.exists(Path.of(snapshotFilePath)))
+                return null;
+            return new SnapshotFile(FileChannel.open(Path.of(snapshotFilePath), StandardOpenOption.READ), baseIndex);
+        }
+    }
+
+    /// Where a snapshot received from the leader is written to before it is installed.
+    public Path installTempPath() {
+        return Path.of(snapshotFilePath + ".install");
+    }
+
+    /**
+     * Checks the fully received file at installTempPath(), replaces the local snapshot with it and loads it into storage.
+     * Returns the log index it covers. A damaged file is thrown out before anything is replaced.
+     */
+    public synchronized int installSnapshot(StorageEngine storage) throws IOException {
+        try (SnapshotReader reader = SnapshotReader.open(installTempPath())) {
+            reader.forEach((k, v) -> { });
+        } catch (IOException e) {
+            Files.deleteIfExists(installTempPath());
+            throw e;
+        }
 
-        return s;
+        node.cancelSnapshotLoad(); // storage is about to be replaced
+        Files.move(installTempPath(), Path.of(snapshotFilePath), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (Delta d : deltas) // they were on top of the old base
+            deleteQuietly(d.path);
+        deltas.clear();
+        deletedSinceSnapshot.clear();
+
+        int index = loadSnapshot(storage);
+        if (index == 0)
+            throw new IOException("Installed snapshot could not be loaded");
+        policy.onSnapshotInstalled(baseBytes);
+        return index;
+    }
+
+    // caller holds this
+    private void setBase(int index, long bytes) {
+        baseIndex = index;
+        baseBytes = bytes;
     }
 
+    private synchronized int deltaCount() {
+        return deltas.size();
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Could not delete " + path + ": " + e.getMessage());
+        }
+    }
+
+    public SnapshotPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getLastSnapshotIndex() {
+        return lastSnapshotIndex;
+    }
+
+    /// Waits for a snapshot that is being written, i.e. before the storage its view reads from is cleared.
+    public void awaitIdle() {
+        try {
+            snapshotExecutor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            // shutting down, close() waits for it
+        }
+    }
+
+    /// Lets a snapshot or merge that is being written finish, then stops the background threads.
+    public void close() {
+        snapshotExecutor.shutdown();
+        mergeExecutor.shutdown();
+        try {
+            snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            mergeExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Delta {
+        final int previousIndex; // log index of the snapshot this one is on top of
+        final int index;
+        final Path path;
+        final long bytes;
+
+        Delta(int previousIndex, int index, Path path, long bytes) {
+            this.previousIndex = previousIndex;
+            this.index = index;
+            this.path = path;
+            this.bytes = bytes;
+        }
+    }
+
+    public static class SnapshotFile implements Closeable {
+        private final FileChannel channel;
+        private final int lastLogIndex;
+
+        SnapshotFile(FileChannel channel, int lastLogIndex) {
+            this.channel = channel;
+            this.lastLogIndex = lastLogIndex;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public int getLastLogIndex() {
+            return lastLogIndex;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
 }
@@ -0,0 +1,347 @@
+package com.leon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes a snapshot file as a stream, one entry at a time, so the state never has to be copied in memory.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * header  int magic "FTSS", byte version, int lastLogIndex, long entryCount, int CRC32C of the header bytes before it
+ * blocks  int length, int CRC32C of the block's bytes, then length bytes of records:
+ *         int keyLength, key bytes, int valueLength, value bytes (UTF-8);
+ *         valueLength -1 and no value bytes - the key was deleted, only in delta snapshots
+ * end     a block of length 0
+ * index   long slots of an open-addressing hash table on String.hashCode() of the keys, linear probing:
+ *         1 + file offset of the record, 0 - empty slot
+ * trailer long index offset, int slot count (0 - no index), int CRC32C of the index and the first 12 trailer bytes
+ * </pre>
+ * A delta snapshot has the same layout and holds only the keys written or deleted since the previous
+ * snapshot, see SnapshotService. A record never spans two blocks, a record bigger than the block size gets a block of its own.
+ * The header is written last, once the entry count is known. See {@link SnapshotReader}, and
+ * {@link MappedSnapshot} for looking keys up through the index without loading the file.
+ * <p>
+ * Deltas are only ever read whole and get no index. For the index the key hash and offset of every record
+ * are spilled to a file next to the snapshot, the table is then built from it one range of slots at a time,
+ * so memory use does not grow with the number of entries.
+ */
+public class SnapshotWriter implements Closeable {
+    static final int MAGIC = 0x46545353; // "FTSS"
+    static final byte FORMAT_VERSION = 2; // 1 - no index and trailer
+    static final int HEADER_SIZE = 4 + 1 + 4 + 8 + 4;
+    static final int BLOCK_HEADER_SIZE = 4 + 4;
+    static final int TRAILER_SIZE = 8 + 4 + 4;
+    static final int MAX_INDEX_SLOTS = 1 << 30;
+    static final int INDEX_RANGE_SLOTS = 1 << 22; // slots of the index built in memory at a time, 32 MB
+    private static final int SPILL_BUFFER_BYTES = 64 * 1024;
+
+    private final FileChannel channel;
+    private final int lastLogIndex;
+    private final ByteBuffer block;
+    private long entryCount = 0;
+    private long position = HEADER_SIZE;
+
+    // int key hash and long file offset of every record, for the index; null - no index
+    private final Path spillPath;
+    private DataOutputStream spill;
+
+    public SnapshotWriter(Path path, int lastLogIndex, int blockBytes) throws IOException {
+        this(path, lastLogIndex, blockBytes, true);
+    }
+
+    /// indexed false - the file gets no index, as for deltas.
+    public SnapshotWriter(Path path, int lastLogIndex, int blockBytes, boolean indexed) throws IOException {
+        this.channel = FileChannel.open(path, CREATE, READ, WRITE, TRUNCATE_EXISTING);
+        this.lastLogIndex = lastLogIndex;
+        this.block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + Math.max(blockBytes, 1024));
+        this.block.position(BLOCK_HEADER_SIZE);
+
+        if (indexed) {
+            this.spillPath = Path.of(path + ".index");
+            try {
+                this.spill = newSpill(spillPath);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } else {
+            this.spillPath = null;
+        }
+    }
+
+    /// Adds an entry, or with value null a deleted key.
+    public void add(String key, String value) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        int size = 4 + k.length + 4 + (v == null ? 0 : v.length);
+
+        if (block.remaining() < size && block.position() > BLOCK_HEADER_SIZE)
+            writeBlock(block);
+
+        long recordOffset = block.remaining() < size ? position + BLOCK_HEADER_SIZE : position + block.position();
+        if (spill != null) {
+            spill.writeInt(key.hashCode());
+            spill.writeLong(recordOffset);
+        }
+
+        if (block.remaining() < size) {
+            ByteBuffer big = ByteBuffer.allocate(BLOCK_HEADER_SIZE + size);
+            big.position(BLOCK_HEADER_SIZE);
+            putRecord(big, k, v);
+            writeBlock(big);
+        } else {
+            putRecord(block, k, v);
+        }
+        entryCount++;
+    }
+
+    private static void putRecord(ByteBuffer buf, byte[] key, byte[] value) {
+        buf.putInt(key.length).put(key);
+        if (value == null)
+            buf.putInt(-1);
+        else
+            buf.putInt(value.length).put(value);
+    }
+
+    /// Writes the last block, the end marker, the index and the header, and forces everything to disk.
+    public void finish() throws IOException {
+        if (block.position() > BLOCK_HEADER_SIZE)
+            writeBlock(block);
+        writeBlock(ByteBuffer.allocate(BLOCK_HEADER_SIZE).position(BLOCK_HEADER_SIZE));
+        writeIndex();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put(FORMAT_VERSION).putInt(lastLogIndex).putLong(entryCount);
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, HEADER_SIZE - 4);
+        header.putInt((int) crc.getValue());
+        header.flip();
+        writeFully(header, 0);
+
+        channel.force(true);
+    }
+
+    private void writeIndex() throws IOException {
+        long indexOffset = position;
+        int slots = 0;
+        CRC32C crc = new CRC32C();
+
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            slots = indexSlots(entryCount);
+            if (slots > 0 && !writeTable(indexOffset, slots)) {
+                System.out.println("The snapshot index has a run of taken slots too long to build, writing the snapshot without it.");
+                channel.truncate(indexOffset);
+                slots = 0;
+            }
+        }
+
+        if (slots > 0) {
+            // read back, the first range of the table is written last
+            ByteBuffer buf = ByteBuffer.allocate(SPILL_BUFFER_BYTES);
+            long end = indexOffset + (long) slots * 8;
+            while (position < end) {
+                buf.clear().limit((int) Math.min(buf.capacity(), end - position));
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, position + buf.position()) < 0)
+                        throw new IOException("Snapshot index ends early");
+                }
+                buf.flip();
+                crc.update(buf);
+                position += buf.limit();
+            }
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putLong(indexOffset).putInt(slots);
+        crc.update(trailer.array(), 0, TRAILER_SIZE - 4);
+        trailer.putInt((int) crc.getValue());
+        trailer.flip();
+        position += writeFully(trailer, position);
+    }
+
+    /**
+     * Writes the hash table of slots slots at indexOffset, INDEX_RANGE_SLOTS at a time: the spilled records
+     * are split into one file per range of slots by their home slot, then each range is filled from its file
+     * and written. A record probing past the end of its range carries over to the start of the next one,
+     * ahead of that range's own records, and from the last range it wraps around into the first, which is
+     * therefore kept in memory and written last. Returns false if a carried over record found no free slot
+     * within the next range, which a table at most half full all but rules out.
+     */
+    private boolean writeTable(long indexOffset, int slots) throws IOException {
+        int rangeSlots = Math.min(slots, INDEX_RANGE_SLOTS);
+        int ranges = slots / rangeSlots;
+        List<Path> rangeFiles = ranges == 1 ? List.of(spillPath) : splitSpill(slots, rangeSlots, ranges);
+
+        try {
+            long[] first = new long[rangeSlots];
+            long[] table = ranges == 1 ? first : new long[rangeSlots];
+            long[] carry = new long[16];
+            int carried = 0;
+
+            for (int r = 0; r < ranges; r++) {
+                long[] range = r == 0 ? first : table;
+                Arrays.fill(range, 0);
+                if (carried > rangeSlots)
+                    return false;
+                System.arraycopy(carry, 0, range, 0, carried);
+                carried = 0;
+
+                long rangeStart = (long) r * rangeSlots;
+                try (DataInputStream in = openSpill(rangeFiles.get(r))) {
+                    for (long n = Files.size(rangeFiles.get(r)) / 12; n > 0; n--) {
+                        int slot = (int) ((MappedSnapshot.spread(in.readInt()) & (slots - 1)) - rangeStart);
+                        long entry = in.readLong() + 1;
+                        while (slot < rangeSlots && range[slot] != 0)
+                            slot++;
+                        if (slot < rangeSlots) {
+                            range[slot] = entry;
+                        } else {
+                            if (carried == carry.length)
+                                carry = Arrays.copyOf(carry, carried * 2);
+                            carry[carried++] = entry;
+                        }
+                    }
+                }
+                if (r > 0)
+                    writeSlots(range, indexOffset + rangeStart * 8);
+            }
+
+            // the last range wraps around into the first
+            int slot = 0;
+            for (int i = 0; i < carried; i++) {
+                while (slot < rangeSlots && first[slot] != 0)
+                    slot++;
+                if (slot == rangeSlots)
+                    return false;
+                first[slot] = carry[i];
+            }
+            writeSlots(first, indexOffset);
+            return true;
+        } finally {
+            if (ranges > 1) {
+                for (Path p : rangeFiles)
+                    Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    /// Splits the spill file into one file per range of rangeSlots slots, by the home slot of each record.
+    private List<Path> splitSpill(int slots, int rangeSlots, int ranges) throws IOException {
+        int rangeShift = Integer.numberOfTrailingZeros(rangeSlots);
+        List<Path> files = new ArrayList<>(ranges);
+        DataOutputStream[] outs = new DataOutputStream[ranges];
+        try (DataInputStream in = openSpill(spillPath)) {
+            for (int r = 0; r < ranges; r++) {
+                files.add(Path.of(spillPath + "." + r));
+                outs[r] = newSpill(files.get(r));
+            }
+            for (long n = Files.size(spillPath) / 12; n > 0; n--) {
+                int hash = in.readInt();
+                long offset = in.readLong();
+                DataOutputStream out = outs[(MappedSnapshot.spread(hash) & (slots - 1)) >>> rangeShift];
+                out.writeInt(hash);
+                out.writeLong(offset);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path p : files)
+                Files.deleteIfExists(p);
+            throw e;
+        } finally {
+            for (DataOutputStream out : outs) {
+                if (out != null)
+                    out.close();
+            }
+        }
+        return files;
+    }
+
+    private void writeSlots(long[] slots, long at) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SPILL_BUFFER_BYTES);
+        for (long entry : slots) {
+            if (!buf.hasRemaining()) {
+                buf.flip();
+                at += writeFully(buf, at);
+                buf.clear();
+            }
+            buf.putLong(entry);
+        }
+        buf.flip();
+        writeFully(buf, at);
+    }
+
+    private static DataOutputStream newSpill(Path path) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, CREATE, WRITE, TRUNCATE_EXISTING), SPILL_BUFFER_BYTES));
+    }
+
+    private static DataInputStream openSpill(Path path) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), SPILL_BUFFER_BYTES));
+    }
+
+    /// Power of two at most half full, 0 - too many entries for an index
+    static int indexSlots(long entries) {
+        if (entries * 2 > MAX_INDEX_SLOTS)
+            return 0;
+        return Math.max(2, Integer.highestOneBit((int) Math.max(1, entries * 2 - 1)) << 1);
+    }
+
+    /// buf holds a block's records after BLOCK_HEADER_SIZE bytes of room for its header, up to its position.
+    private void writeBlock(ByteBuffer buf) throws IOException {
+        int length = buf.position() - BLOCK_HEADER_SIZE;
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), BLOCK_HEADER_SIZE, length);
+        buf.putInt(0, length);
+        buf.putInt(4, (int) crc.getValue());
+
+        buf.flip();
+        position += writeFully(buf, position);
+        buf.clear();
+        buf.position(BLOCK_HEADER_SIZE);
+    }
+
+    private int writeFully(ByteBuffer buf, long at) throws IOException {
+        int written = 0;
+        while (buf.hasRemaining())
+            written += channel.write(buf, at + written);
+        return written;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /// Bytes written so far, the file size once finished.
+    public long getSize() {
+        return position;
+    }
+
+    /// Closes the file and removes the spilled index records.
+    @Override
+    public void close() throws IOException {
+        try {
+            if (spill != null)
+                spill.close();
+            channel.close();
+        } finally {
+            if (spillPath != null)
+                Files.deleteIfExists(spillPath);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.leon;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.leon.gRPC.*;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous client of one node, on a single HTTP/2 connection.
+ * <p>
+ * Every call returns right away with a future of the response, so one client keeps many requests in flight.
+ * At most maxInFlight are outstanding: a call beyond that blocks until an earlier one is answered, which
+ * slows the caller down to what the node can take instead of queueing without bound.
+ * <p>
+ * A request without a request_id is given one. In-flight requests are tracked by their id; an answer
+ * carrying another id fails the future, and close() fails everything still outstanding.
+ * Requests are not ordered with respect to each other, chain the futures where order matters.
+ */
+public class StorageClient implements Closeable {
+    private final String address;
+    private final ManagedChannel channel;
+    private final StorageServiceGrpc.StorageServiceFutureStub futureStub;
+    private final Semaphore inFlight;
+    private final long timeoutMs;
+
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final Map<Integer, CompletableFuture<?>> pending = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    public StorageClient(String address, int maxInFlight, long timeoutMs) {
+        String ip = address.split(":")[0];
+        int port = Integer.parseInt(address.split(":")[1]);
+
+        this.address = address;
+        this.channel = ManagedChannelBuilder.forAddress(ip, port)
+                .usePlaintext()
+                .build();
+        this.futureStub = StorageServiceGrpc.newFutureStub(channel);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timeoutMs = timeoutMs;
+    }
+
+    public CompletableFuture<CommandResponse> put(String key, String value) {
+        return command(CommandRequest.newBuilder().setOpType(CommandType.PUT).setKey(key).setValue(value).build());
+    }
+
+    public CompletableFuture<CommandResponse> read(String key) {
+        return command(CommandRequest.newBuilder().setOpType(CommandType.READ).setKey(key).build());
+    }
+
+    public CompletableFuture<CommandResponse> delete(String key) {
+        return command(CommandRequest.newBuilder().setOpType(CommandType.DELETE).setKey(key).build());
+    }
+
+    /// Sends request, blocking only while maxInFlight requests are outstanding.
+    public CompletableFuture<CommandResponse> command(CommandRequest request) {
+        if (request.getRequestId() == 0)
+            request = request.toBuilder().setRequestId(newRequestId()).build();
+
+        int requestId = request.getRequestId();
+        CompletableFuture<CommandResponse> result = begin(requestId);
+        if (result.isDone())
+            return result;
+
+        CommandRequest sent = request;
+        Futures.addCallback(futureStub.withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS).command(sent), new FutureCallback<>() {
+            @Override
+            public void onSuccess(CommandResponse response) {
+                if (response.getRequestId() != requestId)
+                    finish(requestId, result, null, new IllegalStateException("Response to request " + response.getRequestId() + " received for request " + requestId));
+                else
+                    finish(requestId, result, response, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                finish(requestId, result, null, t);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    /// Sends a Batch, the writes of which are applied all together or not at all. Counts as one request in flight.
+    public CompletableFuture<BatchResponse> batch(BatchRequest request) {
+        if (request.getRequestId() == 0)
+            request = request.toBuilder().setRequestId(newRequestId()).build();
+
+        int requestId = request.getRequestId();
+        CompletableFuture<BatchResponse> result = begin(requestId);
+        if (result.isDone())
+            return result;
+
+        Futures.addCallback(futureStub.withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS).batch(request), new FutureCallback<>() {
+            @Override
+            public void onSuccess(BatchResponse response) {
+                if (response.getRequestId() != requestId)
+                    finish(requestId, result, null, new IllegalStateException("Response to batch " + response.getRequestId() + " received for batch " + requestId));
+                else
+                    finish(requestId, result, response, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                finish(requestId, result, null, t);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    /// Takes an in-flight slot for requestId, returns a future that already failed if none can be had.
+    private <T> CompletableFuture<T> begin(int requestId) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        if (closed || pending.putIfAbsent(requestId, result) != null) {
+            inFlight.release();
+            result.completeExceptionally(closed ? closedError() : new IllegalStateException("Request " + requestId + " is already in flight"));
+        }
+        return result;
+    }
+
+    private <T> void finish(int requestId, CompletableFuture<T> result, T response, Throwable error) {
+        if (!pending.remove(requestId, result))
+            return; // failed by close()
+        inFlight.release();
+        if (error != null)
+            result.completeExceptionally(error);
+        else
+            result.complete(response);
+    }
+
+    /// Request ids are positive and unique among the requests of this client, 0 means unset.
+    private int newRequestId() {
+        return nextRequestId.getAndUpdate(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+    }
+
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /// UNAVAILABLE like a dropped connection, the request may or may not have been executed.
+    private RuntimeException closedError() {
+        return Status.UNAVAILABLE.withDescription("Client of " + address + " is closed").asRuntimeException();
+    }
+
+    /// Fails every request still in flight and closes the connection.
+    @Override
+    public void close() {
+        closed = true;
+        for (Integer requestId : pending.keySet()) {
+            CompletableFuture<?> f = pending.remove(requestId);
+            if (f != null) {
+                inFlight.release();
+                f.completeExceptionally(closedError());
+            }
+        }
+        channel.shutdownNow();
+    }
+}
@@ -1,81 +1,29 @@
 package com.leon;
 
 import com.leon.gRPC.*;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.ZooKeeper;
 
-import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
-import static java.lang.Math.abs;
+public class User {
+    private static final long LEADER_WAIT_MS = 30_000;
 
-public class User implements Watcher {
-    private ZooKeeper zk;
-    private String leaderNodePath;
-    private String leaderGRPCAddress;
-    private String rootZNode = "/root";
-    private Integer zkSyncMutex;
-
-    private ManagedChannel leaderChannel = null;
-    private StorageServiceGrpc.StorageServiceBlockingStub blockingStub = null;
+    private ClusterClient client;
     private boolean ready = false;
-    Random r = new Random();
 
     public User(String zookeeperHosts) {
         try {
-            connectToZookeeper(zookeeperHosts);
-            findLeaderNode();
-        } catch (Exception e) {
-            System.out.println("Error with leader node!");
-            findLeaderNode();
-        }
-    }
-
-    private void connectToZookeeper(String address) {
-        if (zk == null) {
-            try {
-                System.out.println("Connecting to ZK...");
-                zk = new ZooKeeper(address, 3000, this);
-                zkSyncMutex = -1;
-            } catch (IOException e) {
-                e.printStackTrace();
-                zk = null;
-            }
-        }
-    }
-
-    private synchronized void findLeaderNode() {
-        try {
-            Thread.sleep(2100);
-
-            List<String> children = zk.getChildren(rootZNode, false);
-
-            boolean leaderExists = false;
-            for (String s : children) {
-                if (s.equals("leader")) {
-                    leaderExists = true;
-                    children.remove(s);
-                    break;
-                }
-            }
-
-            if (!leaderExists) {
-                waitForLeaderToJoin();
+            client = new ClusterClient(zookeeperHosts);
+            System.out.println("Waiting for a leader...");
+            String leader = client.getTopology().awaitLeader(LEADER_WAIT_MS);
+            if (leader == null) {
+                System.out.println("No leader after " + LEADER_WAIT_MS + "ms, is the cluster up?");
+                return;
             }
-
-            Collections.sort(children);
-
-            leaderNodePath = children.get(0);
-
-            System.out.println("GETTING LEADER ADDRESS:");
-            this.leaderGRPCAddress = new String(zk.getData(rootZNode + "/" + leaderNodePath, false, null));
-            System.out.println(this.leaderGRPCAddress);
-            this.blockingStub = getBlockingStub(this.leaderGRPCAddress);
+            System.out.println("Leader: " + leader);
             interactWithServer();
         } catch (Exception e) {
+            System.out.println("Error connecting to the cluster!");
             e.printStackTrace();
         }
     }
@@ -110,7 +58,6 @@ public class User implements Watcher {
             }
 
             CommandRequest.Builder requestBuilder = CommandRequest.newBuilder()
-                    .setRequestId(abs(r.nextInt()))
                     .setKey(parts[1]);
 
             if (parts[0].equalsIgnoreCase("PUT")) {
@@ -129,119 +76,64 @@ public class User implements Watcher {
             }
 
             CommandRequest request = requestBuilder.build();
-            CommandResponse response;
 
             printRequest(request);
-            synchronized (this) {
-                response = blockingStub.command(request);
-            }
-            printResponse(response);
+            printResponse(client.command(request).join());
         }
     }
 
     private void interactWithServer() {
         try {
-            for (int i = 0; i < 50; i++) {
-                sendRequests();
-            }
-            Thread.sleep(2000);
+            // every key gets its own PUT / READ / DELETE / READ sequence, all keys are in flight at once
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> sequences = new ArrayList<>();
+            for (int i = 0; i < 50; i++)
+                sequences.add(sendRequests("LAV" + i, "HUDAK"));
+            CompletableFuture.allOf(sequences.toArray(new CompletableFuture<?>[0])).join();
+            System.out.println("Sent " + sequences.size() * 4 + " requests in " + (System.nanoTime() - start) / 1_000_000 + "ms");
         } catch (Exception e) {
-            System.out.println("Error with leader node!");
+            // redirects and retries are up to the client, whatever arrives here failed for good
+            System.out.println("Request failed!");
             e.printStackTrace();
-            findLeaderNode();
         }
     }
 
-    private void sendRequests() {
-        // sends 4 requests to server
-        CommandType type;
-
-        type = CommandType.PUT;
-
-        String key = "LAV";
-        String value = "HUDAK";
-        buildAndSendRequest(type, abs(r.nextInt()), key, value);
-
-        type = CommandType.READ;
-        buildAndSendRequest(type, abs(r.nextInt()), key, "");
-
-        type = CommandType.DELETE;
-        buildAndSendRequest(type, abs(r.nextInt()), key, "");
-
-        type = CommandType.READ;
-        buildAndSendRequest(type, abs(r.nextInt()), key, "");
-
-        try {
-
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    private CompletableFuture<Void> sendRequests(String key, String value) {
+        // sends 4 requests to server, each once the previous one was answered
+        return buildAndSendRequest(CommandType.PUT, key, value)
+                .thenCompose(r -> buildAndSendRequest(CommandType.READ, key, ""))
+                .thenCompose(r -> buildAndSendRequest(CommandType.DELETE, key, ""))
+                .thenCompose(r -> buildAndSendRequest(CommandType.READ, key, ""))
+                .thenAccept(r -> {
+                });
     }
 
-    private void buildAndSendRequest(CommandType type, int reqID, String key, String value) {
-        CommandRequest request;
-        CommandResponse response;
-        request = CommandRequest.newBuilder()
+    private CompletableFuture<CommandResponse> buildAndSendRequest(CommandType type, String key, String value) {
+        CommandRequest request = CommandRequest.newBuilder()
                 .setOpType(type)
-                .setRequestId(reqID)
                 .setKey(key)
                 .setValue(value)
                 .build();
 
-        printRequest(request);
-        synchronized (this) {
-            response = blockingStub.command(request);
-        }
-        printResponse(response);
-    }
-
-    synchronized public void process(WatchedEvent event) {
-        synchronized (zkSyncMutex) {
-            zkSyncMutex.notify();
-        }
-    }
-
-    public StorageServiceGrpc.StorageServiceBlockingStub getBlockingStub(String address) {
-        String ip = address.split(":")[0];
-        int port = Integer.parseInt(address.split(":")[1]);
-
-        this.leaderChannel = ManagedChannelBuilder.forAddress(ip, port)
-                .usePlaintext()
-                .build();
-
-        return StorageServiceGrpc.newBlockingStub(leaderChannel);
-    }
-
-    public void waitForLeaderToJoin() throws InterruptedException {
-        while (true) {
-            // main node loop
-            synchronized (zkSyncMutex) {
-                try {
-                    zkSyncMutex.wait();
-                    System.out.println("System config changed! Re-electing.");
-                    // rerun election
-                    findLeaderNode();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        return client.command(request).whenComplete((response, e) -> {
+            if (response != null)
+                printResponse(response);
+        });
     }
 
     private void printRequest(CommandRequest request) {
-        System.out.println("========= REQUEST =========");
-        System.out.println("Type: " + request.getOpType());
-        System.out.println("Request ID: " + request.getRequestId());
-        System.out.println("Key: " + request.getKey());
-        System.out.println("Value: " + request.getValue());
+        System.out.println("========= REQUEST =========\n"
+                + "Type: " + request.getOpType() + "\n"
+                + "Key: " + request.getKey() + "\n"
+                + "Value: " + request.getValue());
     }
 
+    // one println per response, responses arrive on several threads at once
     private void printResponse(CommandResponse response) {
-        System.out.println("========= RESPONSE =========");
-        System.out.println("Request ID: " + response.getRequestId());
-        System.out.println("Status: " + response.getStatus());
-        System.out.println("Key: " + response.getKey());
-        System.out.println("Value: " + response.getValue());
+        System.out.println("========= RESPONSE =========\n"
+                + "Request ID: " + response.getRequestId() + "\n"
+                + "Status: " + response.getStatus() + "\n"
+                + "Key: " + response.getKey() + "\n"
+                + "Value: " + response.getValue());
     }
 }
@@ -0,0 +1,187 @@
+package com.leon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable, append only front end of the SegmentedLog.
+ * <p>
+ * With group commit enabled, appends from concurrent callers are queued and a single flusher thread
+ * writes everything that is waiting (up to maxBatchSize entries, lingering up to lingerMicros for more)
+ * followed by one force(). Every caller in the batch is completed once the batch is durable.
+ * Without group commit every append is written and forced on the caller's thread.
+ * <p>
+ * Once a write fails, every later one fails too: the log must not go on after a record that may be
+ * missing or torn. A restart cuts the log back to its last good record.
+ */
+public class WriteAheadLog implements Closeable {
+    private final SegmentedLog log;
+    private final boolean groupCommit;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+
+    private final LinkedBlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean closed = false; // only set while holding pending, see append()
+    private IOException failure = null; // guarded by this, the write that failed
+
+    public WriteAheadLog(SegmentedLog log, boolean groupCommit, int maxBatchSize, long lingerMicros) {
+        this.log = log;
+        this.groupCommit = groupCommit;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, lingerMicros));
+
+        if (groupCommit) {
+            flusher = new Thread(this::flushLoop, "wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /// Queues record for writing. The returned future completes once the record has been forced to disk.
+    public CompletableFuture<Void> append(LogRecord record) {
+        PendingWrite write = new PendingWrite(record);
+
+        // checked and queued together, so nothing is queued after the flusher has seen closed and drained the queue
+        synchronized (pending) {
+            if (closed) {
+                write.future.completeExceptionally(new IOException("Write-ahead log is closed"));
+                return write.future;
+            }
+            if (groupCommit) {
+                pending.add(write);
+                return write.future;
+            }
+        }
+        flush(List.of(write));
+        return write.future;
+    }
+
+    /// Queues consecutive records for writing, they go out in as few force() calls as the batch size allows.
+    public CompletableFuture<Void> appendAll(List<LogRecord> records) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[records.size()];
+        for (int i = 0; i < records.size(); i++)
+            futures[i] = append(records.get(i));
+        return CompletableFuture.allOf(futures);
+    }
+
+    /// Appends record and blocks until it is durable.
+    public void appendAndSync(LogRecord record) throws IOException {
+        try {
+            append(record).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioe)
+                throw ioe;
+            throw e;
+        }
+    }
+
+    private void flushLoop() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+
+        while (!closed || !pending.isEmpty()) {
+            try {
+                PendingWrite first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+
+                batch.add(first);
+                pending.drainTo(batch, maxBatchSize - batch.size());
+
+                // wait a little for stragglers so they can share the force()
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+
+                    PendingWrite next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+
+                    batch.add(next);
+                    pending.drainTo(batch, maxBatchSize - batch.size());
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failAll(batch, new IOException("Write-ahead log flusher interrupted"));
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private synchronized void flush(List<PendingWrite> batch) {
+        if (failure != null) {
+            failAll(batch, new IOException("An earlier write to the log failed", failure));
+            return;
+        }
+
+        List<LogRecord> records = new ArrayList<>(batch.size());
+        for (PendingWrite w : batch)
+            records.add(w.record);
+
+        try {
+            log.append(records);
+            log.force();
+        } catch (IOException e) {
+            System.out.println("An error occurred while writing the log, no more logs are written until a restart.");
+            e.printStackTrace();
+            failure = e;
+            failAll(batch, e);
+            return;
+        }
+
+        for (PendingWrite w : batch)
+            w.future.complete(null);
+    }
+
+    private void failAll(List<PendingWrite> batch, IOException e) {
+        for (PendingWrite w : batch)
+            w.future.completeExceptionally(e);
+    }
+
+    /// Writes what is queued, then closes the log. Appends from now on fail.
+    @Override
+    public void close() throws IOException {
+        synchronized (pending) {
+            closed = true;
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // left behind only if the flusher was interrupted
+        List<PendingWrite> left = new ArrayList<>();
+        pending.drainTo(left);
+        failAll(left, new IOException("Write-ahead log is closed"));
+
+        synchronized (this) {
+            log.close();
+        }
+    }
+
+    private static class PendingWrite {
+        final LogRecord record;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(LogRecord record) {
+            this.record = record;
+        }
+    }
+}
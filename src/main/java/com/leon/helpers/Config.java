@@ -0,0 +1,95 @@
+package com.leon.helpers;
+
+/**
+ * Tunables for a node, read once from JVM system properties.
+ * Example: java -Dwal.maxBatchSize=512 -Dwal.lingerMicros=200 -jar Main.jar ...
+ */
+public final class Config {
+
+    // write-ahead log
+    public static final boolean WAL_GROUP_COMMIT = Boolean.parseBoolean(System.getProperty("wal.groupCommit", "true"));
+    public static final int WAL_MAX_BATCH_SIZE = Integer.getInteger("wal.maxBatchSize", 256);
+    public static final long WAL_LINGER_MICROS = Long.getLong("wal.lingerMicros", 0L);
+
+    // segmented log
+    public static final int LOG_SEGMENT_BYTES = Integer.getInteger("log.segmentBytes", 64 * 1024 * 1024);
+    public static final int LOG_INDEX_INTERVAL_BYTES = Integer.getInteger("log.indexIntervalBytes", 4096);
+    // entries the leader keeps below its latest snapshot so slightly lagging followers can still catch up
+    public static final int LOG_RETENTION_ENTRIES = Integer.getInteger("log.retentionEntries", 10_000);
+    // where segments covered by a snapshot are moved to, empty - they are deleted
+    public static final String LOG_ARCHIVE_DIR = System.getProperty("log.archiveDir", "");
+
+    // log replay on startup
+    public static final int RECOVERY_THREADS = Integer.getInteger("recovery.threads", Runtime.getRuntime().availableProcessors());
+    public static final int RECOVERY_CHUNK_BYTES = Integer.getInteger("recovery.chunkBytes", 1024 * 1024);
+
+    // replication
+    public static final long REPLICATION_TIMEOUT_MS = Long.getLong("replication.timeoutMs", 2000L);
+    public static final long REPLICATION_RETRY_BACKOFF_MS = Long.getLong("replication.retryBackoffMs", 20L);
+    public static final long REPLICATION_MAX_BACKOFF_MS = Long.getLong("replication.maxBackoffMs", 1000L);
+    public static final int REPLICATION_MAX_IN_FLIGHT = Integer.getInteger("replication.maxInFlight", 4);
+    public static final int REPLICATION_TAIL_CACHE_ENTRIES = Integer.getInteger("replication.tailCacheEntries", 4096);
+    public static final long HEARTBEAT_INTERVAL_MS = Long.getLong("replication.heartbeatMs", 100L);
+    // a follower this many entries behind the leader's snapshot gets the snapshot instead of the log
+    public static final int SNAPSHOT_INSTALL_LAG_ENTRIES = Integer.getInteger("replication.snapshotInstallLag", 100_000);
+    public static final int SNAPSHOT_CHUNK_BYTES = Integer.getInteger("replication.snapshotChunkBytes", 1024 * 1024);
+    public static final long SNAPSHOT_INSTALL_TIMEOUT_MS = Long.getLong("replication.snapshotInstallTimeoutMs", 10 * 60 * 1000L);
+    public static final int REPLICATION_THREADS = Integer.getInteger("replication.threads", 4);
+    // limits of a single AppendEntries call, whichever is hit first
+    public static final int APPEND_BATCH_MAX_BYTES = Integer.getInteger("replication.batchMaxBytes", 1024 * 1024);
+    public static final int APPEND_BATCH_MAX_ENTRIES = Integer.getInteger("replication.batchMaxEntries", 1000);
+
+    // snapshots
+    // records are grouped into checksummed blocks of about this size
+    public static final int SNAPSHOT_BLOCK_BYTES = Integer.getInteger("snapshot.blockBytes", 64 * 1024);
+    // when to snapshot, see SnapshotPolicy
+    public static final long SNAPSHOT_MIN_LOG_BYTES = Long.getLong("snapshot.minLogBytes", 1024 * 1024L);
+    public static final long SNAPSHOT_MAX_LOG_BYTES = Long.getLong("snapshot.maxLogBytes", 256 * 1024 * 1024L);
+    public static final long SNAPSHOT_MAX_REPLAY_MS = Long.getLong("snapshot.maxReplayMs", 10_000L);
+    public static final double SNAPSHOT_MAX_BUSY_RATIO = Double.parseDouble(System.getProperty("snapshot.maxBusyRatio", "0.2"));
+    // delta snapshots on top of a full base, merged into a new base once there are this many, 0 - always full snapshots
+    public static final int SNAPSHOT_MAX_DELTAS = Integer.getInteger("snapshot.maxDeltas", 8);
+    // ... or once they add up to this share of the base's size
+    public static final double SNAPSHOT_DELTA_MERGE_RATIO = Double.parseDouble(System.getProperty("snapshot.deltaMergeRatio", "0.5"));
+    // on restart, serve the snapshot from a memory-mapped file while it is loaded in the background
+    public static final boolean SNAPSHOT_LAZY_LOAD = Boolean.parseBoolean(System.getProperty("snapshot.lazyLoad", "true"));
+
+    // leader write batching
+    public static final int COMMAND_BATCH_MAX_SIZE = Integer.getInteger("command.batchMaxSize", 256);
+    public static final long COMMAND_LINGER_MICROS = Long.getLong("command.lingerMicros", 0L);
+    // batches written and replicating at the same time, each waits for its commit
+    public static final int COMMAND_MAX_PENDING_BATCHES = Integer.getInteger("command.maxPendingBatches", 4);
+
+    // storage engine
+    // striped - on heap, offheap - keys and values in direct memory, ordered - sorted on heap, supports Scan
+    public static final String STORAGE_ENGINE = System.getProperty("storage.engine", "striped");
+    public static final int STORAGE_STRIPES = Integer.getInteger("storage.stripes", 4 * Runtime.getRuntime().availableProcessors());
+    public static final int STORAGE_OFF_HEAP_SLAB_BYTES = Integer.getInteger("storage.offHeapSlabBytes", 64 * 1024 * 1024);
+    public static final int STORAGE_OFF_HEAP_INITIAL_KEYS = Integer.getInteger("storage.offHeapInitialKeys", 1 << 16);
+
+    // Scan pages, whichever limit is hit first
+    public static final int SCAN_PAGE_SIZE = Integer.getInteger("scan.pageSize", 256);
+    public static final int SCAN_PAGE_MAX_BYTES = Integer.getInteger("scan.pageMaxBytes", 1024 * 1024);
+
+    // follower reads
+    // a follower answers READs only if it heard from the leader at most this long ago, unless the request sets its own bound
+    public static final long READ_MAX_STALENESS_MS = Long.getLong("read.maxStalenessMs", 1000L);
+
+    // leader leases
+    // a follower accepts no newer leader for this long after its last AppendEntries, so the leader can answer READs itself; 0 - off
+    public static final long LEASE_DURATION_MS = Long.getLong("lease.durationMs", 2000L);
+    // the leader gives its lease up this much early, covering clocks that run at slightly different rates
+    public static final long LEASE_GUARD_MS = Long.getLong("lease.guardMs", 200L);
+
+    // client (User)
+    public static final int CLIENT_MAX_IN_FLIGHT = Integer.getInteger("client.maxInFlight", 256);
+    public static final long CLIENT_TIMEOUT_MS = Long.getLong("client.timeoutMs", 5000L);
+    // tries per request, across redirects and retries while there is no reachable leader
+    public static final int CLIENT_MAX_ATTEMPTS = Integer.getInteger("client.maxAttempts", 8);
+    public static final long CLIENT_RETRY_BACKOFF_MS = Long.getLong("client.retryBackoffMs", 50L);
+    // a follower that was not synced or not reachable gets no READs for this long
+    public static final long CLIENT_FOLLOWER_BACKOFF_MS = Long.getLong("client.followerBackoffMs", 1000L);
+
+    private Config() {
+    }
+}
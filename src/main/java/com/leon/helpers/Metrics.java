@@ -0,0 +1,38 @@
+package com.leon.helpers;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named counters and gauges of a node, served by its GetMetrics RPC. Every Node owns one and hands it to
+ * its components, so nodes sharing a JVM keep their values apart.
+ * Names are dotted, component first, i.e. snapshot.triggered.log_size.
+ */
+public final class Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    /// Registers a value that is read whenever metrics are collected; replaces an earlier gauge of the same name.
+    public void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /// Current value of every counter and gauge, sorted by name.
+    public Map<String, Double> collect() {
+        Map<String, Double> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, (double) counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsDouble()));
+        return values;
+    }
+}
@@ -0,0 +1,534 @@
+package com.leon.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * StorageEngine keeping keys and values outside the Java heap, so the heap (and GC pauses) stay the same
+ * size no matter how many keys are stored.
+ * <p>
+ * Entries are appended as UTF-8 bytes to direct ByteBuffer slabs:
+ * <pre>
+ * int  keyLength
+ * int  valueLength
+ * long version
+ * key bytes, value bytes
+ * </pre>
+ * and found through an open-addressing hash table (linear probing) of (long address, int hash) slots,
+ * held in direct buffers of PAGE_SLOTS slots each, so it can grow past what a single buffer addresses. An address is (slab number + 1) << 32 | offset, 0 marks an empty slot
+ * and -1 a deleted one. Overwritten and deleted entries leave garbage behind in their slab; once less
+ * than half of a full slab is still live its entries are moved to the current slab and the slab is dropped.
+ * <p>
+ * Writes take a StampedLock's write lock. Reads are optimistic: they run without a lock and are only
+ * retried under the read lock if a write happened in the meantime.
+ * <p>
+ * Views share the table pages and the slab array with the engine: opening one only bumps the view epoch.
+ * A write to a page allocated before the latest view was opened copies that page first, as long as a view is
+ * open, and a change to the slab array copies the array, so a long snapshot copies at most the pages written
+ * meanwhile, one at a time, instead of the whole table up front.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+    private static final int RECORD_HEADER = 4 + 4 + 8;
+    private static final int SLOT_SIZE = 16; // long address, int hash, 4 bytes padding
+    private static final int PAGE_SHIFT = 14; // 1 << 14 slots of 16 bytes, 256 KB, per direct buffer
+    private static final int PAGE_SLOTS = 1 << PAGE_SHIFT;
+    private static final int MAX_CAPACITY = 1 << 30; // slots are numbered by int
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    private final int slabBytes;
+    private final int initialCapacity;
+    private final StampedLock lock = new StampedLock();
+
+    private ByteBuffer[] table; // pages, copied on write while a view may read them
+    private int[] pageEpochs; // the view epoch each page was allocated in
+    private int tableEpoch; // the view epoch table and pageEpochs were allocated in
+    private int capacity;
+    private int count = 0;
+    private int deleted = 0;
+
+    private Slab[] slabs = new Slab[8];
+    private boolean slabsShared = false; // a view holds this very array
+    private Slab active = null;
+
+    private int viewEpoch = 0; // bumped by every openView()
+    private int openViews = 0;
+
+    public OffHeapStorageEngine(int slabBytes, int initialCapacity) {
+        this.slabBytes = slabBytes;
+        int c = Integer.highestOneBit(Math.max(initialCapacity, 16));
+        this.initialCapacity = c < initialCapacity ? c << 1 : c;
+        reset();
+    }
+
+    private void reset() {
+        capacity = Math.min(initialCapacity, MAX_CAPACITY);
+        setTable(allocateTable(capacity));
+        count = 0;
+        deleted = 0;
+        slabs = new Slab[8];
+        slabsShared = false;
+        active = null;
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        return read(() -> {
+            long address = lookup(k, hash(k));
+            return address == EMPTY ? null : readValue(address);
+        });
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        return read(() -> lookup(k, hash(k)) != EMPTY);
+    }
+
+    @Override
+    public long getVersion(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        return read(() -> {
+            long address = lookup(k, hash(k));
+            return address == EMPTY ? -1L : slab(address).buf.getLong(offset(address) + 8);
+        });
+    }
+
+    @Override
+    public void put(String key, String value, long version) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        int h = hash(k);
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(k, h);
+            if (slot < 0 && count + deleted == capacity - 1 && addressAt(table, -slot - 1) != DELETED)
+                throw new IllegalStateException("Off-heap index is full (" + count + " keys)"); // one slot stays empty to end probes
+            long old = slot >= 0 ? addressAt(table, slot) : EMPTY;
+            if (old != EMPTY && slab(old).buf.getLong(offset(old) + 8) > version)
+                return;
+
+            long address = append(k, v, version);
+            if (old != EMPTY) {
+                setAddress(slot, address);
+                release(old);
+            } else {
+                insert(-slot - 1, address, h);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean delete(String key, long version) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(k, hash(k));
+            if (slot < 0)
+                return false;
+
+            long old = addressAt(table, slot);
+            if (slab(old).buf.getLong(offset(old) + 8) > version)
+                return false;
+
+            setAddress(slot, DELETED);
+            count--;
+            deleted++;
+            release(old);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return read(() -> count);
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> consumer) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < capacity; i++) {
+                long address = addressAt(table, i);
+                if (address != EMPTY && address != DELETED)
+                    consumer.accept(readKey(address), readValue(address));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Entries are never changed in place and a dropped slab stays alive as long as something references it,
+     * so a view only needs the table pages and the slab array as they are now. Both are shared, not copied:
+     * the engine copies what it changes while the view is open, see writablePage().
+     */
+    @Override
+    public StorageView openView(long version) {
+        ByteBuffer[] viewTable;
+        Slab[] viewSlabs;
+        int viewCapacity;
+
+        long stamp = lock.writeLock();
+        try {
+            viewEpoch++;
+            openViews++;
+            viewCapacity = capacity;
+            viewTable = table;
+            viewSlabs = slabs;
+            slabsShared = true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        return new StorageView() {
+            private boolean closed = false;
+
+            @Override
+            public long getVersion() {
+                return version;
+            }
+
+            @Override
+            public void forEachSince(long sinceVersion, BiConsumer<String, String> consumer) {
+                for (int i = 0; i < viewCapacity; i++) {
+                    long address = addressAt(viewTable, i);
+                    if (address == EMPTY || address == DELETED)
+                        continue;
+                    ByteBuffer buf = viewSlabs[(int) (address >>> 32) - 1].buf;
+                    int offset = offset(address);
+                    if (buf.getLong(offset + 8) <= sinceVersion)
+                        continue;
+                    int keyLength = buf.getInt(offset);
+                    consumer.accept(readString(buf, offset + RECORD_HEADER, keyLength),
+                            readString(buf, offset + RECORD_HEADER + keyLength, buf.getInt(offset + 4)));
+                }
+            }
+
+            @Override
+            public void close() {
+                long stamp = lock.writeLock();
+                try {
+                    if (!closed)
+                        openViews--; // writes stop copying once no view is open
+                    closed = true;
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            reset();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /// Runs reader without a lock, falling back to the read lock if a write got in the way.
+    private <T> T read(Supplier<T> reader) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = reader.get();
+                if (lock.validate(stamp))
+                    return result;
+            } catch (RuntimeException e) {
+                // saw a half-done write, i.e. a slab being dropped or the table being resized
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /// Address of key's entry, or EMPTY.
+    private long lookup(byte[] key, int h) {
+        ByteBuffer[] t = table;
+        int mask = capacity - 1;
+
+        for (int i = h & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            long address = addressAt(t, i);
+            if (address == EMPTY)
+                return EMPTY;
+            if (address != DELETED && hashAt(t, i) == h && keyEquals(address, key))
+                return address;
+        }
+        return EMPTY;
+    }
+
+    /// Slot holding key, or -(slot to insert it at) - 1. Write lock only.
+    private int findSlot(byte[] key, int h) {
+        int mask = capacity - 1;
+        int firstDeleted = -1;
+
+        for (int i = h & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            long address = addressAt(table, i);
+            if (address == EMPTY)
+                return -(firstDeleted >= 0 ? firstDeleted : i) - 1;
+            if (address == DELETED) {
+                if (firstDeleted < 0)
+                    firstDeleted = i;
+            } else if (hashAt(table, i) == h && keyEquals(address, key)) {
+                return i;
+            }
+        }
+        return -firstDeleted - 1; // the load factor guarantees there is a free slot
+    }
+
+    private void insert(int slot, long address, int h) {
+        if (addressAt(table, slot) == DELETED)
+            deleted--;
+        setAddress(slot, address);
+        setHash(slot, h);
+        count++;
+
+        if ((count + deleted) * 10L > capacity * 7L) {
+            if (count * 10L <= capacity * 5L)
+                resize(capacity); // mostly deleted slots - just rehash
+            else if (capacity < MAX_CAPACITY)
+                resize(capacity * 2);
+            // at MAX_CAPACITY the table fills up further instead, probes just get longer
+        }
+    }
+
+    private void resize(int newCapacity) {
+        ByteBuffer[] old = table;
+        int oldCapacity = capacity;
+        ByteBuffer[] t = allocateTable(newCapacity);
+        int mask = newCapacity - 1;
+
+        for (int i = 0; i < oldCapacity; i++) {
+            long address = addressAt(old, i);
+            if (address == EMPTY || address == DELETED)
+                continue;
+            int h = hashAt(old, i);
+            int j = h & mask;
+            while (addressAt(t, j) != EMPTY)
+                j = (j + 1) & mask;
+            setAddress(t, j, address);
+            setHash(t, j, h);
+        }
+
+        setTable(t);
+        capacity = newCapacity;
+        deleted = 0;
+    }
+
+    /// Replaces the table with a new one, which no view has seen.
+    private void setTable(ByteBuffer[] t) {
+        table = t;
+        pageEpochs = new int[t.length];
+        Arrays.fill(pageEpochs, viewEpoch);
+        tableEpoch = viewEpoch;
+    }
+
+    /// The page holding slot, ready to be written: copied first if a view opened after it was allocated is still open.
+    private ByteBuffer writablePage(int slot) {
+        int page = slot >>> PAGE_SHIFT;
+        if (openViews > 0 && pageEpochs[page] < viewEpoch) {
+            if (tableEpoch < viewEpoch) {
+                table = table.clone();
+                pageEpochs = pageEpochs.clone();
+                tableEpoch = viewEpoch;
+            }
+            ByteBuffer copy = ByteBuffer.allocateDirect(table[page].capacity());
+            copy.put(0, table[page], 0, table[page].capacity());
+            table[page] = copy;
+            pageEpochs[page] = viewEpoch;
+        }
+        return table[page];
+    }
+
+    /// The slab array, ready to be changed: copied first if a view holds it.
+    private Slab[] writableSlabs() {
+        if (slabsShared) {
+            slabs = slabs.clone();
+            slabsShared = false;
+        }
+        return slabs;
+    }
+
+    private static ByteBuffer[] allocateTable(int capacity) {
+        ByteBuffer[] pages = new ByteBuffer[Math.max(1, capacity >>> PAGE_SHIFT)];
+        for (int i = 0; i < pages.length; i++)
+            pages[i] = ByteBuffer.allocateDirect(Math.min(capacity, PAGE_SLOTS) * SLOT_SIZE);
+        return pages;
+    }
+
+    private static long addressAt(ByteBuffer[] table, int slot) {
+        return table[slot >>> PAGE_SHIFT].getLong((slot & (PAGE_SLOTS - 1)) * SLOT_SIZE);
+    }
+
+    private static int hashAt(ByteBuffer[] table, int slot) {
+        return table[slot >>> PAGE_SHIFT].getInt((slot & (PAGE_SLOTS - 1)) * SLOT_SIZE + 8);
+    }
+
+    /// Into a table no view has seen, i.e. one being built by resize().
+    private static void setAddress(ByteBuffer[] table, int slot, long address) {
+        table[slot >>> PAGE_SHIFT].putLong((slot & (PAGE_SLOTS - 1)) * SLOT_SIZE, address);
+    }
+
+    private static void setHash(ByteBuffer[] table, int slot, int h) {
+        table[slot >>> PAGE_SHIFT].putInt((slot & (PAGE_SLOTS - 1)) * SLOT_SIZE + 8, h);
+    }
+
+    /// Into the live table, write lock only.
+    private void setAddress(int slot, long address) {
+        writablePage(slot).putLong((slot & (PAGE_SLOTS - 1)) * SLOT_SIZE, address);
+    }
+
+    private void setHash(int slot, int h) {
+        writablePage(slot).putInt((slot & (PAGE_SLOTS - 1)) * SLOT_SIZE + 8, h);
+    }
+
+    /// Writes a new entry into the current slab, starting a new slab if it does not fit.
+    private long append(byte[] key, byte[] value, long version) {
+        int size = RECORD_HEADER + key.length + value.length;
+
+        if (active == null || active.buf.capacity() - active.used < size)
+            active = newSlab(Math.max(slabBytes, size));
+
+        ByteBuffer buf = active.buf;
+        int offset = active.used;
+        buf.putInt(offset, key.length);
+        buf.putInt(offset + 4, value.length);
+        buf.putLong(offset + 8, version);
+        buf.put(offset + RECORD_HEADER, key);
+        buf.put(offset + RECORD_HEADER + key.length, value);
+
+        active.used += size;
+        active.live += size;
+        return ((long) (active.id + 1) << 32) | offset;
+    }
+
+    private Slab newSlab(int bytes) {
+        int id = 0;
+        while (id < slabs.length && slabs[id] != null)
+            id++;
+        if (id == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabs.length * 2);
+            slabsShared = false;
+        }
+
+        Slab slab = new Slab(id, ByteBuffer.allocateDirect(bytes));
+        writableSlabs()[id] = slab;
+        return slab;
+    }
+
+    /// The entry at address is no longer referenced. Drops or compacts its slab once it is mostly garbage.
+    private void release(long address) {
+        Slab slab = slab(address);
+        slab.live -= recordSize(slab.buf, offset(address));
+
+        if (slab == active)
+            return;
+        if (slab.live == 0)
+            writableSlabs()[slab.id] = null;
+        else if (slab.live * 2L < slab.used)
+            compact(slab);
+    }
+
+    /// Moves the live entries of slab to the current slab and drops it.
+    private void compact(Slab slab) {
+        ByteBuffer buf = slab.buf;
+        long base = (long) (slab.id + 1) << 32;
+
+        for (int offset = 0; offset < slab.used; offset += recordSize(buf, offset)) {
+            int keyLength = buf.getInt(offset);
+            byte[] key = new byte[keyLength];
+            buf.get(offset + RECORD_HEADER, key);
+
+            int slot = findSlot(key, hash(key));
+            if (slot < 0 || addressAt(table, slot) != (base | offset))
+                continue; // garbage
+
+            byte[] value = new byte[buf.getInt(offset + 4)];
+            buf.get(offset + RECORD_HEADER + keyLength, value);
+            setAddress(slot, append(key, value, buf.getLong(offset + 8)));
+        }
+        writableSlabs()[slab.id] = null;
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        ByteBuffer buf = slab(address).buf;
+        int offset = offset(address);
+        if (buf.getInt(offset) != key.length)
+            return false;
+
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(offset + RECORD_HEADER + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private String readKey(long address) {
+        ByteBuffer buf = slab(address).buf;
+        int offset = offset(address);
+        return readString(buf, offset + RECORD_HEADER, buf.getInt(offset));
+    }
+
+    private String readValue(long address) {
+        ByteBuffer buf = slab(address).buf;
+        int offset = offset(address);
+        return readString(buf, offset + RECORD_HEADER + buf.getInt(offset), buf.getInt(offset + 4));
+    }
+
+    private static String readString(ByteBuffer buf, int position, int length) {
+        // an optimistic read may see a slab that was dropped and replaced, don't trust the lengths
+        if (length < 0 || position < 0 || position > buf.capacity() - length)
+            throw new IllegalStateException("Inconsistent off-heap entry");
+        byte[] bytes = new byte[length];
+        buf.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Slab slab(long address) {
+        return slabs[(int) (address >>> 32) - 1];
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static int recordSize(ByteBuffer buf, int offset) {
+        return RECORD_HEADER + buf.getInt(offset) + buf.getInt(offset + 4);
+    }
+
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private static class Slab {
+        final int id;
+        final ByteBuffer buf;
+        int used = 0;
+        long live = 0;
+
+        Slab(int id, ByteBuffer buf) {
+            this.id = id;
+            this.buf = buf;
+        }
+    }
+}
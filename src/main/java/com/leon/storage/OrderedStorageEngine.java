@@ -0,0 +1,14 @@
+package com.leon.storage;
+
+import java.util.function.BiPredicate;
+
+/// A StorageEngine that keeps its keys sorted (String natural order) and can walk a key range.
+public interface OrderedStorageEngine extends StorageEngine {
+
+    /**
+     * Feeds entries with fromKey <= key (or fromKey < key if not inclusive) and key < toKey to consumer,
+     * in key order, until consumer returns false. A null bound is open. Weakly consistent: entries written
+     * during the scan may or may not be seen, nothing is copied up front.
+     */
+    void scan(String fromKey, boolean inclusive, String toKey, BiPredicate<String, String> consumer);
+}
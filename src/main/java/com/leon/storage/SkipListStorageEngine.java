@@ -0,0 +1,154 @@
+package com.leon.storage;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * OrderedStorageEngine on a ConcurrentSkipListMap of immutable versioned entries.
+ * <p>
+ * Reads and scans never lock. Writes replace entries with compare-and-set, so the version check
+ * and the update are atomic without a lock either. Views are multi-versioned, see VersionedValue.
+ */
+public class SkipListStorageEngine implements OrderedStorageEngine {
+    private final ConcurrentSkipListMap<String, VersionedValue> map = new ConcurrentSkipListMap<>();
+
+    private volatile long viewVersion = -1; // version of the open view, -1 - none
+    private final AtomicInteger tombstones = new AtomicInteger();
+
+    @Override
+    public String get(String key) {
+        VersionedValue v = map.get(key);
+        return v == null ? null : v.value;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        VersionedValue v = map.get(key);
+        return v != null && !v.isTombstone();
+    }
+
+    @Override
+    public long getVersion(String key) {
+        VersionedValue v = map.get(key);
+        return v == null || v.isTombstone() ? -1 : v.version;
+    }
+
+    @Override
+    public void put(String key, String value, long version) {
+        while (true) {
+            VersionedValue current = map.get(key);
+            if (current != null && current.version > version)
+                return;
+
+            VersionedValue updated = new VersionedValue(value, version, VersionedValue.keepFor(current, viewVersion));
+            if (current == null ? map.putIfAbsent(key, updated) == null : map.replace(key, current, updated)) {
+                if (current != null && current.isTombstone())
+                    tombstones.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String key, long version) {
+        while (true) {
+            VersionedValue current = map.get(key);
+            if (current == null || current.isTombstone() || current.version > version)
+                return false;
+
+            VersionedValue keep = VersionedValue.keepFor(current, viewVersion);
+            if (keep == null) {
+                if (map.remove(key, current))
+                    return true;
+            } else if (map.replace(key, current, new VersionedValue(null, version, keep))) {
+                tombstones.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size() - tombstones.get();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> consumer) {
+        map.forEach((k, v) -> {
+            if (!v.isTombstone())
+                consumer.accept(k, v.value);
+        });
+    }
+
+    @Override
+    public synchronized StorageView openView(long version) {
+        if (viewVersion >= 0)
+            throw new IllegalStateException("A storage view is already open");
+        viewVersion = version;
+
+        return new StorageView() {
+            @Override
+            public long getVersion() {
+                return version;
+            }
+
+            @Override
+            public void forEachSince(long sinceVersion, BiConsumer<String, String> consumer) {
+                map.forEach((k, v) -> {
+                    VersionedValue seen = v.visibleAt(version);
+                    if (seen != null && !seen.isTombstone() && seen.version > sinceVersion)
+                        consumer.accept(k, seen.value);
+                });
+            }
+
+            @Override
+            public void close() {
+                closeView();
+            }
+        };
+    }
+
+    /**
+     * Drops the history kept for the view. A write that saw the view just before it closed may still leave
+     * a little history behind, that is harmless and goes with the next view.
+     */
+    private synchronized void closeView() {
+        viewVersion = -1;
+
+        for (Map.Entry<String, VersionedValue> e : map.entrySet()) {
+            VersionedValue v = e.getValue();
+            if (v.isTombstone()) {
+                if (map.remove(e.getKey(), v))
+                    tombstones.decrementAndGet();
+            } else if (v.prev != null) {
+                map.replace(e.getKey(), v, v.withoutHistory());
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+        tombstones.set(0);
+    }
+
+    @Override
+    public void scan(String fromKey, boolean inclusive, String toKey, BiPredicate<String, String> consumer) {
+        NavigableMap<String, VersionedValue> range = map;
+        if (fromKey != null)
+            range = range.tailMap(fromKey, inclusive);
+        if (toKey != null)
+            range = range.headMap(toKey, false);
+
+        for (Map.Entry<String, VersionedValue> e : range.entrySet()) {
+            if (e.getValue().isTombstone())
+                continue;
+            if (!consumer.test(e.getKey(), e.getValue().value))
+                return;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.leon.storage;
+
+import java.util.function.BiConsumer;
+
+/**
+ * The key-value state of a node, what the log is applied to.
+ * <p>
+ * Every entry remembers the version (log index) that last wrote it. Reads never block. Writes to a key
+ * are applied in log order; replay on startup writes different keys from several threads at once.
+ */
+public interface StorageEngine {
+
+    /// Returns the value of key, or null if it does not exist.
+    String get(String key);
+
+    boolean containsKey(String key);
+
+    /// Log index that last wrote key, or -1 if it does not exist.
+    long getVersion(String key);
+
+    /// Inserts or overwrites key. Ignored if the entry already has a newer version.
+    void put(String key, String value, long version);
+
+    /// Removes key, returns false if it did not exist.
+    boolean delete(String key, long version);
+
+    int size();
+
+    /// Visits every entry; weakly consistent if writes run at the same time.
+    void forEach(BiConsumer<String, String> consumer);
+
+    /**
+     * Opens a point-in-time view of the current content, which has to reflect the log up to version.
+     * Must be called between two applied logs; writes carry on while the view is read. One view at a time.
+     */
+    StorageView openView(long version);
+
+    /// Removes everything, i.e. before a snapshot is loaded into it with put().
+    void clear();
+}
@@ -0,0 +1,24 @@
+package com.leon.storage;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A read-only, point-in-time view of a StorageEngine, i.e. for writing a snapshot while writes go on.
+ * Must be closed, an open view makes the engine keep history around.
+ */
+public interface StorageView extends AutoCloseable {
+
+    /// Log index the view reflects.
+    long getVersion();
+
+    /// Visits every entry as of getVersion(), in no particular order.
+    default void forEach(BiConsumer<String, String> consumer) {
+        forEachSince(-1, consumer);
+    }
+
+    /// Visits the entries as of getVersion() that were last written after sinceVersion, i.e. for a delta snapshot.
+    void forEachSince(long sinceVersion, BiConsumer<String, String> consumer);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,169 @@
+package com.leon.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * StorageEngine split into a power of two stripes by key hash, each a ConcurrentHashMap of immutable
+ * versioned entries.
+ * <p>
+ * Reads go straight to the stripe's map and never take a lock. Writes lock only their stripe, which keeps
+ * the version check and the update atomic without serializing writers of unrelated keys, and keeps each
+ * map small enough that resizing one stripe does not stall the others.
+ * <p>
+ * Views are multi-versioned, see VersionedValue: nothing is copied when one is opened.
+ */
+public class StripedStorageEngine implements StorageEngine {
+    private final Stripe[] stripes;
+    private final int mask;
+
+    private volatile long viewVersion = -1; // version of the open view, -1 - none
+    private final AtomicInteger tombstones = new AtomicInteger();
+
+    public StripedStorageEngine(int stripeCount) {
+        int n = Integer.highestOneBit(Math.max(stripeCount, 1));
+        if (n < stripeCount)
+            n <<= 1;
+
+        this.stripes = new Stripe[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    @Override
+    public String get(String key) {
+        VersionedValue v = stripeFor(key).map.get(key);
+        return v == null ? null : v.value;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        VersionedValue v = stripeFor(key).map.get(key);
+        return v != null && !v.isTombstone();
+    }
+
+    @Override
+    public long getVersion(String key) {
+        VersionedValue v = stripeFor(key).map.get(key);
+        return v == null || v.isTombstone() ? -1 : v.version;
+    }
+
+    @Override
+    public void put(String key, String value, long version) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            VersionedValue current = stripe.map.get(key);
+            if (current != null && current.version > version)
+                return;
+            if (current != null && current.isTombstone())
+                tombstones.decrementAndGet();
+            stripe.map.put(key, new VersionedValue(value, version, VersionedValue.keepFor(current, viewVersion)));
+        }
+    }
+
+    @Override
+    public boolean delete(String key, long version) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            VersionedValue current = stripe.map.get(key);
+            if (current == null || current.isTombstone() || current.version > version)
+                return false;
+
+            VersionedValue keep = VersionedValue.keepFor(current, viewVersion);
+            if (keep == null) {
+                stripe.map.remove(key);
+            } else {
+                stripe.map.put(key, new VersionedValue(null, version, keep));
+                tombstones.incrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes)
+            size += stripe.map.size();
+        return size - tombstones.get();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> consumer) {
+        for (Stripe stripe : stripes) {
+            stripe.map.forEach((k, v) -> {
+                if (!v.isTombstone())
+                    consumer.accept(k, v.value);
+            });
+        }
+    }
+
+    @Override
+    public synchronized StorageView openView(long version) {
+        if (viewVersion >= 0)
+            throw new IllegalStateException("A storage view is already open");
+        viewVersion = version;
+
+        return new StorageView() {
+            @Override
+            public long getVersion() {
+                return version;
+            }
+
+            @Override
+            public void forEachSince(long sinceVersion, BiConsumer<String, String> consumer) {
+                for (Stripe stripe : stripes) {
+                    stripe.map.forEach((k, v) -> {
+                        VersionedValue seen = v.visibleAt(version);
+                        if (seen != null && !seen.isTombstone() && seen.version > sinceVersion)
+                            consumer.accept(k, seen.value);
+                    });
+                }
+            }
+
+            @Override
+            public void close() {
+                closeView();
+            }
+        };
+    }
+
+    /// Drops the history kept for the view, one stripe at a time.
+    private synchronized void closeView() {
+        viewVersion = -1;
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.map.replaceAll((k, v) -> v.prev == null ? v : new VersionedValue(v.value, v.version, null));
+                stripe.map.entrySet().removeIf(e -> {
+                    if (!e.getValue().isTombstone())
+                        return false;
+                    tombstones.decrementAndGet();
+                    return true;
+                });
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.map.clear();
+            }
+        }
+        tombstones.set(0);
+    }
+
+    private static class Stripe {
+        final ConcurrentHashMap<String, VersionedValue> map = new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,52 @@
+package com.leon.storage;
+
+/**
+ * Immutable value of a key plus the log index (version) that wrote it, used by the on-heap engines.
+ * <p>
+ * While a StorageView is open, a write keeps the entry the view sees reachable through prev, and a
+ * delete leaves a tombstone (value null) in front of it, so the view can still read every key as it
+ * was at its version. Once the view is closed the history is swept away again.
+ */
+final class VersionedValue {
+    final String value; // null - tombstone
+    final long version;
+    final VersionedValue prev;
+
+    VersionedValue(String value, long version, VersionedValue prev) {
+        this.value = value;
+        this.version = version;
+        this.prev = prev;
+    }
+
+    boolean isTombstone() {
+        return value == null;
+    }
+
+    /// The newest entry written at or before viewVersion, or null if there is none.
+    VersionedValue visibleAt(long viewVersion) {
+        VersionedValue v = this;
+        while (v != null && v.version > viewVersion)
+            v = v.prev;
+        return v;
+    }
+
+    /**
+     * What a write replacing current must keep for an open view at viewVersion (-1 - no view):
+     * the entry the view sees, without any older history, or null if the view does not see the key.
+     */
+    static VersionedValue keepFor(VersionedValue current, long viewVersion) {
+        if (current == null || viewVersion < 0)
+            return null;
+        VersionedValue v = current.visibleAt(viewVersion);
+        if (v == null || v.isTombstone())
+            return null;
+        return v.prev == null ? v : new VersionedValue(v.value, v.version, null);
+    }
+
+    /// This entry without history, or null if it is a tombstone.
+    VersionedValue withoutHistory() {
+        if (isTombstone())
+            return null;
+        return prev == null ? this : new VersionedValue(value, version, null);
+    }
+}
@@ -0,0 +1,110 @@
+package com.leon;
+
+import com.leon.gRPC.BatchRequest;
+import com.leon.gRPC.BatchResponse;
+import com.leon.gRPC.CommandRequest;
+import com.leon.gRPC.CommandType;
+import com.leon.gRPC.RequestStatus;
+import com.leon.harness.EmbeddedCluster;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// A ClusterClient routing by the topology it watches, while the leader changes under it.
+class ClusterClientTest {
+    private static final long TIMEOUT_MS = 30_000;
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0)
+                fail("Timed out waiting until " + what);
+            Thread.sleep(50);
+        }
+    }
+
+    /// Retries a write until a leader took it, the cluster may be between leaders.
+    private static void put(ClusterClient client, String key, String value) throws InterruptedException {
+        await(key + " is written", () -> {
+            try {
+                return client.put(key, value).join().getStatus() == RequestStatus.STATUS_OK;
+            } catch (Exception e) {
+                return false;
+            }
+        });
+    }
+
+    /// A read may go to a follower that has not applied the write yet.
+    private static void awaitValue(ClusterClient client, String key, String value) throws InterruptedException {
+        await(key + " reads " + value, () -> {
+            try {
+                return client.read(key).join().getValue().equals(value);
+            } catch (Exception e) {
+                return false;
+            }
+        });
+    }
+
+    @Test
+    void topologyNamesTheLeaderAndItsFollowers() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             ClusterClient client = cluster.newClient()) {
+            int leader = cluster.awaitLeader(TIMEOUT_MS);
+            assertTrue(leader >= 0);
+            String leaderAddress = cluster.getNode(leader).getGRPCAddress();
+
+            assertEquals(leaderAddress, client.getTopology().awaitLeader(TIMEOUT_MS));
+            await("both followers are known", () -> client.getTopology().getFollowerAddresses().size() == 2);
+            assertFalse(client.getTopology().getFollowerAddresses().contains(leaderAddress));
+        }
+    }
+
+    @Test
+    void writesBatchesAndReads() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             ClusterClient client = cluster.newClient()) {
+            assertTrue(cluster.awaitLeader(TIMEOUT_MS) >= 0);
+            put(client, "a", "1");
+            put(client, "c", "old");
+
+            BatchResponse batch = client.batch(BatchRequest.newBuilder()
+                    .addOperations(CommandRequest.newBuilder().setOpType(CommandType.PUT).setKey("b").setValue("2"))
+                    .addOperations(CommandRequest.newBuilder().setOpType(CommandType.DELETE).setKey("c"))
+                    .build()).get(30, TimeUnit.SECONDS);
+            assertEquals(RequestStatus.STATUS_OK, batch.getStatus());
+            assertEquals(2, batch.getResultsCount());
+
+            awaitValue(client, "a", "1");
+            awaitValue(client, "b", "2");
+            awaitValue(client, "c", "");
+
+            assertEquals(RequestStatus.STATUS_OK, client.delete("a").get(30, TimeUnit.SECONDS).getStatus());
+            awaitValue(client, "a", "");
+        }
+    }
+
+    @Test
+    void followsTheNewLeaderAfterFailover() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             ClusterClient client = cluster.newClient()) {
+            int leader = cluster.awaitLeader(TIMEOUT_MS);
+            assertTrue(leader >= 0);
+            put(client, "a", "1");
+
+            cluster.shutdown(leader);
+            await("another node leads", () -> {
+                int next = cluster.getLeader();
+                return next >= 0 && next != leader;
+            });
+            String next = cluster.getNode(cluster.getLeader()).getGRPCAddress();
+            await("the topology names the new leader", () -> next.equals(client.getTopology().getLeaderAddress()));
+
+            put(client, "b", "2"); // the connection to the old leader is dropped, not retried forever
+            awaitValue(client, "a", "1");
+            awaitValue(client, "b", "2");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.leon;
+
+import com.leon.gRPC.CommandRequest;
+import com.leon.gRPC.CommandType;
+import io.grpc.ManagedChannelBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// A leader driven through its CommandBatcher directly: alone, or with a follower that never answers so nothing it writes is committed.
+class CommandBatcherTest {
+
+    @TempDir
+    Path dir;
+
+    private Node node;
+    private LoggingService logger;
+    private FollowerGRPCChannel follower;
+    private CommandBatcher batcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        node = new Node("localhost:1", "0", dir.resolve("snapshot").toString(), dir.resolve("log").toString());
+        logger = node.getLoggingService();
+        logger.restoreState(node);
+        logger.setLeaderTerm(1); // waits out the lease a restarted node may have promised
+        logger.setFollowerChannelMap(new ConcurrentHashMap<>()); // as on election, the followers are added by hand
+    }
+
+    /// Starts the term, with a follower at an address nobody listens on if unreachableFollower.
+    private void lead(boolean unreachableFollower) {
+        if (unreachableFollower) {
+            follower = new FollowerGRPCChannel("follower", "localhost:1",
+                    ManagedChannelBuilder.forTarget("localhost:1").usePlaintext().build());
+            logger.addFollower(follower);
+        }
+        logger.writeTermStart();
+        batcher = new CommandBatcher(node, logger, 16, 0, 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (batcher != null)
+            batcher.stop();
+        if (follower != null) {
+            logger.removeFollower(follower);
+            follower.getChannel().shutdownNow();
+        }
+        node.shutdown();
+    }
+
+    private static CommandRequest put(String key, String value) {
+        return CommandRequest.newBuilder().setOpType(CommandType.PUT).setKey(key).setValue(value).build();
+    }
+
+    @Test
+    void uncommittedWriteTimesOutAndIsNotApplied() throws Exception {
+        lead(true);
+        assertFalse(batcher.submit(put("a", "1")).get(10, TimeUnit.SECONDS));
+        assertNull(node.read("a"));
+        assertEquals(0, logger.getCommitIndex());
+    }
+
+    @Test
+    void writeAfterSteppingDownIsRefused() throws Exception {
+        lead(true);
+        int lastLogIndex = logger.getLastLogIndex();
+        logger.stepDown();
+
+        assertFalse(batcher.submit(put("a", "1")).get(10, TimeUnit.SECONDS));
+        assertEquals(lastLogIndex, logger.getLastLogIndex());
+        assertNull(node.read("a"));
+    }
+
+    @Test
+    void concurrentWritesAreAppliedInSubmissionOrder() throws Exception {
+        lead(false);
+        List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) // far more than one batch
+            writes.add(batcher.submit(put("key" + i, "v" + i)));
+        for (CompletableFuture<Boolean> write : writes)
+            assertTrue(write.get(10, TimeUnit.SECONDS));
+
+        long previous = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("v" + i, node.read("key" + i));
+            long version = node.getStorage().getVersion("key" + i); // the log index it was written at
+            assertTrue(version > previous);
+            previous = version;
+        }
+        assertEquals(logger.getCommitIndex(), logger.getAppliedIndex());
+    }
+
+    @Test
+    void batchIsAppliedAsOneLogEntry() throws Exception {
+        lead(false);
+        assertTrue(batcher.submit(put("c", "old")).get(10, TimeUnit.SECONDS));
+        int before = logger.getLastLogIndex();
+
+        List<CommandRequest> ops = List.of(put("a", "1"), put("b", "2"),
+                CommandRequest.newBuilder().setOpType(CommandType.DELETE).setKey("c").build());
+        assertTrue(batcher.submitBatch(ops).get(10, TimeUnit.SECONDS));
+
+        assertEquals(before + 1, logger.getLastLogIndex());
+        assertEquals("1", node.read("a"));
+        assertEquals("2", node.read("b"));
+        assertNull(node.read("c"));
+        assertEquals(before, node.getStorage().getVersion("a")); // the index of the one entry
+        assertEquals(before, node.getStorage().getVersion("b"));
+    }
+}
@@ -0,0 +1,121 @@
+package com.leon;
+
+import com.google.protobuf.ByteString;
+import com.leon.gRPC.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// A follower driven through NodeGRPCServer directly, with no cluster around it.
+class FollowerReadTest {
+
+    @TempDir
+    Path dir;
+
+    private Node node;
+    private NodeGRPCServer server;
+
+    private void open() throws Exception {
+        node = new Node("localhost:1", "0", dir.resolve("snapshot").toString(), dir.resolve("log").toString());
+        node.getLoggingService().restoreState(node);
+        server = new NodeGRPCServer(node, node.getLoggingService(), node.getLoggingService().getSnapshotService());
+    }
+
+    private void close() {
+        server.shutdown();
+        node.shutdown();
+    }
+
+    @AfterEach
+    void tearDown() {
+        close();
+    }
+
+    private static LogRecord put(int index, long term, String key, String value) {
+        return new LogRecord(index, term, CommandType.PUT, key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    /// Sends an AppendEntries, again while the follower is still bound to a previous leader (or to its own restart).
+    private LogResponse append(long term, int prevLogIndex, long prevLogTerm, int commitIndex, LogRecord... entries) throws InterruptedException {
+        AppendEntriesRequest.Builder request = AppendEntriesRequest.newBuilder()
+                .setTerm(term)
+                .setPrevLogIndex(prevLogIndex)
+                .setPrevLogTerm(prevLogTerm)
+                .setCommitIndex(commitIndex);
+        for (LogRecord entry : entries)
+            request.addEntries(ByteString.copyFrom(entry.encode()));
+
+        while (true) {
+            Recorder<LogResponse> response = new Recorder<>();
+            server.appendEntries(request.build(), response);
+            if (response.values.get(0).getStatus() != LogStatus.FOLLOWER_BUSY)
+                return response.values.get(0);
+            Thread.sleep(50);
+        }
+    }
+
+    private CommandResponse read(String key) {
+        Recorder<CommandResponse> response = new Recorder<>();
+        server.command(CommandRequest.newBuilder().setOpType(CommandType.READ).setKey(key).build(), response);
+        return response.values.get(0);
+    }
+
+    @Test
+    void uncommittedEntryIsNeverRead() throws Exception {
+        open();
+        assertEquals(LogStatus.LOG_OK, append(1, 0, 0, 0, put(1, 1, "a", "old")).getStatus());
+        assertEquals(RequestStatus.KEY_NOT_FOUND, read("a").getStatus());
+
+        // a new leader never saw #1 and replaces it
+        assertEquals(LogStatus.LOG_OK, append(2, 0, 0, 0, put(1, 2, "a", "new")).getStatus());
+        assertEquals(RequestStatus.KEY_NOT_FOUND, read("a").getStatus());
+
+        assertEquals(LogStatus.LOG_OK, append(2, 1, 2, 1).getStatus());
+        assertEquals("new", read("a").getValue());
+    }
+
+    @Test
+    void replayedEntryIsNotReadUntilCommitted() throws Exception {
+        open();
+        assertEquals(LogStatus.LOG_OK, append(1, 0, 0, 0, put(1, 1, "a", "old")).getStatus());
+        close();
+
+        open(); // the replay applies #1, nobody said it is committed
+        assertEquals(LogStatus.LOG_OK, append(1, 1, 1, 0).getStatus());
+        assertEquals(RequestStatus.NOT_SYNCED, read("a").getStatus());
+
+        assertEquals(LogStatus.LOG_OK, append(2, 0, 0, 0, put(1, 2, "a", "new")).getStatus());
+        assertEquals(RequestStatus.KEY_NOT_FOUND, read("a").getStatus());
+
+        assertEquals(LogStatus.LOG_OK, append(2, 1, 2, 1).getStatus());
+        assertEquals("new", read("a").getValue());
+    }
+
+    static class Recorder<T> implements io.grpc.stub.StreamObserver<T> {
+        final List<T> values = new ArrayList<>();
+        Throwable error = null;
+        boolean completed = false;
+
+        @Override
+        public void onNext(T value) {
+            values.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+    }
+}
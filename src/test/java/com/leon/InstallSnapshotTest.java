@@ -0,0 +1,101 @@
+package com.leon;
+
+import com.google.protobuf.ByteString;
+import com.leon.gRPC.*;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// A follower receiving the leader's snapshot through NodeGRPCServer directly, with no cluster around it.
+class InstallSnapshotTest {
+    private static final int CHUNK_BYTES = 100;
+
+    @TempDir
+    Path dir;
+
+    private Node node;
+    private NodeGRPCServer server;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        node = new Node("localhost:1", "0", dir.resolve("snapshot").toString(), dir.resolve("log").toString());
+        node.getLoggingService().restoreState(node);
+        server = new NodeGRPCServer(node, node.getLoggingService(), node.getLoggingService().getSnapshotService());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.shutdown();
+        node.shutdown();
+    }
+
+    private byte[] snapshot(int lastLogIndex, Map<String, String> entries) throws Exception {
+        Path path = dir.resolve("leader-snapshot");
+        try (SnapshotWriter writer = new SnapshotWriter(path, lastLogIndex, 1024, true)) {
+            for (Map.Entry<String, String> e : entries.entrySet())
+                writer.add(e.getKey(), e.getValue());
+            writer.finish();
+        }
+        return Files.readAllBytes(path);
+    }
+
+    /// Streams file in CHUNK_BYTES chunks, starting with the chunk at firstOffset; again while the follower is still bound to a previous leader.
+    private LogResponse install(byte[] file, int lastLogIndex, int firstOffset) throws InterruptedException {
+        while (true) {
+            FollowerReadTest.Recorder<LogResponse> response = new FollowerReadTest.Recorder<>();
+            StreamObserver<SnapshotChunk> stream = server.installSnapshot(response);
+            for (int offset = firstOffset; offset < file.length && response.values.isEmpty(); offset += CHUNK_BYTES) {
+                int end = Math.min(file.length, offset + CHUNK_BYTES);
+                stream.onNext(SnapshotChunk.newBuilder()
+                        .setTerm(1)
+                        .setLastLogIndex(lastLogIndex)
+                        .setOffset(offset)
+                        .setData(ByteString.copyFrom(Arrays.copyOfRange(file, offset, end)))
+                        .setDone(end == file.length)
+                        .build());
+            }
+            if (response.values.isEmpty())
+                stream.onCompleted();
+            if (response.values.get(0).getStatus() != LogStatus.FOLLOWER_BUSY)
+                return response.values.get(0);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void installedSnapshotReplacesStateAndLog() throws Exception {
+        LogRecord old = new LogRecord(1, 1, CommandType.PUT, "old".getBytes(StandardCharsets.UTF_8), "x".getBytes(StandardCharsets.UTF_8), 0);
+        node.getLoggingService().appendReplicatedLogs(List.of(old));
+
+        LogResponse response = install(snapshot(50, Map.of("a", "1", "b", "2".repeat(500))), 50, 0);
+        assertEquals(LogStatus.LOG_OK, response.getStatus());
+        assertEquals(50, response.getLastEntryIndex());
+
+        assertEquals("1", node.read("a"));
+        assertEquals("2".repeat(500), node.read("b"));
+        assertNull(node.read("old"));
+        assertEquals(51, node.getLoggingService().getLastLogIndex()); // the next log goes right after the snapshot
+        assertEquals(50, node.getLoggingService().getAppliedIndex());
+    }
+
+    @Test
+    void chunkOutOfOrderIsRejected() throws Exception {
+        LogResponse response = install(snapshot(50, Map.of("a", "1", "b", "2".repeat(500))), 50, CHUNK_BYTES);
+        assertEquals(LogStatus.IO_ERROR, response.getStatus());
+
+        assertNull(node.read("a"));
+        assertFalse(Files.exists(node.getLoggingService().getSnapshotService().installTempPath()));
+        assertFalse(node.busy());
+    }
+}
@@ -0,0 +1,87 @@
+package com.leon;
+
+import com.leon.gRPC.CommandRequest;
+import com.leon.gRPC.CommandType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogRecordTest {
+
+    private static LogRecord put(int index, String key, String value) {
+        return new LogRecord(index, 3, CommandType.PUT, key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), 1234L);
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        LogRecord r = LogRecord.decode(put(7, "key", "välue").encode());
+
+        assertEquals(7, r.getIndex());
+        assertEquals(3, r.getTerm());
+        assertEquals(CommandType.PUT, r.getOpType());
+        assertEquals("key", r.getKey());
+        assertEquals("välue", r.getValue());
+        assertEquals(1234L, r.getTimestamp());
+        assertEquals(r.encode().length, r.encodedSize());
+    }
+
+    @Test
+    void batchRoundTrip() throws Exception {
+        List<CommandRequest> ops = List.of(
+                CommandRequest.newBuilder().setOpType(CommandType.PUT).setKey("a").setValue("1").build(),
+                CommandRequest.newBuilder().setOpType(CommandType.DELETE).setKey("b").build());
+
+        List<LogRecord> decoded = LogRecord.decode(LogRecord.fromBatch(5, 2, ops).encode()).getOperations();
+
+        assertEquals(2, decoded.size());
+        assertEquals(CommandType.PUT, decoded.get(0).getOpType());
+        assertEquals("a", decoded.get(0).getKey());
+        assertEquals("1", decoded.get(0).getValue());
+        assertEquals(CommandType.DELETE, decoded.get(1).getOpType());
+        assertEquals("b", decoded.get(1).getKey());
+        assertEquals(5, decoded.get(1).getIndex());
+        assertEquals(2, decoded.get(1).getTerm());
+    }
+
+    @Test
+    void readsConsecutiveRecords() throws Exception {
+        byte[] first = put(1, "a", "x").encode();
+        byte[] second = put(2, "b", "y").encode();
+        ByteBuffer buf = ByteBuffer.allocate(first.length + second.length).put(first).put(second).flip();
+
+        assertEquals(1, LogRecord.read(buf).getIndex());
+        assertEquals(2, LogRecord.read(buf).getIndex());
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    void incompleteRecordIsNotRead() throws Exception {
+        byte[] bytes = put(1, "key", "value").encode();
+        ByteBuffer buf = ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 1));
+
+        assertNull(LogRecord.read(buf));
+        assertEquals(0, buf.position());
+        assertThrows(LogRecord.CorruptRecordException.class, () -> LogRecord.decode(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test
+    void flippedBitFailsChecksum() {
+        byte[] bytes = put(1, "key", "value").encode().clone();
+        bytes[bytes.length - 2] ^= 1;
+
+        assertThrows(LogRecord.CorruptRecordException.class, () -> LogRecord.decode(bytes));
+    }
+
+    @Test
+    void invalidLengthIsCorrupt() {
+        byte[] bytes = put(1, "key", "value").encode().clone();
+        ByteBuffer.wrap(bytes).putInt(0, 3);
+
+        assertThrows(LogRecord.CorruptRecordException.class, () -> LogRecord.read(ByteBuffer.wrap(bytes)));
+    }
+}
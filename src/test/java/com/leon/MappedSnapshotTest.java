@@ -0,0 +1,115 @@
+package com.leon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedSnapshotTest {
+    private static final int BLOCK_BYTES = 1024;
+
+    @TempDir
+    Path dir;
+
+    private Path write(Map<String, String> entries, boolean indexed) throws IOException {
+        Path path = dir.resolve("snapshot");
+        try (SnapshotWriter writer = new SnapshotWriter(path, 42, BLOCK_BYTES, indexed)) {
+            for (Map.Entry<String, String> e : entries.entrySet())
+                writer.add(e.getKey(), e.getValue());
+            writer.finish();
+        }
+        return path;
+    }
+
+    private static Map<String, String> entries(int n) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++)
+            entries.put("key" + i, i == 7 ? "x".repeat(5 * BLOCK_BYTES) : "value" + i); // one bigger than a block
+        return entries;
+    }
+
+    private static void flip(Path path, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ, WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, offset);
+            b.put(0, (byte) (b.get(0) ^ 1)).rewind();
+            channel.write(b, offset);
+        }
+    }
+
+    @Test
+    void lookupsAndForEach() throws Exception {
+        Map<String, String> entries = entries(1000);
+        MappedSnapshot mapped = MappedSnapshot.open(write(entries, true));
+
+        assertEquals(42, mapped.getLastLogIndex());
+        assertEquals(1000, mapped.getEntryCount());
+        for (Map.Entry<String, String> e : entries.entrySet())
+            assertEquals(e.getValue(), mapped.get(e.getKey()));
+        assertNull(mapped.get("missing"));
+        assertFalse(mapped.containsKey("missing"));
+
+        Map<String, String> visited = new LinkedHashMap<>();
+        mapped.forEach((k, v) -> {
+            visited.put(k, v);
+            return true;
+        });
+        assertEquals(entries, visited);
+    }
+
+    @Test
+    void unindexedSnapshotIsNotMapped() throws Exception {
+        assertNull(MappedSnapshot.open(write(entries(10), false)));
+    }
+
+    @Test
+    void damagedBlockFailsItsLookups() throws Exception {
+        Path path = write(entries(1000), true);
+        flip(path, SnapshotWriter.HEADER_SIZE + SnapshotWriter.BLOCK_HEADER_SIZE + 10); // in the record of key0
+
+        MappedSnapshot mapped = MappedSnapshot.open(path); // blocks are checked when they are read, not when opened
+        UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> mapped.get("key0"));
+        assertInstanceOf(SnapshotReader.CorruptSnapshotException.class, e.getCause());
+        assertThrows(UncheckedIOException.class, () -> mapped.containsKey("key1")); // same block
+        assertEquals("value999", mapped.get("key999"));
+
+        assertThrows(SnapshotReader.CorruptSnapshotException.class, () -> mapped.forEach((k, v) -> true));
+    }
+
+    @Test
+    void damagedIndexFailsTheFirstLookup() throws Exception {
+        Path path = write(entries(10), true);
+        flip(path, Files.size(path) - SnapshotWriter.TRAILER_SIZE - 1);
+
+        MappedSnapshot mapped = MappedSnapshot.open(path);
+        assertThrows(UncheckedIOException.class, () -> mapped.get("key0"));
+        assertThrows(SnapshotReader.CorruptSnapshotException.class, () -> mapped.forEach((k, v) -> true));
+    }
+
+    @Test
+    void damagedBlockLengthFailsOpen() throws Exception {
+        Path path = write(entries(1000), true);
+        flip(path, SnapshotWriter.HEADER_SIZE + 1); // the first block's length
+
+        assertThrows(SnapshotReader.CorruptSnapshotException.class, () -> MappedSnapshot.open(path));
+    }
+
+    @Test
+    void damagedHeaderFailsOpen() throws Exception {
+        Path path = write(entries(10), true);
+        flip(path, 6);
+
+        assertThrows(SnapshotReader.CorruptSnapshotException.class, () -> MappedSnapshot.open(path));
+    }
+}
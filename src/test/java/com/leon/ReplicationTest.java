@@ -0,0 +1,120 @@
+package com.leon;
+
+import com.leon.gRPC.CommandResponse;
+import com.leon.gRPC.RequestStatus;
+import com.leon.harness.EmbeddedCluster;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Writes through a leader and its followers, all in one EmbeddedCluster.
+class ReplicationTest {
+    private static final long TIMEOUT_MS = 30_000;
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0)
+                fail("Timed out waiting until " + what);
+            Thread.sleep(50);
+        }
+    }
+
+    /// Retries a write until a leader took it, followers refuse a leader for a while after they start.
+    private static void put(ClusterClient client, String key, String value) throws InterruptedException {
+        await(key + " is written", () -> {
+            try {
+                return client.put(key, value).join().getStatus() == RequestStatus.STATUS_OK;
+            } catch (Exception e) {
+                return false;
+            }
+        });
+    }
+
+    /// Waits until node i applied every key from..to-1 of the form key -> "v" + key.
+    private static void awaitKeys(EmbeddedCluster cluster, int i, String prefix, int from, int to) throws InterruptedException {
+        await("node " + i + " has " + prefix + from + " - " + prefix + (to - 1), () -> {
+            Node node = cluster.getNode(i);
+            for (int k = from; k < to; k++) {
+                if (!("v" + k).equals(node.read(prefix + k)))
+                    return false;
+            }
+            return true;
+        });
+    }
+
+    @Test
+    void writesReachEveryNode() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             ClusterClient client = cluster.newClient()) {
+            assertTrue(cluster.awaitLeader(TIMEOUT_MS) >= 0);
+            for (int k = 0; k < 100; k++)
+                put(client, "key" + k, "v" + k);
+
+            for (int i = 0; i < cluster.size(); i++)
+                awaitKeys(cluster, i, "key", 0, 100);
+        }
+    }
+
+    @Test
+    void majorityCommitsWithAFollowerDown() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             ClusterClient client = cluster.newClient()) {
+            assertTrue(cluster.awaitLeader(TIMEOUT_MS) >= 0);
+            put(client, "warmup", "v");
+
+            int follower = cluster.getFollower();
+            cluster.pause(follower);
+            for (int k = 0; k < 50; k++)
+                assertEquals(RequestStatus.STATUS_OK, client.put("key" + k, "v" + k).join().getStatus());
+            assertNull(cluster.getNode(follower).read("key0"));
+            cluster.resume(follower);
+        }
+    }
+
+    @Test
+    void restartedFollowerCatchesUp() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             ClusterClient client = cluster.newClient()) {
+            assertTrue(cluster.awaitLeader(TIMEOUT_MS) >= 0);
+            put(client, "key0", "v0");
+
+            int follower = cluster.getFollower();
+            cluster.shutdown(follower);
+            for (int k = 1; k < 500; k++) // many AppendEntries batches behind
+                put(client, "key" + k, "v" + k);
+
+            cluster.restart(follower);
+            awaitKeys(cluster, follower, "key", 0, 500);
+        }
+    }
+
+    @Test
+    void pausedFollowerCatchesUpWhileWritesGoOn() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             ClusterClient client = cluster.newClient()) {
+            assertTrue(cluster.awaitLeader(TIMEOUT_MS) >= 0);
+            put(client, "key0", "v0");
+
+            int follower = cluster.getFollower();
+            cluster.pause(follower);
+            for (int k = 1; k < 200; k++)
+                put(client, "key" + k, "v" + k);
+
+            cluster.resume(follower); // its worker catches it up while new writes keep coming
+            List<CompletableFuture<CommandResponse>> writes = new ArrayList<>();
+            for (int k = 200; k < 400; k++)
+                writes.add(client.put("key" + k, "v" + k));
+            for (CompletableFuture<CommandResponse> write : writes)
+                assertEquals(RequestStatus.STATUS_OK, write.join().getStatus());
+
+            awaitKeys(cluster, follower, "key", 0, 400);
+        }
+    }
+}
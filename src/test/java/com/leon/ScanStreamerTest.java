@@ -0,0 +1,101 @@
+package com.leon;
+
+import com.leon.gRPC.KeyValue;
+import com.leon.gRPC.ScanPage;
+import com.leon.gRPC.ScanRequest;
+import com.leon.storage.SkipListStorageEngine;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScanStreamerTest {
+
+    /// A call whose readiness the test sets, it keeps what is sent.
+    private static class FakeCall extends ServerCallStreamObserver<ScanPage> {
+        final List<ScanPage> pages = new ArrayList<>();
+        boolean ready = true;
+        boolean completed = false;
+        Runnable onReady;
+
+        @Override public boolean isCancelled() { return false; }
+        @Override public void setOnCancelHandler(Runnable onCancel) { }
+        @Override public void setCompression(String compression) { }
+        @Override public boolean isReady() { return ready; }
+        @Override public void setOnReadyHandler(Runnable onReady) { this.onReady = onReady; }
+        @Override public void disableAutoInboundFlowControl() { }
+        @Override public void request(int count) { }
+        @Override public void setMessageCompression(boolean enable) { }
+        @Override public void onNext(ScanPage page) { pages.add(page); }
+        @Override public void onError(Throwable t) { fail(t); }
+        @Override public void onCompleted() { completed = true; }
+
+        List<String> keys() {
+            List<String> keys = new ArrayList<>();
+            for (ScanPage page : pages)
+                for (KeyValue kv : page.getEntriesList())
+                    keys.add(kv.getKey());
+            return keys;
+        }
+    }
+
+    /// a00 .. a24 and b00 .. b24.
+    private static SkipListStorageEngine storage() {
+        SkipListStorageEngine storage = new SkipListStorageEngine();
+        for (int i = 0; i < 25; i++) {
+            storage.put(String.format("a%02d", i), "v", 1);
+            storage.put(String.format("b%02d", i), "v", 1);
+        }
+        return storage;
+    }
+
+    private static FakeCall scan(ScanRequest request) {
+        FakeCall call = new FakeCall();
+        new ScanStreamer(storage(), call, request).start();
+        return call;
+    }
+
+    @Test
+    void pagesContinueAfterTheLastKeySent() {
+        FakeCall call = scan(ScanRequest.newBuilder().setPageSize(10).build());
+        assertTrue(call.completed);
+        assertEquals(5, call.pages.size());
+        assertEquals(10, call.pages.get(0).getEntriesCount());
+        assertEquals(50, call.keys().size());
+        assertEquals(50, call.keys().stream().distinct().count());
+    }
+
+    @Test
+    void prefixAndRange() {
+        FakeCall call = scan(ScanRequest.newBuilder().setPrefix("b").setPageSize(7).build());
+        assertEquals(25, call.keys().size());
+        assertTrue(call.keys().stream().allMatch(k -> k.startsWith("b")));
+
+        call = scan(ScanRequest.newBuilder().setStartKey("a20").setEndKey("b02").build());
+        assertEquals(List.of("a20", "a21", "a22", "a23", "a24", "b00", "b01"), call.keys());
+    }
+
+    @Test
+    void limitReportsWhereToResume() {
+        FakeCall call = scan(ScanRequest.newBuilder().setLimit(12).setPageSize(5).build());
+        assertTrue(call.completed);
+        assertEquals(12, call.keys().size());
+        assertEquals("a12", call.pages.get(call.pages.size() - 1).getResumeKey());
+    }
+
+    @Test
+    void pausesWhileTheClientIsNotReady() {
+        FakeCall call = new FakeCall();
+        call.ready = false;
+        new ScanStreamer(storage(), call, ScanRequest.newBuilder().setPageSize(10).build()).start();
+        assertTrue(call.pages.isEmpty());
+
+        call.ready = true;
+        call.onReady.run();
+        assertTrue(call.completed);
+        assertEquals(50, call.keys().size());
+    }
+}
@@ -0,0 +1,178 @@
+package com.leon;
+
+import com.leon.gRPC.CommandType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedLogTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<LogRecord> readAll(SegmentedLog log, int from) throws IOException {
+        List<LogRecord> records = new ArrayList<>();
+        log.read(from, records::add);
+        return records;
+    }
+
+    private static LogRecord put(int index) {
+        return new LogRecord(index, 1, CommandType.PUT, ("key" + index).getBytes(), ("value" + index).getBytes(), 0);
+    }
+
+    /// Appends records from..to in batches of ten, like the write-ahead log does.
+    private static void append(SegmentedLog log, int from, int to) throws IOException {
+        for (int i = from; i <= to; i += 10) {
+            List<LogRecord> batch = new ArrayList<>();
+            for (int j = i; j <= Math.min(to, i + 9); j++)
+                batch.add(put(j));
+            log.append(batch);
+        }
+        log.force();
+    }
+
+    @Test
+    void rollsSegmentsAndReadsFromAnyIndex() throws Exception {
+        Path path = dir.resolve("log");
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 128)) {
+            append(log, 1, 500);
+            assertEquals(500, log.getLastIndex());
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            assertTrue(files.filter(f -> f.toString().endsWith(".log")).count() > 10);
+        }
+
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 128)) { // reopened, only the active segment is scanned
+            assertEquals(500, log.getLastIndex());
+            assertEquals(1, log.getFirstIndex());
+            for (int from : new int[] {1, 137, 250, 499, 500}) {
+                List<LogRecord> records = readAll(log, from);
+                assertEquals(501 - from, records.size());
+                assertEquals(from, records.get(0).getIndex());
+                assertEquals("value" + from, records.get(0).getValue());
+            }
+            assertTrue(readAll(log, 501).isEmpty());
+
+            append(log, 501, 510);
+            assertEquals(510, readAll(log, 1).size());
+        }
+    }
+
+    @Test
+    void truncatePrefixDropsCoveredSegmentsOnly() throws Exception {
+        Path path = dir.resolve("log");
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 128)) {
+            append(log, 1, 500);
+            int removed = log.truncatePrefix(250);
+
+            assertTrue(removed > 0);
+            assertTrue(log.getFirstIndex() > 1 && log.getFirstIndex() <= 251); // the segment holding 251 stays
+            assertEquals(251, readAll(log, 251).get(0).getIndex());
+            assertEquals(0, log.truncatePrefix(250));
+
+            assertEquals(500, log.getLastIndex());
+            log.truncatePrefix(10_000); // the active segment is never dropped
+            assertEquals(500, readAll(log, 500).get(0).getIndex());
+        }
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 128)) { // the manifest no longer lists them
+            assertTrue(log.getFirstIndex() > 251);
+            assertEquals(500, log.getLastIndex());
+        }
+    }
+
+    @Test
+    void truncatePrefixMovesSegmentsToTheArchive() throws Exception {
+        Path archive = dir.resolve("archive");
+        try (SegmentedLog log = new SegmentedLog(dir.resolve("log"), archive, 1024, 128)) {
+            append(log, 1, 500);
+            int removed = log.truncatePrefix(250);
+
+            try (Stream<Path> files = Files.list(archive)) {
+                assertEquals(2 * removed, files.count()); // each with its index
+            }
+        }
+    }
+
+    @Test
+    void truncateSuffixCutsAcrossSegments() throws Exception {
+        Path path = dir.resolve("log");
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 128)) {
+            append(log, 1, 500);
+            log.truncateSuffix(123);
+            assertEquals(122, log.getLastIndex());
+
+            append(log, 123, 130);
+            assertEquals(130, log.getLastIndex());
+        }
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 128)) {
+            List<LogRecord> records = readAll(log, 1);
+            assertEquals(130, records.size());
+            assertEquals(130, records.get(129).getIndex());
+        }
+    }
+
+    @Test
+    void convertsTextLog() throws Exception {
+        Path path = dir.resolve("log");
+        Files.writeString(path, """
+                Log #1: PUT:a:1:1700000000
+                Log #2: PUT:b:x:y:1700000001
+                Log #2: PUT:b:x:y:1700000001
+                Log #3: DELETE:a:1700000002
+                Log #4: PUT:c""");
+
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 256)) {
+            List<LogRecord> records = readAll(log, 1);
+
+            assertEquals(3, records.size());
+            assertEquals(3, log.getLastIndex());
+            assertEquals("a", records.get(0).getKey());
+            assertEquals("1", records.get(0).getValue());
+            assertEquals(1700000000_000L, records.get(0).getTimestamp());
+            assertEquals("x:y", records.get(1).getValue()); // the old parser cut values at a colon
+            assertEquals(CommandType.DELETE, records.get(2).getOpType());
+            assertEquals("a", records.get(2).getKey());
+            assertEquals(0, records.get(2).getTerm());
+        }
+        assertTrue(Files.isDirectory(path));
+        assertTrue(Files.readString(dir.resolve("log.txt")).startsWith("Log #1: PUT:a:1:"));
+
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 256)) { // nothing is converted twice
+            assertEquals(3, log.getLastIndex());
+        }
+    }
+
+    @Test
+    void finishesInterruptedConversion() throws Exception {
+        Path path = dir.resolve("log");
+        Files.writeString(dir.resolve("log.txt"), "Log #1: PUT:a:1:1700000000\n");
+        try (SegmentedLog log = new SegmentedLog(dir.resolve("log.converting"), 1024, 256)) {
+            log.append(List.of(new LogRecord(1, 0, CommandType.PUT, "a".getBytes(), "1".getBytes(), 0)));
+            log.force();
+        }
+
+        try (SegmentedLog log = new SegmentedLog(path, 1024, 256)) {
+            assertEquals(1, log.getLastIndex());
+            assertEquals("a", readAll(log, 1).get(0).getKey());
+        }
+        assertFalse(Files.exists(dir.resolve("log.converting")));
+    }
+
+    @Test
+    void refusesToOverwriteConvertedTextLog() throws Exception {
+        Path path = dir.resolve("log");
+        Files.writeString(path, "Log #1: PUT:a:1:1700000000\n");
+        Files.writeString(dir.resolve("log.txt"), "");
+
+        IOException e = assertThrows(IOException.class, () -> new SegmentedLog(path, 1024, 256));
+        assertTrue(e.getMessage().contains("log.txt"));
+    }
+}
@@ -0,0 +1,61 @@
+package com.leon;
+
+import com.leon.gRPC.RequestStatus;
+import com.leon.harness.EmbeddedCluster;
+import com.leon.helpers.Role;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// A leader that loses its ZooKeeper session while it keeps running must end up following the new leader.
+class SessionExpiryTest {
+    private static final long TIMEOUT_MS = 30_000;
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0)
+                fail("Timed out waiting until " + what);
+            Thread.sleep(50);
+        }
+    }
+
+    /// Retries a write until a leader took it, the cluster may be between leaders.
+    private static void put(ClusterClient client, String key, String value) throws InterruptedException {
+        await(key + " is written", () -> {
+            try {
+                return client.put(key, value).join().getStatus() == RequestStatus.STATUS_OK;
+            } catch (Exception e) {
+                return false;
+            }
+        });
+    }
+
+    @Test
+    void expiredLeaderRejoinsAsFollower() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             ClusterClient client = cluster.newClient()) {
+            int leader = cluster.awaitLeader(TIMEOUT_MS);
+            assertTrue(leader >= 0);
+            put(client, "a", "1");
+
+            cluster.expireSession(leader);
+            Node expired = cluster.getNode(leader);
+
+            await("another node leads", () -> {
+                int next = cluster.getLeader();
+                return next >= 0 && next != leader;
+            });
+            Node next = cluster.getNode(cluster.getLeader());
+            await("the expired leader follows the new one", () -> expired.getNodeRole() == Role.FOLLOWER
+                    && next.getGRPCAddress().equals(expired.getLeaderGRPCAddress()));
+
+            put(client, "b", "2");
+            await("the expired leader has the new write", () -> "2".equals(expired.read("b")));
+            assertEquals("1", expired.read("a"));
+        }
+    }
+}
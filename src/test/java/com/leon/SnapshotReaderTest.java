@@ -0,0 +1,110 @@
+package com.leon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotReaderTest {
+    private static final int BLOCK_BYTES = 1024;
+
+    @TempDir
+    Path dir;
+
+    private Path write(Map<String, String> entries, int lastLogIndex, boolean indexed) throws IOException {
+        Path path = dir.resolve("snapshot");
+        try (SnapshotWriter writer = new SnapshotWriter(path, lastLogIndex, BLOCK_BYTES, indexed)) {
+            for (Map.Entry<String, String> e : entries.entrySet())
+                writer.add(e.getKey(), e.getValue());
+            writer.finish();
+            assertEquals(Files.size(path), writer.getSize());
+        }
+        return path;
+    }
+
+    private static Map<String, String> entries(int n) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++)
+            entries.put("key" + i, i == 7 ? "x".repeat(5 * BLOCK_BYTES) : "value" + i); // one bigger than a block
+        return entries;
+    }
+
+    private static Map<String, String> readAll(Path path) throws IOException {
+        Map<String, String> read = new LinkedHashMap<>();
+        try (SnapshotReader reader = SnapshotReader.open(path)) {
+            reader.forEach(read::put);
+        }
+        return read;
+    }
+
+    private static void flip(Path path, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ, WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, offset);
+            b.put(0, (byte) (b.get(0) ^ 1)).rewind();
+            channel.write(b, offset);
+        }
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        Map<String, String> entries = entries(1000);
+        Path path = write(entries, 42, true);
+
+        try (SnapshotReader reader = SnapshotReader.open(path)) {
+            assertEquals(42, reader.getLastLogIndex());
+            assertEquals(1000, reader.getEntryCount());
+        }
+        assertEquals(entries, readAll(path));
+    }
+
+    @Test
+    void deltaKeepsDeletes() throws Exception {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("gone", null);
+        entries.put("kept", "v");
+        Path path = write(entries, 9, false);
+
+        Map<String, String> read = new HashMap<>(readAll(path));
+        assertTrue(read.containsKey("gone"));
+        assertNull(read.get("gone"));
+        assertEquals("v", read.get("kept"));
+    }
+
+    @Test
+    void damagedBlockIsCorrupt() throws Exception {
+        Path path = write(entries(1000), 42, true);
+        flip(path, SnapshotWriter.HEADER_SIZE + SnapshotWriter.BLOCK_HEADER_SIZE + 10);
+
+        assertThrows(SnapshotReader.CorruptSnapshotException.class, () -> readAll(path));
+    }
+
+    @Test
+    void damagedHeaderIsCorrupt() throws Exception {
+        Path path = write(entries(10), 42, true);
+        flip(path, 6);
+
+        assertThrows(SnapshotReader.CorruptSnapshotException.class, () -> SnapshotReader.open(path));
+    }
+
+    @Test
+    void truncatedFileIsCorrupt() throws Exception {
+        Path path = write(entries(1000), 42, true);
+        try (FileChannel channel = FileChannel.open(path, WRITE)) {
+            channel.truncate(Files.size(path) / 2);
+        }
+
+        assertThrows(SnapshotReader.CorruptSnapshotException.class, () -> readAll(path));
+    }
+}
@@ -0,0 +1,90 @@
+package com.leon;
+
+import com.leon.gRPC.CommandResponse;
+import com.leon.gRPC.RequestStatus;
+import com.leon.harness.EmbeddedCluster;
+import io.grpc.Status;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// One StorageClient talking straight to the leader, many requests in flight.
+class StorageClientTest {
+    private static final long TIMEOUT_MS = 30_000;
+    private static final int MAX_IN_FLIGHT = 8;
+
+    /// The leader's address, once it takes writes.
+    private static String leaderAddress(EmbeddedCluster cluster) throws InterruptedException {
+        int leader = cluster.awaitLeader(TIMEOUT_MS);
+        assertTrue(leader >= 0);
+        String address = cluster.getNode(leader).getGRPCAddress();
+
+        try (StorageClient client = new StorageClient(address, 1, 5000)) {
+            write(() -> client.put("warm-up", "1"));
+        }
+        return address;
+    }
+
+    /// Sends a write again until it is committed; on a busy machine it may time out before.
+    private static void write(Supplier<CompletableFuture<CommandResponse>> send) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (send.get().join().getStatus() != RequestStatus.STATUS_OK) {
+            if (System.nanoTime() - deadline > 0)
+                fail("The leader takes no writes");
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void pipelinedRequestsAreAnsweredByRequestId() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3);
+             StorageClient client = new StorageClient(leaderAddress(cluster), MAX_IN_FLIGHT, 10_000)) {
+            List<CompletableFuture<CommandResponse>> writes = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                writes.add(client.put("key" + i, "v" + i));
+                assertTrue(client.getInFlight() <= MAX_IN_FLIGHT);
+            }
+            for (int i = 0; i < 500; i++) {
+                RequestStatus status = writes.get(i).get(30, TimeUnit.SECONDS).getStatus();
+                int n = i;
+                if (status == RequestStatus.REPLICATION_TIMEOUT) // an answer all the same
+                    write(() -> client.put("key" + n, "v" + n));
+                else
+                    assertEquals(RequestStatus.STATUS_OK, status);
+            }
+
+            List<CompletableFuture<CommandResponse>> reads = new ArrayList<>();
+            for (int i = 0; i < 500; i++)
+                reads.add(client.read("key" + i));
+            for (int i = 0; i < 500; i++)
+                assertEquals("v" + i, reads.get(i).get(30, TimeUnit.SECONDS).getValue());
+
+            RequestStatus deleted;
+            do {
+                deleted = client.delete("key0").join().getStatus();
+            } while (deleted == RequestStatus.REPLICATION_TIMEOUT);
+            if (deleted != RequestStatus.KEY_NOT_FOUND) // it is if a delete that timed out was committed after all
+                assertEquals(RequestStatus.STATUS_OK, deleted);
+            assertEquals("", client.read("key0").join().getValue());
+            assertEquals(0, client.getInFlight());
+        }
+    }
+
+    @Test
+    void closedClientFailsRequestsAsUnavailable() throws Exception {
+        try (EmbeddedCluster cluster = new EmbeddedCluster(3)) {
+            StorageClient client = new StorageClient(leaderAddress(cluster), MAX_IN_FLIGHT, 10_000);
+            client.close();
+
+            CompletionException e = assertThrows(CompletionException.class, () -> client.put("a", "1").join());
+            assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(e.getCause()).getCode());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.leon;
+
+import com.leon.gRPC.CommandType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+    private static final int RECORDS = 1000;
+
+    @TempDir
+    Path dir;
+
+    private static LogRecord put(int index) {
+        return new LogRecord(index, 1, CommandType.PUT, ("key" + index).getBytes(StandardCharsets.UTF_8),
+                ("value" + index).getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    private static List<LogRecord> readAll(Path path) throws IOException {
+        List<LogRecord> records = new ArrayList<>();
+        try (SegmentedLog log = new SegmentedLog(path, 4096, 256)) {
+            log.read(1, records::add);
+        }
+        return records;
+    }
+
+    /// Appends every record without waiting, then waits for all of them; they must all be on disk in order.
+    private void appendAndReopen(boolean groupCommit) throws IOException {
+        Path path = dir.resolve("log");
+        WriteAheadLog wal = new WriteAheadLog(new SegmentedLog(path, 4096, 256), groupCommit, 64, 100);
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        for (int i = 1; i <= RECORDS; i++)
+            durable.add(wal.append(put(i)));
+        for (CompletableFuture<Void> f : durable)
+            f.join();
+        wal.close();
+
+        List<LogRecord> records = readAll(path);
+        assertEquals(RECORDS, records.size());
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals(i + 1, records.get(i).getIndex());
+            assertEquals("value" + (i + 1), records.get(i).getValue());
+        }
+    }
+
+    @Test
+    void groupCommitWritesEveryRecordInOrder() throws Exception {
+        appendAndReopen(true);
+    }
+
+    @Test
+    void withoutGroupCommitWritesEveryRecordInOrder() throws Exception {
+        appendAndReopen(false);
+    }
+
+    @Test
+    void appendAllCompletesOnceTheWholeBatchIsDurable() throws Exception {
+        Path path = dir.resolve("log");
+        try (WriteAheadLog wal = new WriteAheadLog(new SegmentedLog(path, 4096, 256), true, 8, 0)) {
+            List<LogRecord> batch = new ArrayList<>();
+            for (int i = 1; i <= 20; i++) // more than one flush
+                batch.add(put(i));
+            wal.appendAll(batch).join();
+        }
+        assertEquals(20, readAll(path).size());
+    }
+
+    @Test
+    void appendAfterCloseFails() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(new SegmentedLog(dir.resolve("log"), 4096, 256), true, 64, 0);
+        wal.appendAndSync(put(1));
+        wal.close();
+
+        CompletionException e = assertThrows(CompletionException.class, () -> wal.append(put(2)).join());
+        assertInstanceOf(IOException.class, e.getCause());
+        assertThrows(IOException.class, () -> wal.appendAndSync(put(2)));
+    }
+}
@@ -0,0 +1,119 @@
+package com.leon.harness;
+
+import com.leon.ClusterClient;
+import com.leon.gRPC.CommandResponse;
+import com.leon.gRPC.RequestStatus;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Measures an EmbeddedCluster: write and read throughput and latency, writes while a follower is paused,
+ * and how long the cluster takes to accept writes again after its leader is killed.
+ * <p>
+ * usage: ClusterBenchmark [nodes (3)] [operations (20000)] [value bytes (100)]
+ * <p>
+ * The nodes print every log they write to stdout, the results go to stderr, so redirect stdout to keep them apart.
+ */
+public class ClusterBenchmark {
+    private static final long LEADER_TIMEOUT_MS = 60_000;
+
+    private final EmbeddedCluster cluster;
+    private final ClusterClient client;
+    private final String value;
+
+    private ClusterBenchmark(EmbeddedCluster cluster, ClusterClient client, int valueBytes) {
+        this.cluster = cluster;
+        this.client = client;
+        this.value = "v".repeat(Math.max(valueBytes, 1));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int valueBytes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        try (EmbeddedCluster cluster = new EmbeddedCluster(size);
+             ClusterClient client = cluster.newClient()) {
+            if (cluster.awaitLeader(LEADER_TIMEOUT_MS) < 0 || client.getTopology().awaitLeader(LEADER_TIMEOUT_MS) == null)
+                throw new IllegalStateException("No leader was elected");
+
+            ClusterBenchmark benchmark = new ClusterBenchmark(cluster, client, valueBytes);
+            // warms up the JIT and connections, and waits out followers that accept no leader for lease.durationMs after starting
+            benchmark.run("warm-up", Math.min(operations, 1000), i -> client.put("warmup" + i, benchmark.value));
+            benchmark.run("writes", operations, i -> client.put("bench" + i, benchmark.value));
+            benchmark.run("reads", operations, i -> client.read("bench" + i));
+
+            if (size > 2) {
+                int follower = cluster.getFollower();
+                cluster.pause(follower);
+                benchmark.run("writes, node " + follower + " paused", operations, i -> client.put("paused" + i, benchmark.value));
+                cluster.resume(follower);
+            }
+
+            benchmark.failover();
+        }
+        System.exit(0); // gRPC and ZooKeeper leave non-daemon threads behind
+    }
+
+    /// Issues operations requests as fast as the client's in-flight limit allows, then reports throughput and latency.
+    private void run(String name, int operations, IntFunction<CompletableFuture<CommandResponse>> request) {
+        long[] latencies = new long[operations];
+        AtomicInteger failed = new AtomicInteger();
+        CompletableFuture<?>[] done = new CompletableFuture<?>[operations];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            int n = i;
+            long issued = System.nanoTime();
+            done[i] = request.apply(i).whenComplete((response, e) -> {
+                latencies[n] = System.nanoTime() - issued;
+                if (e != null || response.getStatus() != RequestStatus.STATUS_OK)
+                    failed.incrementAndGet();
+            });
+        }
+        CompletableFuture.allOf(done).exceptionally(e -> null).join();
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.err.printf("%s: %d ops in %.2fs, %.0f ops/s, %d failed, latency ms p50 %.2f p99 %.2f p99.9 %.2f max %.2f%n",
+                name, operations, elapsed / 1e9, operations * 1e9 / elapsed, failed.get(),
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999), latencies[operations - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+
+    /**
+     * Kills the leader and reports when another node took over and when the first write succeeded again,
+     * both counted from the kill. Then restarts the killed node and reports how long it took to rejoin.
+     */
+    private void failover() throws Exception {
+        int leader = cluster.getLeader();
+        long killed = System.nanoTime();
+        cluster.kill(leader);
+
+        int next = cluster.awaitLeader(LEADER_TIMEOUT_MS);
+        long elected = System.nanoTime();
+
+        long writable = -1;
+        for (int attempt = 0; writable < 0 && System.nanoTime() - killed < LEADER_TIMEOUT_MS * 1_000_000; attempt++) {
+            try {
+                if (client.put("failover" + attempt, value).join().getStatus() == RequestStatus.STATUS_OK)
+                    writable = System.nanoTime();
+            } catch (Exception e) {
+                // no leader reachable within the client's attempts, try again
+            }
+        }
+
+        System.err.printf("failover: node %d killed, node %d leads after %dms, writes succeed again after %s%n",
+                leader, next, (elected - killed) / 1_000_000, writable < 0 ? "never" : (writable - killed) / 1_000_000 + "ms");
+
+        long restarting = System.nanoTime();
+        cluster.restart(leader);
+        System.err.printf("restart: node %d rejoined in %dms%n", leader, (System.nanoTime() - restarting) / 1_000_000);
+    }
+}
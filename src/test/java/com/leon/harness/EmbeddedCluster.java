@@ -0,0 +1,193 @@
+package com.leon.harness;
+
+import com.leon.ClusterClient;
+import com.leon.Node;
+import com.leon.helpers.Role;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A whole cluster in one JVM, for repeatable throughput, latency and failover measurements on a single machine:
+ * an embedded ZooKeeper server and size Nodes, each on a free port with its snapshot and log in a directory
+ * of its own. Nodes are numbered from 0 in the order they were first started.
+ * <p>
+ * A node can be shut down (it leaves the cluster at once), killed (its ZooKeeper connection is cut before it
+ * shuts down, so its session expires as after a crash, see ZooKeeperRelay), cut off from ZooKeeper until its session
+ * expired while it keeps running, restarted on its data, and paused: a paused node holds every call it receives until it
+ * is resumed while its ZooKeeper session stays alive, like a process stalled by GC or a slow disk. A paused
+ * leader keeps sending AppendEntries, so pausing is meant for followers.
+ * <p>
+ * Config comes from system properties once per JVM, so all nodes share it. Metrics are per node, see
+ * Node.getMetrics().
+ */
+public class EmbeddedCluster implements AutoCloseable {
+    private static final long SESSION_EXPIRY_MS = 6000; // the nodes' 3s session timeout, and ZooKeeper's check of it each tick
+
+    private final Path dir;
+    private final boolean deleteOnClose;
+    private final EmbeddedZooKeeper zooKeeper;
+    private final Node[] nodes; // null while down
+    private final PauseInterceptor[] gates;
+    private final ZooKeeperRelay[] relays;
+
+    /// Starts a cluster of size nodes in a temporary directory that is deleted on close().
+    public EmbeddedCluster(int size) throws Exception {
+        this(size, Files.createTempDirectory("embedded-cluster"), true);
+    }
+
+    /// Starts a cluster of size nodes with their data in dir; data already there is restored.
+    public EmbeddedCluster(int size, Path dir, boolean deleteOnClose) throws Exception {
+        this.dir = dir;
+        this.deleteOnClose = deleteOnClose;
+        this.nodes = new Node[size];
+        this.gates = new PauseInterceptor[size];
+        this.relays = new ZooKeeperRelay[size];
+
+        Files.createDirectories(dir.resolve("zookeeper"));
+        this.zooKeeper = new EmbeddedZooKeeper(dir.resolve("zookeeper"));
+        System.out.println("Embedded ZooKeeper at " + zooKeeper.getConnectString() + ", data in " + dir);
+
+        for (int i = 0; i < size; i++)
+            start(i);
+    }
+
+    /// Starts node i on its data, returns once it leads or follows.
+    private void start(int i) throws Exception {
+        Path nodeDir = dir.resolve("node" + i);
+        Files.createDirectories(nodeDir);
+
+        relays[i] = new ZooKeeperRelay(zooKeeper.getPort());
+        Node node = new Node(relays[i].getConnectString(), "0", nodeDir.resolve("snapshot").toString(), nodeDir.resolve("log").toString());
+        gates[i] = new PauseInterceptor();
+        node.addInterceptor(gates[i]);
+        node.start();
+        nodes[i] = node;
+    }
+
+    /// Starts a node that was shut down or killed again on its data, on a new port.
+    public void restart(int i) throws Exception {
+        if (nodes[i] != null)
+            throw new IllegalStateException("Node " + i + " is running");
+        start(i);
+    }
+
+    /// Stops node i cleanly: its ZooKeeper session is closed, so the others react right away.
+    public void shutdown(int i) {
+        Node node = running(i);
+        gates[i].resume();
+        nodes[i] = null;
+        node.shutdown();
+        relays[i].close();
+    }
+
+    /// Stops node i like a crash: the others only notice once its ZooKeeper session expires.
+    public void kill(int i) {
+        Node node = running(i);
+        gates[i].resume();
+        nodes[i] = null;
+        relays[i].cut(); // the node's goodbye to ZooKeeper goes nowhere
+        node.shutdown();
+    }
+
+    /**
+     * Cuts node i off from ZooKeeper until its session expired, then lets it reconnect, while it keeps running:
+     * the others see it leave, it learns of the expiry only once it is back. Returns after reconnecting is allowed.
+     */
+    public void expireSession(int i) throws InterruptedException {
+        running(i);
+        relays[i].partition();
+        Thread.sleep(SESSION_EXPIRY_MS);
+        relays[i].heal();
+    }
+
+    /// Holds every call node i receives from now on, until resume(i).
+    public void pause(int i) {
+        running(i);
+        gates[i].pause();
+    }
+
+    public void resume(int i) {
+        running(i);
+        gates[i].resume();
+    }
+
+    public boolean isPaused(int i) {
+        return nodes[i] != null && gates[i].isPaused();
+    }
+
+    private Node running(int i) {
+        Node node = nodes[i];
+        if (node == null)
+            throw new IllegalStateException("Node " + i + " is not running");
+        return node;
+    }
+
+    /// Node i, or null while it is down.
+    public Node getNode(int i) {
+        return nodes[i];
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /// The running node that considers itself leader, -1 if there is none.
+    public int getLeader() {
+        for (int i = 0; i < nodes.length; i++) {
+            Node node = nodes[i];
+            if (node != null && node.getNodeRole() == Role.LEADER)
+                return i;
+        }
+        return -1;
+    }
+
+    /// Any running node that follows, -1 if there is none.
+    public int getFollower() {
+        for (int i = 0; i < nodes.length; i++) {
+            Node node = nodes[i];
+            if (node != null && node.getNodeRole() == Role.FOLLOWER)
+                return i;
+        }
+        return -1;
+    }
+
+    /// Waits until a node leads, returns its number or -1 on timeout.
+    public int awaitLeader(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        int leader;
+        while ((leader = getLeader()) < 0 && System.nanoTime() - deadline < 0)
+            Thread.sleep(5);
+        return leader;
+    }
+
+    public String getZooKeeperAddress() {
+        return zooKeeper.getConnectString();
+    }
+
+    /// A client of this cluster, to be closed by the caller.
+    public ClusterClient newClient() throws IOException {
+        return new ClusterClient(zooKeeper.getConnectString());
+    }
+
+    /// Shuts every running node down, then ZooKeeper, and deletes the data if the cluster created its directory.
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != null)
+                shutdown(i);
+        }
+        zooKeeper.close();
+
+        if (deleteOnClose) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                    Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.leon.harness;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+
+/// A standalone ZooKeeper server inside this JVM, listening on a free port of localhost.
+public class EmbeddedZooKeeper implements AutoCloseable {
+    private static final int TICK_MS = 1000; // sessions may last 2 - 20 ticks, the nodes ask for 3s
+    private static final int MAX_CLIENT_CONNECTIONS = 1000;
+
+    private final ZooKeeperServer server;
+    private final ServerCnxnFactory factory;
+
+    public EmbeddedZooKeeper(Path dataDir) throws IOException, InterruptedException {
+        File dir = dataDir.toFile();
+        this.server = new ZooKeeperServer(dir, dir, TICK_MS);
+        this.factory = ServerCnxnFactory.createFactory(new InetSocketAddress("localhost", 0), MAX_CLIENT_CONNECTIONS);
+        try {
+            this.factory.startup(server);
+        } catch (IOException | InterruptedException | RuntimeException | Error e) {
+            factory.shutdown(); // its threads would keep the JVM alive
+            throw e;
+        }
+    }
+
+    /// The address to give Nodes and clients, i.e. localhost:40123.
+    public String getConnectString() {
+        return "localhost:" + factory.getLocalPort();
+    }
+
+    public int getPort() {
+        return factory.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        factory.shutdown();
+        server.shutdown();
+    }
+}
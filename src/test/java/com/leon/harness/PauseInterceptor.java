@@ -0,0 +1,40 @@
+package com.leon.harness;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/**
+ * Holds every call a node receives while paused and lets them through once resumed, see EmbeddedCluster.pause().
+ * The call's thread waits, so held calls pile up in the server's executor like they would in a stalled process.
+ */
+final class PauseInterceptor implements ServerInterceptor {
+    private boolean paused = false;
+
+    synchronized void pause() {
+        paused = true;
+    }
+
+    synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    synchronized boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        synchronized (this) {
+            try {
+                while (paused)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // the server is shutting down, let the call fail there
+            }
+        }
+        return next.startCall(call, headers);
+    }
+}
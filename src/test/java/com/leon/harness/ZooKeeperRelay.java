@@ -0,0 +1,124 @@
+package com.leon.harness;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Forwards one node's ZooKeeper connections to the embedded server, so they can be cut like a crashed
+ * process's, see EmbeddedCluster.kill(). Once cut, connections are refused: the node's client cannot even
+ * tell the server it closes its session, which expires after its timeout. A partition drops them the same
+ * way until it heals, so a node that keeps running finds its session expired, see EmbeddedCluster.expireSession().
+ */
+final class ZooKeeperRelay implements AutoCloseable {
+    private final ServerSocket listener;
+    private final int targetPort;
+    private final List<Socket> sockets = new ArrayList<>(); // guarded by this
+    private boolean cut = false; // guarded by this
+    private boolean partitioned = false; // guarded by this
+
+    ZooKeeperRelay(int targetPort) throws IOException {
+        this.targetPort = targetPort;
+        this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread acceptor = new Thread(this::acceptLoop, "zookeeper-relay-" + listener.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /// The address to give the node instead of the server's.
+    String getConnectString() {
+        return "localhost:" + listener.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            Socket client;
+            try {
+                client = listener.accept();
+            } catch (IOException e) {
+                return; // cut
+            }
+
+            try {
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                if (!track(client, server))
+                    continue; // partitioned, or cut and accept() fails next
+                pump(client, server);
+                pump(server, client);
+            } catch (IOException e) {
+                closeQuietly(client);
+            }
+        }
+    }
+
+    private synchronized boolean track(Socket client, Socket server) {
+        if (cut || partitioned) {
+            closeQuietly(client);
+            closeQuietly(server);
+            return false;
+        }
+        sockets.add(client);
+        sockets.add(server);
+        return true;
+    }
+
+    /// Copies from one socket to the other until either is closed, then closes both.
+    private void pump(Socket from, Socket to) {
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[8192];
+            try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                int n;
+                while ((n = in.read(buf)) >= 0)
+                    out.write(buf, 0, n);
+            } catch (IOException e) {
+                // closed from either end
+            } finally {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }, "zookeeper-relay-pump");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /// Drops every connection and drops new ones as they come in, until heal(); the node keeps trying to reconnect.
+    synchronized void partition() {
+        partitioned = true;
+        for (Socket s : sockets)
+            closeQuietly(s);
+        sockets.clear();
+    }
+
+    /// Forwards new connections again after partition().
+    synchronized void heal() {
+        partitioned = false;
+    }
+
+    /// Drops every connection and refuses new ones, without a word to either end.
+    synchronized void cut() {
+        cut = true;
+        closeQuietly(listener);
+        for (Socket s : sockets)
+            closeQuietly(s);
+        sockets.clear();
+    }
+
+    @Override
+    public void close() {
+        cut();
+    }
+
+    private static void closeQuietly(AutoCloseable c) {
+        try {
+            c.close();
+        } catch (Exception e) {
+            // nothing to do
+        }
+    }
+}
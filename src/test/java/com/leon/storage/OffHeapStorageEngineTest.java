@@ -0,0 +1,112 @@
+package com.leon.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapStorageEngineTest extends StorageEngineTest {
+    private static final int KEYS = 40_000; // the table spans several pages
+
+    @Override
+    StorageEngine newEngine() {
+        return new OffHeapStorageEngine(4096, 16);
+    }
+
+    @Test
+    void valueLargerThanASlab() {
+        OffHeapStorageEngine engine = new OffHeapStorageEngine(4096, 16);
+        String big = "x".repeat(3 * 4096);
+        engine.put("small", "1", 1);
+        engine.put("big", big, 2);
+        engine.put("after", "3", 3);
+
+        assertEquals(big, engine.get("big"));
+        assertEquals(Map.of("small", "1", "big", big, "after", "3"), contents(engine));
+    }
+
+    @Test
+    void survivorsOfCompactedSlabsKeepTheirValueAndVersion() {
+        OffHeapStorageEngine engine = new OffHeapStorageEngine(4096, 16);
+        for (int i = 0; i < KEYS; i++)
+            engine.put("key" + i, "a" + i, 1);
+        for (int round = 2; round < 6; round++) // most of every slab becomes garbage, the rest is moved
+            for (int i = 0; i < KEYS; i++)
+                if (i % 3 != 0)
+                    engine.put("key" + i, "r" + round, round);
+
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(i % 3 == 0 ? "a" + i : "r5", engine.get("key" + i));
+            assertEquals(i % 3 == 0 ? 1 : 5, engine.getVersion("key" + i));
+        }
+        assertEquals(KEYS, engine.size());
+    }
+
+    @Test
+    void viewKeepsItsStateWhileTheEngineChanges() {
+        OffHeapStorageEngine engine = new OffHeapStorageEngine(4096, 16);
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            engine.put("key" + i, "a" + i, 1);
+            expected.put("key" + i, "a" + i);
+        }
+
+        try (StorageView view = engine.openView(1)) {
+            Map<String, String> now = new HashMap<>(expected);
+            for (int i = 0; i < KEYS; i += 2) { // overwrites leave garbage behind, slabs get compacted and dropped
+                engine.put("key" + i, "b" + i, 2);
+                now.put("key" + i, "b" + i);
+            }
+            for (int i = 1; i < KEYS; i += 4) {
+                engine.delete("key" + i, 2);
+                now.remove("key" + i);
+            }
+            for (int i = KEYS; i < 3 * KEYS; i++) { // the table is resized
+                engine.put("key" + i, "c" + i, 3);
+                now.put("key" + i, "c" + i);
+            }
+
+            assertEquals(1, view.getVersion());
+            assertEquals(expected, contents(view));
+            assertEquals(now, contents(engine));
+            assertEquals(now.size(), engine.size());
+        }
+    }
+
+    @Test
+    void viewsOpenedAtDifferentTimesSeeTheirOwnState() {
+        OffHeapStorageEngine engine = new OffHeapStorageEngine(4096, 16);
+        for (int i = 0; i < KEYS; i++)
+            engine.put("key" + i, "a", 1);
+
+        StorageView first = engine.openView(1);
+        engine.put("key0", "b", 2);
+        StorageView second = engine.openView(2);
+        engine.put("key0", "c", 3);
+        first.close();
+        engine.put("key1", "d", 4); // no copy for the closed view, still one for the open one
+
+        assertEquals("a", contents(first).get("key0"));
+        assertEquals("b", contents(second).get("key0"));
+        assertEquals("a", contents(second).get("key1"));
+        assertEquals("c", engine.get("key0"));
+        assertEquals("d", engine.get("key1"));
+        second.close();
+    }
+
+    @Test
+    void forEachSinceVisitsLaterWritesOnly() {
+        OffHeapStorageEngine engine = new OffHeapStorageEngine(4096, 16);
+        engine.put("old", "1", 1);
+        engine.put("new", "2", 5);
+
+        Map<String, String> since = new HashMap<>();
+        try (StorageView view = engine.openView(5)) {
+            engine.put("later", "3", 6);
+            view.forEachSince(1, since::put);
+        }
+        assertEquals(Map.of("new", "2"), since);
+    }
+}
@@ -0,0 +1,64 @@
+package com.leon.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SkipListStorageEngineTest extends StorageEngineTest {
+
+    @Override
+    StorageEngine newEngine() {
+        return new SkipListStorageEngine();
+    }
+
+    /// k00 .. k19, with k05 deleted.
+    private static SkipListStorageEngine filled() {
+        SkipListStorageEngine engine = new SkipListStorageEngine();
+        for (int i = 19; i >= 0; i--)
+            engine.put(String.format("k%02d", i), "v" + i, 1);
+        engine.delete("k05", 2);
+        return engine;
+    }
+
+    private static List<String> keys(SkipListStorageEngine engine, String fromKey, boolean inclusive, String toKey) {
+        List<String> keys = new ArrayList<>();
+        engine.scan(fromKey, inclusive, toKey, (k, v) -> keys.add(k));
+        return keys;
+    }
+
+    @Test
+    void scanIsInKeyOrderAndSkipsDeletes() {
+        List<String> keys = keys(filled(), null, true, null);
+        assertEquals(19, keys.size());
+        assertEquals("k00", keys.get(0));
+        assertEquals("k19", keys.get(18));
+        assertFalse(keys.contains("k05"));
+        for (int i = 1; i < keys.size(); i++)
+            assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+    }
+
+    @Test
+    void scanBounds() {
+        SkipListStorageEngine engine = filled();
+        assertEquals(List.of("k03", "k04", "k06"), keys(engine, "k03", true, "k07"));
+        assertEquals(List.of("k04", "k06"), keys(engine, "k03", false, "k07"));
+        assertEquals(List.of("k00", "k01"), keys(engine, null, true, "k02"));
+        assertEquals(List.of("k18", "k19"), keys(engine, "k18", true, null));
+        assertEquals(List.of("k06"), keys(engine, "k05", true, "k07")); // starts at a deleted key
+        assertEquals(List.of(), keys(engine, "k07", true, "k07"));
+        assertEquals(List.of(), keys(engine, "z", true, null));
+    }
+
+    @Test
+    void scanStopsWhenTheConsumerSaysSo() {
+        List<String> keys = new ArrayList<>();
+        filled().scan(null, true, null, (k, v) -> {
+            keys.add(k);
+            return keys.size() < 3;
+        });
+        assertEquals(List.of("k00", "k01", "k02"), keys);
+    }
+}
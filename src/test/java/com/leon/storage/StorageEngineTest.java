@@ -0,0 +1,116 @@
+package com.leon.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// What every StorageEngine must do, run against each engine by its subclass.
+abstract class StorageEngineTest {
+
+    abstract StorageEngine newEngine();
+
+    static Map<String, String> contents(StorageEngine engine) {
+        Map<String, String> entries = new HashMap<>();
+        engine.forEach(entries::put);
+        return entries;
+    }
+
+    static Map<String, String> contents(StorageView view) {
+        Map<String, String> entries = new HashMap<>();
+        view.forEach(entries::put);
+        return entries;
+    }
+
+    @Test
+    void putGetDelete() {
+        StorageEngine engine = newEngine();
+        engine.put("a", "1", 1);
+        engine.put("b", "2", 2);
+        engine.put("a", "3", 3);
+
+        assertEquals("3", engine.get("a"));
+        assertEquals(3, engine.getVersion("a"));
+        assertTrue(engine.containsKey("b"));
+        assertEquals(2, engine.size());
+
+        assertTrue(engine.delete("a", 4));
+        assertNull(engine.get("a"));
+        assertFalse(engine.containsKey("a"));
+        assertEquals(-1, engine.getVersion("a"));
+        assertFalse(engine.delete("a", 5));
+        assertEquals(Map.of("b", "2"), contents(engine));
+        assertEquals(1, engine.size());
+    }
+
+    @Test
+    void olderVersionsAreIgnored() {
+        StorageEngine engine = newEngine();
+        engine.put("a", "new", 5);
+        engine.put("a", "old", 3); // i.e. a snapshot copied in after the log applied a newer write
+        assertEquals("new", engine.get("a"));
+
+        assertFalse(engine.delete("a", 4));
+        assertEquals("new", engine.get("a"));
+    }
+
+    @Test
+    void clearRemovesEverything() {
+        StorageEngine engine = newEngine();
+        for (int i = 0; i < 100; i++)
+            engine.put("key" + i, "v", i);
+        engine.clear();
+
+        assertEquals(0, engine.size());
+        assertNull(engine.get("key1"));
+        engine.put("key1", "again", 1);
+        assertEquals("again", engine.get("key1"));
+    }
+
+    @Test
+    void viewIsNotChangedByLaterWrites() {
+        StorageEngine engine = newEngine();
+        engine.put("a", "1", 1);
+        engine.put("b", "2", 2);
+
+        try (StorageView view = engine.openView(2)) {
+            engine.put("a", "3", 3);
+            engine.delete("b", 4);
+            engine.put("c", "5", 5);
+
+            assertEquals(Map.of("a", "1", "b", "2"), contents(view));
+            Map<String, String> since = new HashMap<>();
+            view.forEachSince(1, since::put);
+            assertEquals(Map.of("b", "2"), since);
+        }
+        assertEquals(Map.of("a", "3", "c", "5"), contents(engine));
+    }
+
+    @Test
+    void concurrentWritersOfDifferentKeys() throws Exception {
+        StorageEngine engine = newEngine();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int first = t;
+            threads.add(new Thread(() -> {
+                for (int i = first; i < 20_000; i += 4) {
+                    engine.put("key" + i, "v" + i, i);
+                    if (i % 3 == 0)
+                        engine.delete("key" + i, i + 1);
+                }
+            }));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+
+        for (int i = 0; i < 20_000; i++)
+            assertEquals(i % 3 == 0 ? null : "v" + i, engine.get("key" + i));
+        assertEquals(20_000 - 6667, engine.size());
+    }
+}
@@ -0,0 +1,9 @@
+package com.leon.storage;
+
+class StripedStorageEngineTest extends StorageEngineTest {
+
+    @Override
+    StorageEngine newEngine() {
+        return new StripedStorageEngine(16);
+    }
+}